@@ -0,0 +1,16 @@
+#!/bin/bash
+
+. `dirname $0`/settings.sh
+
+# embedded JDBC driver for the DB benchmarks (h2.jar)
+BENCHDIR="$MDBDIR/bench"
+BENCHBIN="$BENCHDIR/bin"
+CLASSPATH="$CLASSPATH:$MDBBIN:$BENCHBIN:`ls $BENCHDIR/lib/*.jar 2> /dev/null | while read jar; do echo -n "$jar:"; done`"
+export CLASSPATH
+
+mkdir -p $MDBBIN $BENCHBIN
+javac -d $MDBBIN $MDBSRC/*.java && javac -d $BENCHBIN $BENCHDIR/src/*.java
+[ $? != 0 ] && echo "failed" && exit 1
+
+cd $MDBDIR
+java Bench "$@"
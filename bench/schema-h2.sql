@@ -0,0 +1,106 @@
+-- MailDB schema for the embedded benchmark database, see sql/dbschema.sql
+CREATE TABLE IF NOT EXISTS Envelope (
+  idEnvelope int NOT NULL AUTO_INCREMENT PRIMARY KEY,
+  messageID varchar(256) DEFAULT NULL,
+  subject text,
+  sendDate date DEFAULT NULL,
+  xmailer text,
+  useragent text,
+  bodyImported tinyint NOT NULL DEFAULT 1,
+  idConversation int DEFAULT NULL,
+  UNIQUE (messageID)
+);
+CREATE INDEX IF NOT EXISTS Envelope_sendDate ON Envelope (sendDate);
+CREATE INDEX IF NOT EXISTS Envelope_idConversation ON Envelope (idConversation);
+
+CREATE TABLE IF NOT EXISTS Conversation (
+  idConversation int NOT NULL PRIMARY KEY,
+  rootMessageID varchar(256) DEFAULT NULL,
+  subject text,
+  firstDate date DEFAULT NULL,
+  lastDate date DEFAULT NULL,
+  messageCount int NOT NULL DEFAULT 0
+);
+
+CREATE TABLE IF NOT EXISTS ConversationMessage (
+  messageID varchar(256) NOT NULL PRIMARY KEY,
+  idConversation int NOT NULL
+);
+CREATE INDEX IF NOT EXISTS ConversationMessage_idConversation ON ConversationMessage (idConversation);
+
+CREATE TABLE IF NOT EXISTS Envelope_Part (
+  idEnvelope int NOT NULL,
+  idPart int NOT NULL,
+  idParent int DEFAULT NULL,
+  PRIMARY KEY (idEnvelope, idPart)
+);
+CREATE INDEX IF NOT EXISTS Envelope_Part_idPart ON Envelope_Part (idPart);
+
+CREATE TABLE IF NOT EXISTS Envelope_Subscriber (
+  idEnvelope int NOT NULL,
+  idSubscriber int NOT NULL,
+  type varchar(16) NOT NULL,
+  PRIMARY KEY (idEnvelope, idSubscriber, type)
+);
+CREATE INDEX IF NOT EXISTS Envelope_Subscriber_idSubscriber ON Envelope_Subscriber (idSubscriber, type);
+
+CREATE TABLE IF NOT EXISTS KeySequence (
+  name varchar(64) NOT NULL PRIMARY KEY,
+  nextKey int NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS Part (
+  idPart int NOT NULL AUTO_INCREMENT PRIMARY KEY,
+  filename text,
+  content blob,
+  contentType text,
+  contentLength int DEFAULT NULL,
+  decodedContent clob,
+  idReferencedEnvelope int DEFAULT NULL,
+  digest char(40) DEFAULT NULL,
+  codec tinyint NOT NULL DEFAULT 0
+);
+CREATE INDEX IF NOT EXISTS Part_digest ON Part (digest);
+CREATE INDEX IF NOT EXISTS Part_idReferencedEnvelope ON Part (idReferencedEnvelope);
+
+CREATE TABLE IF NOT EXISTS PartBlob (
+  digest char(40) NOT NULL PRIMARY KEY,
+  content blob,
+  contentLength int DEFAULT NULL,
+  codec tinyint NOT NULL DEFAULT 0
+);
+
+CREATE TABLE IF NOT EXISTS SchemaVersion (
+  version int NOT NULL PRIMARY KEY,
+  applied timestamp NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS SyncCheckpoint (
+  folder varchar(255) NOT NULL PRIMARY KEY,
+  uidValidity bigint NOT NULL,
+  lastUid bigint NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS Subscriber (
+  idSubscriber int NOT NULL AUTO_INCREMENT PRIMARY KEY,
+  address varchar(128) NOT NULL,
+  name varchar(128) DEFAULT NULL,
+  UNIQUE (address, name)
+);
+
+CREATE TABLE IF NOT EXISTS SubscriberDay (
+  idSubscriber int NOT NULL,
+  type varchar(16) NOT NULL,
+  day date NOT NULL,
+  messageCount int NOT NULL DEFAULT 0,
+  PRIMARY KEY (idSubscriber, type, day)
+);
+CREATE INDEX IF NOT EXISTS SubscriberDay_day ON SubscriberDay (day);
+
+CREATE TABLE IF NOT EXISTS MailerDay (
+  xmailer varchar(255) NOT NULL,
+  day date NOT NULL,
+  messageCount int NOT NULL DEFAULT 0,
+  PRIMARY KEY (xmailer, day)
+);
+CREATE INDEX IF NOT EXISTS MailerDay_day ON MailerDay (day);
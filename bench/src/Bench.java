@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/*
+ * Minimal benchmark harness: each benchmark runs for a number of timed
+ * warmup and measurement iterations in a single thread, its throughput is
+ * reported as mean and standard deviation over the measurement iterations.
+ * Results can be saved with -o and compared between commits with -compare.
+ */
+public class Bench {
+  private LinkedHashMap<String, Callable<Object>> benchmarks = new LinkedHashMap<String, Callable<Object>>();
+  private int warmups = 3;
+  private int iterations = 5;
+  private double seconds = 1;
+
+  // consumed results, keeps the JIT from discarding the benchmarked work
+  private volatile int sink;
+
+  public static void main(String argv[]) {
+    try {
+      Bench bench = new Bench();
+      String filter = null;
+      String config = null;
+      String output = null;
+
+      for (int i = 0; i < argv.length; i++) {
+        if (argv[i].equals("-wi"))
+          bench.warmups = Integer.parseInt(argv[++i]);
+        else if (argv[i].equals("-i"))
+          bench.iterations = Integer.parseInt(argv[++i]);
+        else if (argv[i].equals("-t"))
+          bench.seconds = Double.parseDouble(argv[++i]);
+        else if (argv[i].equals("-c"))
+          config = argv[++i];
+        else if (argv[i].equals("-o"))
+          output = argv[++i];
+        else if (argv[i].equals("-compare") && i + 2 < argv.length) {
+          compare(new File(argv[i + 1]), new File(argv[i + 2]));
+          System.exit(0);
+        } else if (argv[i].startsWith("-")) {
+          System.err
+              .println("Usage: Bench [-wi warmups] [-i iterations] [-t seconds] "
+                  + "[-c db config] [-o results.csv] [name regex]\n"
+                  + "       Bench -compare <before.csv> <after.csv>");
+          System.exit(1);
+        } else
+          filter = argv[i];
+      }
+
+      new ParseBench(new BenchCorpus(42)).register(bench);
+      DBBench db = null;
+      if (config != null) {
+        db = new DBBench(new File(config), new BenchCorpus(42));
+        db.register(bench);
+      }
+
+      try {
+        bench.run(filter, output != null ? new File(output) : null);
+      } finally {
+        if (db != null)
+          db.close();
+      }
+    } catch (Exception ex) {
+      ex.printStackTrace();
+    }
+    System.exit(0);
+  }
+
+  private static void compare(File before, File after) throws IOException {
+    Map<String, double[]> a = load(before);
+    Map<String, double[]> b = load(after);
+
+    System.out.println(String.format("%-40s %14s %14s %8s", "Benchmark",
+        "before ops/s", "after ops/s", "change"));
+    for (Map.Entry<String, double[]> e : b.entrySet()) {
+      double[] old = a.get(e.getKey());
+      double now = e.getValue()[0];
+      System.out.println(String.format("%-40s %14s %14.3f %8s", e.getKey(),
+          old != null ? String.format("%.3f", old[0]) : "-", now,
+          old != null ? String.format("%+.1f%%", (now - old[0]) * 100 / old[0])
+              : "new"));
+    }
+  }
+
+  private static Map<String, double[]> load(File file) throws IOException {
+    LinkedHashMap<String, double[]> results = new LinkedHashMap<String, double[]>();
+    BufferedReader reader = new BufferedReader(new FileReader(file));
+    String line;
+    while ((line = reader.readLine()) != null) {
+      String[] cols = line.split(",");
+      if (cols.length == 3 && !cols[0].equals("benchmark"))
+        results.put(cols[0], new double[] { Double.parseDouble(cols[1]),
+            Double.parseDouble(cols[2]) });
+    }
+    reader.close();
+    return results;
+  }
+
+  public void add(String name, Callable<Object> benchmark) {
+    this.benchmarks.put(name, benchmark);
+  }
+
+  private double iteration(Callable<Object> benchmark) throws Exception {
+    long deadline = (long) (this.seconds * 1e9);
+    long start = System.nanoTime();
+    long elapsed;
+    long ops = 0;
+    do {
+      Object result = benchmark.call();
+      this.sink += result != null ? result.hashCode() : 0;
+      ops++;
+    } while ((elapsed = System.nanoTime() - start) < deadline);
+    return ops * 1e9 / elapsed;
+  }
+
+  public void run(String filter, File output) throws Exception {
+    PrintWriter csv = null;
+    if (output != null) {
+      csv = new PrintWriter(new FileWriter(output));
+      csv.println("benchmark,ops/s,stddev");
+    }
+
+    System.out.println(String.format("%-40s %5s %14s   %12s  %s",
+        "Benchmark", "Cnt", "Score", "Error", "Units"));
+    for (Map.Entry<String, Callable<Object>> e : this.benchmarks.entrySet()) {
+      if (filter != null && !e.getKey().matches(".*" + filter + ".*"))
+        continue;
+
+      for (int i = 0; i < this.warmups; i++)
+        this.iteration(e.getValue());
+
+      double[] scores = new double[this.iterations];
+      double mean = 0;
+      for (int i = 0; i < scores.length; i++)
+        mean += (scores[i] = this.iteration(e.getValue())) / scores.length;
+
+      double var = 0;
+      for (double s : scores)
+        var += (s - mean) * (s - mean);
+      double stddev = scores.length > 1 ? Math.sqrt(var / (scores.length - 1))
+          : 0;
+
+      System.out.println(String.format("%-40s %5d %14.3f +- %12.3f  ops/s", e
+          .getKey(), scores.length, mean, stddev));
+      if (csv != null)
+        csv.println(e.getKey() + "," + mean + "," + stddev);
+    }
+
+    if (csv != null)
+      csv.close();
+  }
+}
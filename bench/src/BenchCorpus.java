@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/*
+ * Deterministic synthetic MIME messages for the benchmarks: small text
+ * mails, deep multipart/alternative trees, large base64 attachments and
+ * huge recipient lists. The same seed yields the same bytes on every run.
+ */
+public class BenchCorpus {
+  private final static String[] WORDS = { "the", "archive", "import", "of",
+      "mailbox", "database", "message", "query", "search", "thread",
+      "subscriber", "attachment", "meeting", "report", "quarterly", "budget",
+      "server", "release", "schedule", "review", "please", "thanks", "regards" };
+  private final static char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+      .toCharArray();
+
+  private Random random;
+  private int counter = 0;
+
+  public static void main(String argv[]) {
+    try {
+      if (argv.length != 2) {
+        System.err.println("Usage: BenchCorpus <mbox file> <message count>");
+        System.exit(1);
+      }
+
+      BenchCorpus corpus = new BenchCorpus(42);
+      int count = Integer.parseInt(argv[1]);
+      OutputStream out = new BufferedOutputStream(new FileOutputStream(
+          argv[0]), 65536);
+      for (int i = 0; i < count; i++) {
+        out.write(("From bench" + i + "@example.com Mon Jan  1 00:00:00 2010\n")
+            .getBytes("US-ASCII"));
+        out.write(corpus.mixed(i));
+        out.write('\n');
+      }
+      out.close();
+    } catch (Exception ex) {
+      ex.printStackTrace();
+    }
+    System.exit(0);
+  }
+
+  public BenchCorpus(long seed) {
+    this.random = new Random(seed);
+  }
+
+  /*
+   * multipart/alternative nested depth levels deep, each level adding a
+   * text part, with a forwarded message/rfc822 at the bottom
+   */
+  public byte[] deepAlternative(int depth) {
+    StringBuilder sb = this.headers(3, "multipart/alternative; boundary=\"b0\"");
+    this.nested(sb, 0, depth);
+    return this.bytes(sb);
+  }
+
+  public byte[] hugeRecipients(int recipients) {
+    StringBuilder sb = this.headers(recipients,
+        "text/plain; charset=us-ascii");
+    sb.append(this.text(20)).append('\n');
+    return this.bytes(sb);
+  }
+
+  public byte[] largeAttachment(int size) {
+    StringBuilder sb = this.headers(2, "multipart/mixed; boundary=\"att\"");
+    sb.append("--att\nContent-Type: text/plain\n\n").append(this.text(50))
+        .append("\n--att\nContent-Type: application/octet-stream\n")
+        .append("Content-Transfer-Encoding: base64\n")
+        .append("Content-Disposition: attachment; filename=\"data.bin\"\n\n");
+    this.base64(sb, size);
+    sb.append("--att--\n");
+    return this.bytes(sb);
+  }
+
+  /*
+   * The four kinds in a fixed rotation, for end to end import runs
+   */
+  public byte[] mixed(int i) {
+    switch (i % 8) {
+    case 0:
+      return this.largeAttachment(256 * 1024);
+    case 1:
+    case 2:
+      return this.deepAlternative(4);
+    case 3:
+      return this.hugeRecipients(500);
+    default:
+      return this.smallText();
+    }
+  }
+
+  public byte[] smallText() {
+    StringBuilder sb = this.headers(2, "text/plain; charset=us-ascii");
+    sb.append(this.text(200)).append('\n');
+    return this.bytes(sb);
+  }
+
+  private void base64(StringBuilder sb, int size) {
+    int chars = (size + 2) / 3 * 4;
+    for (int i = 0; i < chars; i++) {
+      sb.append(BASE64[this.random.nextInt(64)]);
+      if (i % 76 == 75)
+        sb.append('\n');
+    }
+    sb.append('\n');
+  }
+
+  private byte[] bytes(StringBuilder sb) {
+    try {
+      return sb.toString().getBytes("US-ASCII");
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private StringBuilder headers(int recipients, String contentType) {
+    int id = this.counter++;
+    StringBuilder sb = new StringBuilder(1024);
+    sb.append("From: Sender ").append(id % 97).append(" <sender").append(
+        id % 97).append("@example.com>\n");
+    sb.append("To: ");
+    for (int i = 0; i < recipients; i++) {
+      if (i > 0)
+        sb.append(",\n\t");
+      if (i % 3 == 0)
+        sb.append("\"Last").append(i).append(", First\" ");
+      else if (i % 3 == 1)
+        sb.append("Person ").append(i).append(' ');
+      // the Outlook quirk handled in MailImport.getInternetAddresses
+      sb.append(i % 50 == 49 ? "<<" : "<").append("rcpt").append(i).append(
+          "@example.org").append(i % 50 == 49 ? ">>" : ">");
+    }
+    sb.append('\n');
+    sb.append("Subject: ").append(this.text(6)).append('\n');
+    sb.append("Message-ID: <bench").append(id).append('.').append(
+        this.random.nextInt(Integer.MAX_VALUE)).append("@example.com>\n");
+    sb.append("Date: Mon, 1 Jan 2010 00:00:00 +0000\n");
+    sb.append("X-Mailer: BenchCorpus\n");
+    sb.append("MIME-Version: 1.0\n");
+    sb.append("Content-Type: ").append(contentType).append("\n\n");
+    return sb;
+  }
+
+  private void nested(StringBuilder sb, int level, int depth) {
+    String boundary = "b" + level;
+    sb.append("--").append(boundary).append(
+        "\nContent-Type: text/plain; charset=us-ascii\n\n").append(
+        this.text(40)).append('\n');
+    sb.append("--").append(boundary).append(
+        "\nContent-Type: text/html; charset=us-ascii\n\n<html><body><p>")
+        .append(this.text(40)).append("</p></body></html>\n");
+
+    sb.append("--").append(boundary).append('\n');
+    if (level + 1 < depth) {
+      sb.append("Content-Type: multipart/alternative; boundary=\"b").append(
+          level + 1).append("\"\n\n");
+      this.nested(sb, level + 1, depth);
+    } else {
+      sb.append("Content-Type: message/rfc822\n\n");
+      sb.append(this.headers(1, "text/plain; charset=us-ascii")).append(
+          this.text(30)).append('\n');
+    }
+    sb.append("--").append(boundary).append("--\n");
+  }
+
+  private String text(int words) {
+    StringBuilder sb = new StringBuilder(words * 8);
+    for (int i = 0; i < words; i++) {
+      sb.append(WORDS[this.random.nextInt(WORDS.length)]);
+      sb.append(i % 12 == 11 ? '\n' : ' ');
+    }
+    return sb.toString().trim();
+  }
+}
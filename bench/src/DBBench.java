@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import javax.mail.Session;
+
+/*
+ * MailDB write paths against the database in the given config, meant to be
+ * an embedded one (see bench/config.h2) so runs are reproducible offline.
+ * The schema in bench.schema is created first. Every operation writes a
+ * new item, with a fresh Message-ID and part bodies no earlier operation
+ * stored, and commits it like a pipeline writer. Reusing one item would
+ * let content dedup skip the PartBlob inserts after the first operation.
+ */
+public class DBBench {
+  private MailDBPool pool;
+  private MailDB db;
+  private MailImport writer = new MailImport(Session.getInstance(
+      new Properties(), null));
+  private ParseBench parser;
+  private BenchCorpus corpus;
+  private int counter = 0;
+
+  public DBBench(File configFile, BenchCorpus corpus) throws Exception {
+    this.corpus = corpus;
+    this.parser = new ParseBench(corpus);
+
+    Properties props = this.writer.loadConfig(configFile);
+    this.pool = new MailDBPool(props);
+
+    String schema = Config.getProperty(props, "bench.schema", null);
+    if (schema != null)
+      this.createSchema(new File(schema));
+
+    this.pool.open();
+    this.db = this.pool.lease();
+  }
+
+  public void close() {
+    this.pool.release(this.db);
+    this.pool.close();
+  }
+
+  public void register(Bench bench) throws Exception {
+    bench.add("db.writeMessage.smallText", this.write(this.parser
+        .parseTree(this.corpus.smallText())));
+    bench.add("db.writeMessage.deepAlternative", this.write(this.parser
+        .parseTree(this.corpus.deepAlternative(8))));
+    bench.add("db.writeMessage.largeAttachment", this.write(this.parser
+        .parseTree(this.corpus.largeAttachment(1024 * 1024))));
+    bench.add("db.writeMessage.hugeRecipients", this.write(this.parser
+        .parseTree(this.corpus.hugeRecipients(2000))));
+
+    final EmailMessage recipients = this.parser.parseTree(this.corpus
+        .hugeRecipients(2000)).email;
+    bench.add("db.insertSubscriber.hugeRecipients", new Callable<Object>() {
+      public Object call() throws Exception {
+        Object keys = DBBench.this.db.insertSubscriber(recipients.toAddresses);
+        DBBench.this.db.commit();
+        return keys;
+      }
+    });
+  }
+
+  private void createSchema(File schema) throws Exception {
+    StringBuilder sql = new StringBuilder();
+    BufferedReader reader = new BufferedReader(new FileReader(schema));
+    String line;
+    while ((line = reader.readLine()) != null) {
+      if (!line.trim().startsWith("--"))
+        sql.append(line).append('\n');
+    }
+    reader.close();
+
+    Connection conn = this.pool.createConnection();
+    Statement stmnt = conn.createStatement();
+    for (String s : sql.toString().split(";")) {
+      if (s.trim().length() > 0)
+        stmnt.execute(s);
+    }
+    stmnt.close();
+    conn.close();
+  }
+
+  /*
+   * The parsed tree with its bodies read once, copied for every operation
+   */
+  private static class Template {
+    EmailMessage email;
+    EmailPart part;
+    byte[] content;
+    Template[] children;
+
+    Template(EmailPart part) throws IOException {
+      this.part = part;
+      if (part.content != null)
+        this.content = MailImport.readByteArray(part.content.openStream());
+      this.children = new Template[part.children.size()];
+      for (int i = 0; i < this.children.length; i++)
+        this.children[i] = new Template(part.children.get(i));
+    }
+
+    EmailMessage copyEnvelope(String messageid) {
+      EmailMessage copy = new EmailMessage();
+      copy.messageid = messageid;
+      copy.subject = this.email.subject;
+      copy.senddate = this.email.senddate;
+      copy.xmailer = this.email.xmailer;
+      copy.useragent = this.email.useragent;
+      copy.fromAddresses = this.email.fromAddresses;
+      copy.replytoAddresses = this.email.replytoAddresses;
+      copy.toAddresses = this.email.toAddresses;
+      copy.ccAddresses = this.email.ccAddresses;
+      copy.references = this.email.references;
+      copy.bodyImported = this.email.bodyImported;
+      return copy;
+    }
+
+    // the suffix changes every digest
+    EmailPart copyPart(byte[] suffix) {
+      EmailPart copy = new EmailPart();
+      copy.contentType = this.part.contentType;
+      copy.fileName = this.part.fileName;
+      copy.decodedContent = this.part.decodedContent;
+      if (this.content != null) {
+        byte[] data = new byte[this.content.length + suffix.length];
+        System.arraycopy(this.content, 0, data, 0, this.content.length);
+        System.arraycopy(suffix, 0, data, this.content.length, suffix.length);
+        copy.content = PartContent.wrap(data);
+      }
+      for (Template child : this.children)
+        copy.addChild(child.copyPart(suffix));
+      return copy;
+    }
+  }
+
+  private Callable<Object> write(ImportItem parsed) throws IOException {
+    final Template template = new Template(parsed.body);
+    template.email = parsed.email;
+    parsed.dispose();
+    return new Callable<Object>() {
+      public Object call() throws Exception {
+        String run = "." + DBBench.this.counter++;
+        ImportItem item = new ImportItem(null, 0, null);
+        item.email = template.copyEnvelope(template.email.messageid + run);
+        item.body = template.copyPart(run.getBytes());
+        DBBench.this.writer.writeItem(DBBench.this.db, item);
+        DBBench.this.db.commit();
+        item.dispose();
+        return item.email.key;
+      }
+    };
+  }
+}
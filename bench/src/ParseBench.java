@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.io.ByteArrayInputStream;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+/*
+ * MIME parsing hot paths: MailImport.parseEnvelope (and with it
+ * getInternetAddresses), buildPartTree, readByteArray and the full text
+ * tokenizer, over the BenchCorpus message kinds.
+ */
+public class ParseBench {
+  private Session session = Session.getInstance(new Properties(), null);
+  private MailImport parser = new MailImport(this.session);
+
+  private byte[] smallText;
+  private byte[] deepAlternative;
+  private byte[] largeAttachment;
+  private byte[] hugeRecipients;
+
+  public ParseBench(BenchCorpus corpus) {
+    this.smallText = corpus.smallText();
+    this.deepAlternative = corpus.deepAlternative(8);
+    this.largeAttachment = corpus.largeAttachment(4 * 1024 * 1024);
+    this.hugeRecipients = corpus.hugeRecipients(2000);
+  }
+
+  public void register(Bench bench) {
+    bench.add("parse.smallText", this.parse(this.smallText));
+    bench.add("parse.deepAlternative", this.parse(this.deepAlternative));
+    bench.add("parse.largeAttachment", this.parse(this.largeAttachment));
+    bench.add("parse.hugeRecipients", this.parse(this.hugeRecipients));
+    bench.add("parseEnvelope.hugeRecipients", this
+        .parseEnvelope(this.hugeRecipients));
+
+    bench.add("readByteArray.largeAttachment", new Callable<Object>() {
+      public Object call() throws Exception {
+        return MailImport.readByteArray(new ByteArrayInputStream(
+            ParseBench.this.largeAttachment));
+      }
+    });
+
+    bench.add("tokenize.deepAlternative", new Callable<Object>() {
+      public Object call() throws Exception {
+        EmailPart body = ParseBench.this.parseTree(
+            ParseBench.this.deepAlternative).body;
+        IndexDocument doc = new IndexDocument();
+        doc.add(body);
+        return doc.getPositions().size();
+      }
+    });
+  }
+
+  private Callable<Object> parse(final byte[] raw) {
+    return new Callable<Object>() {
+      public Object call() throws Exception {
+        ImportItem item = ParseBench.this.parseTree(raw);
+        item.dispose();
+        return item.email;
+      }
+    };
+  }
+
+  private Callable<Object> parseEnvelope(final byte[] raw) {
+    return new Callable<Object>() {
+      public Object call() throws Exception {
+        MimeMessage m = new MimeMessage(ParseBench.this.session,
+            new ByteArrayInputStream(raw));
+        return ParseBench.this.parser.parseEnvelope(m, 0, false);
+      }
+    };
+  }
+
+  ImportItem parseTree(byte[] raw) throws Exception {
+    MimeMessage m = new MimeMessage(this.session, new ByteArrayInputStream(
+        raw));
+    ImportItem item = new ImportItem(null, 0, null);
+    item.email = this.parser.parseEnvelope(m, 0, false);
+    item.body = this.parser.buildPartTree(item.email, m);
+    return item;
+  }
+}
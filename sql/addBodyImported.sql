@@ -0,0 +1,3 @@
+-- adds the body import state to databases created before import.mode,
+-- 0 = headers only, 1 = complete, 2 = some part bodies filtered out
+ALTER TABLE `Envelope` ADD COLUMN `bodyImported` tinyint(4) NOT NULL DEFAULT '1';
@@ -0,0 +1,4 @@
+-- adds the content codec marker to databases created before db.compress,
+-- existing rows stay uncompressed (codec 0) until Recompress converts them
+ALTER TABLE `Part` ADD COLUMN `codec` tinyint(4) NOT NULL DEFAULT '0';
+ALTER TABLE `PartBlob` ADD COLUMN `codec` tinyint(4) NOT NULL DEFAULT '0';
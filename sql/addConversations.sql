@@ -0,0 +1,20 @@
+-- adds conversation threading (import.conversations) to databases created
+-- before it; envelopes imported earlier stay without a conversation
+ALTER TABLE `Envelope` ADD COLUMN `idConversation` int(11) DEFAULT NULL,
+  ADD KEY `idConversation` (`idConversation`);
+CREATE TABLE `Conversation` (
+  `idConversation` int(11) NOT NULL,
+  `rootMessageID` varchar(256) COLLATE utf8_unicode_ci DEFAULT NULL,
+  `subject` text COLLATE utf8_unicode_ci,
+  `firstDate` date DEFAULT NULL,
+  `lastDate` date DEFAULT NULL,
+  `messageCount` int(11) NOT NULL DEFAULT '0',
+  PRIMARY KEY (`idConversation`),
+  KEY `lastDate` (`lastDate`)
+) ENGINE=MyISAM DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
+CREATE TABLE `ConversationMessage` (
+  `messageID` varchar(256) COLLATE utf8_unicode_ci NOT NULL,
+  `idConversation` int(11) NOT NULL,
+  PRIMARY KEY (`messageID`),
+  KEY `idConversation` (`idConversation`)
+) ENGINE=MyISAM DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
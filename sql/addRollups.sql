@@ -0,0 +1,18 @@
+-- adds the per day statistics tables (SubscriberDay, MailerDay) to
+-- databases created before them; fill them from the archive with
+-- StatsRollup <config file>
+CREATE TABLE `MailerDay` (
+  `xmailer` varchar(255) COLLATE utf8_unicode_ci NOT NULL,
+  `day` date NOT NULL,
+  `messageCount` int(11) NOT NULL DEFAULT '0',
+  PRIMARY KEY (`xmailer`,`day`),
+  KEY `day` (`day`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
+CREATE TABLE `SubscriberDay` (
+  `idSubscriber` int(11) NOT NULL,
+  `type` enum('From','To','CC','ReplyTo') COLLATE utf8_unicode_ci NOT NULL,
+  `day` date NOT NULL,
+  `messageCount` int(11) NOT NULL DEFAULT '0',
+  PRIMARY KEY (`idSubscriber`,`type`,`day`),
+  KEY `day` (`day`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
@@ -15,6 +15,40 @@
 /*!40101 SET @OLD_SQL_MODE=@@SQL_MODE, SQL_MODE='NO_AUTO_VALUE_ON_ZERO' */;
 /*!40111 SET @OLD_SQL_NOTES=@@SQL_NOTES, SQL_NOTES=0 */;
 
+--
+-- Table structure for table `Conversation`
+--
+
+DROP TABLE IF EXISTS `Conversation`;
+/*!40101 SET @saved_cs_client     = @@character_set_client */;
+/*!40101 SET character_set_client = utf8 */;
+CREATE TABLE `Conversation` (
+  `idConversation` int(11) NOT NULL,
+  `rootMessageID` varchar(256) COLLATE utf8_unicode_ci DEFAULT NULL,
+  `subject` text COLLATE utf8_unicode_ci,
+  `firstDate` date DEFAULT NULL,
+  `lastDate` date DEFAULT NULL,
+  `messageCount` int(11) NOT NULL DEFAULT '0',
+  PRIMARY KEY (`idConversation`),
+  KEY `lastDate` (`lastDate`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
+/*!40101 SET character_set_client = @saved_cs_client */;
+
+--
+-- Table structure for table `ConversationMessage`
+--
+
+DROP TABLE IF EXISTS `ConversationMessage`;
+/*!40101 SET @saved_cs_client     = @@character_set_client */;
+/*!40101 SET character_set_client = utf8 */;
+CREATE TABLE `ConversationMessage` (
+  `messageID` varchar(256) COLLATE utf8_unicode_ci NOT NULL,
+  `idConversation` int(11) NOT NULL,
+  PRIMARY KEY (`messageID`),
+  KEY `idConversation` (`idConversation`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci ROW_FORMAT=DYNAMIC;
+/*!40101 SET character_set_client = @saved_cs_client */;
+
 --
 -- Table structure for table `Envelope`
 --
@@ -31,9 +65,13 @@ CREATE TABLE `Envelope` (
   `sendDate` date DEFAULT NULL,
   `xmailer` text COLLATE utf8_unicode_ci,
   `useragent` text COLLATE utf8_unicode_ci,
+  `bodyImported` tinyint(4) NOT NULL DEFAULT '1',
+  `idConversation` int(11) DEFAULT NULL,
   PRIMARY KEY (`idEnvelope`),
-  UNIQUE KEY `messageID` (`messageID`)
-) ENGINE=MyISAM DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
+  UNIQUE KEY `messageID` (`messageID`),
+  KEY `sendDate` (`sendDate`),
+  KEY `idConversation` (`idConversation`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci ROW_FORMAT=DYNAMIC;
 /*!40101 SET character_set_client = @saved_cs_client */;
 
 --
@@ -47,8 +85,9 @@ CREATE TABLE `Envelope_Part` (
   `idEnvelope` int(11) NOT NULL,
   `idPart` int(11) NOT NULL,
   `idParent` int(11) DEFAULT NULL,
-  PRIMARY KEY (`idEnvelope`,`idPart`)
-) ENGINE=MyISAM DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
+  PRIMARY KEY (`idEnvelope`,`idPart`),
+  KEY `idPart` (`idPart`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
 /*!40101 SET character_set_client = @saved_cs_client */;
 
 --
@@ -61,9 +100,40 @@ DROP TABLE IF EXISTS `Envelope_Subscriber`;
 CREATE TABLE `Envelope_Subscriber` (
   `idEnvelope` int(11) NOT NULL,
   `idSubscriber` int(11) NOT NULL,
-  `type` enum('From','To','CC','ReplyTo') COLLATE utf8_unicode_ci DEFAULT NULL,
-  PRIMARY KEY (`idEnvelope`,`idSubscriber`)
-) ENGINE=MyISAM DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
+  `type` enum('From','To','CC','ReplyTo') COLLATE utf8_unicode_ci NOT NULL,
+  PRIMARY KEY (`idEnvelope`,`idSubscriber`,`type`),
+  KEY `idSubscriber` (`idSubscriber`,`type`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
+/*!40101 SET character_set_client = @saved_cs_client */;
+
+--
+-- Table structure for table `KeySequence`
+--
+
+DROP TABLE IF EXISTS `KeySequence`;
+/*!40101 SET @saved_cs_client     = @@character_set_client */;
+/*!40101 SET character_set_client = utf8 */;
+CREATE TABLE `KeySequence` (
+  `name` varchar(64) COLLATE utf8_unicode_ci NOT NULL,
+  `nextKey` int(11) NOT NULL,
+  PRIMARY KEY (`name`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
+/*!40101 SET character_set_client = @saved_cs_client */;
+
+--
+-- Table structure for table `MailerDay`
+--
+
+DROP TABLE IF EXISTS `MailerDay`;
+/*!40101 SET @saved_cs_client     = @@character_set_client */;
+/*!40101 SET character_set_client = utf8 */;
+CREATE TABLE `MailerDay` (
+  `xmailer` varchar(255) COLLATE utf8_unicode_ci NOT NULL,
+  `day` date NOT NULL,
+  `messageCount` int(11) NOT NULL DEFAULT '0',
+  PRIMARY KEY (`xmailer`,`day`),
+  KEY `day` (`day`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
 /*!40101 SET character_set_client = @saved_cs_client */;
 
 --
@@ -81,8 +151,67 @@ CREATE TABLE `Part` (
   `contentLength` int(11) DEFAULT NULL,
   `decodedContent` longtext COLLATE utf8_unicode_ci,
   `idReferencedEnvelope` int(11) DEFAULT NULL,
-  PRIMARY KEY (`idPart`)
-) ENGINE=MyISAM DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
+  `digest` char(40) CHARACTER SET ascii DEFAULT NULL,
+  `codec` tinyint(4) NOT NULL DEFAULT '0',
+  PRIMARY KEY (`idPart`),
+  KEY `digest` (`digest`),
+  KEY `idReferencedEnvelope` (`idReferencedEnvelope`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
+/*!40101 SET character_set_client = @saved_cs_client */;
+
+--
+-- Table structure for table `PartBlob`
+--
+
+DROP TABLE IF EXISTS `PartBlob`;
+/*!40101 SET @saved_cs_client     = @@character_set_client */;
+/*!40101 SET character_set_client = utf8 */;
+CREATE TABLE `PartBlob` (
+  `digest` char(40) CHARACTER SET ascii NOT NULL,
+  `content` longblob,
+  `contentLength` int(11) DEFAULT NULL,
+  `codec` tinyint(4) NOT NULL DEFAULT '0',
+  PRIMARY KEY (`digest`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
+/*!40101 SET character_set_client = @saved_cs_client */;
+
+--
+-- Table structure for table `SchemaVersion`
+--
+
+DROP TABLE IF EXISTS `SchemaVersion`;
+/*!40101 SET @saved_cs_client     = @@character_set_client */;
+/*!40101 SET character_set_client = utf8 */;
+CREATE TABLE `SchemaVersion` (
+  `version` int(11) NOT NULL,
+  `applied` datetime NOT NULL,
+  PRIMARY KEY (`version`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
+/*!40101 SET character_set_client = @saved_cs_client */;
+
+--
+-- Dumping data for table `SchemaVersion`
+--
+
+LOCK TABLES `SchemaVersion` WRITE;
+/*!40000 ALTER TABLE `SchemaVersion` DISABLE KEYS */;
+INSERT INTO `SchemaVersion` VALUES (2,now());
+/*!40000 ALTER TABLE `SchemaVersion` ENABLE KEYS */;
+UNLOCK TABLES;
+
+--
+-- Table structure for table `SyncCheckpoint`
+--
+
+DROP TABLE IF EXISTS `SyncCheckpoint`;
+/*!40101 SET @saved_cs_client     = @@character_set_client */;
+/*!40101 SET character_set_client = utf8 */;
+CREATE TABLE `SyncCheckpoint` (
+  `folder` varchar(255) COLLATE utf8_unicode_ci NOT NULL,
+  `uidValidity` bigint(20) NOT NULL,
+  `lastUid` bigint(20) NOT NULL,
+  PRIMARY KEY (`folder`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
 /*!40101 SET character_set_client = @saved_cs_client */;
 
 --
@@ -98,7 +227,24 @@ CREATE TABLE `Subscriber` (
   `name` varchar(128) COLLATE utf8_unicode_ci DEFAULT NULL,
   PRIMARY KEY (`idSubscriber`),
   UNIQUE KEY `address` (`address`,`name`)
-) ENGINE=MyISAM DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
+/*!40101 SET character_set_client = @saved_cs_client */;
+
+--
+-- Table structure for table `SubscriberDay`
+--
+
+DROP TABLE IF EXISTS `SubscriberDay`;
+/*!40101 SET @saved_cs_client     = @@character_set_client */;
+/*!40101 SET character_set_client = utf8 */;
+CREATE TABLE `SubscriberDay` (
+  `idSubscriber` int(11) NOT NULL,
+  `type` enum('From','To','CC','ReplyTo') COLLATE utf8_unicode_ci NOT NULL,
+  `day` date NOT NULL,
+  `messageCount` int(11) NOT NULL DEFAULT '0',
+  PRIMARY KEY (`idSubscriber`,`type`,`day`),
+  KEY `day` (`day`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
 /*!40101 SET character_set_client = @saved_cs_client */;
 /*!40103 SET TIME_ZONE=@OLD_TIME_ZONE */;
 
@@ -2,7 +2,15 @@ use mail;
 
 drop table Envelope_Part;
 drop table Part;
+drop table PartBlob;
 drop table Envelope;
 drop table Subscriber;
 drop table Envelope_Subscriber;
+drop table KeySequence;
+drop table SyncCheckpoint;
+drop table Conversation;
+drop table ConversationMessage;
+drop table SubscriberDay;
+drop table MailerDay;
+drop table SchemaVersion;
 
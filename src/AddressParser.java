@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.mail.Session;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+/*
+ * Parses From/To/Cc/Reply-To header values into normalized addresses: the
+ * domain lowercased, the personal name trimmed, both interned. Results are
+ * cached by raw header value, list traffic repeats the same values over and
+ * over. Plain "Name <local@domain>" and "local@domain" values skip
+ * InternetAddress.parseHeader altogether.
+ *
+ * The returned arrays are shared between messages and must not be
+ * modified.
+ */
+public class AddressParser {
+  private final static InternetAddress[] NONE = new InternetAddress[0];
+
+  private ConcurrentHashMap<String, InternetAddress[]> cache;
+  private int capacity;
+  private boolean strict;
+
+  private AtomicLong hits = new AtomicLong();
+  private AtomicLong misses = new AtomicLong();
+
+  /*
+   * Sets the fields directly, the InternetAddress constructor would encode
+   * the personal name only for getPersonal() to decode it again
+   */
+  private static class Parsed extends InternetAddress {
+    private static final long serialVersionUID = 1L;
+
+    Parsed(String address, String personal) {
+      this.address = address;
+      this.personal = personal;
+    }
+  }
+
+  private static InternetAddress normalize(String address, String personal) {
+    if (address != null) {
+      address = address.trim();
+      int at = address.lastIndexOf('@');
+      if (at > -1)
+        address = address.substring(0, at + 1)
+            + address.substring(at + 1).toLowerCase();
+      address = address.intern();
+    }
+    if (personal != null) {
+      personal = personal.trim();
+      personal = personal.length() > 0 ? personal.intern() : null;
+    }
+    return new Parsed(address, personal);
+  }
+
+  /*
+   * Recognizes a single "Name <local@domain>" or "local@domain" without
+   * quoting, comments, groups or encoded words; null for anything else
+   */
+  private static InternetAddress[] parseSimple(String value) {
+    int length = value.length();
+    int lt = -1;
+    int at = -1;
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      switch (c) {
+      case ',':
+      case '"':
+      case '(':
+      case ')':
+      case ';':
+      case ':':
+      case '\\':
+      case '[':
+      case ']':
+        return null;
+      case '<':
+        if (lt > -1)
+          return null;
+        lt = i;
+        break;
+      case '>':
+        if (lt == -1 || i != length - 1)
+          return null;
+        break;
+      case '@':
+        if (at > -1)
+          return null;
+        at = i;
+        break;
+      case '=':
+        if (i + 1 < length && value.charAt(i + 1) == '?')
+          return null;
+        break;
+      case ' ':
+      case '\t':
+        if (lt == -1 && at > -1)
+          return null;
+        break;
+      default:
+        if (c > 127)
+          return null;
+      }
+    }
+
+    String address;
+    String personal = null;
+    if (lt > -1) {
+      if (value.charAt(length - 1) != '>' || at < lt)
+        return null;
+      address = value.substring(lt + 1, length - 1);
+      personal = value.substring(0, lt);
+    } else {
+      address = value;
+    }
+
+    if (at == -1 || address.indexOf(' ') > -1 || address.indexOf('\t') > -1
+        || address.startsWith("@") || address.endsWith("@"))
+      return null;
+    return new InternetAddress[] { normalize(address, personal) };
+  }
+
+  public AddressParser(Session session, int capacity) {
+    String s = session != null ? session
+        .getProperty("mail.mime.address.strict") : null;
+    this.strict = (s == null) || Boolean.valueOf(s).booleanValue();
+    this.capacity = capacity;
+    this.cache = new ConcurrentHashMap<String, InternetAddress[]>(Math.min(
+        Math.max(capacity, 16), 1 << 16));
+  }
+
+  public InternetAddress[] parse(String value) throws AddressException {
+    if (value == null)
+      return null;
+
+    InternetAddress[] addresses = this.cache.get(value);
+    if (addresses != null) {
+      this.hits.incrementAndGet();
+      return addresses;
+    }
+    this.misses.incrementAndGet();
+
+    String trimmed = value.trim();
+    addresses = trimmed.length() == 0 ? NONE : parseSimple(trimmed);
+    if (addresses == null) {
+      // ### MICROSOFT OUTLOOK WORKAROUND ### //
+      if (trimmed.indexOf("<<") > -1)
+        trimmed = trimmed.replace("<<", "<").replace(">>", ">");
+
+      addresses = InternetAddress.parseHeader(trimmed, this.strict);
+      for (int i = 0; i < addresses.length; i++)
+        addresses[i] = normalize(addresses[i].getAddress(), addresses[i]
+            .getPersonal());
+    }
+
+    if (this.capacity > 0) {
+      // a crude bound, the hot values are back after a few messages
+      if (this.cache.size() >= this.capacity)
+        this.cache.clear();
+      this.cache.put(value, addresses);
+    }
+    return addresses;
+  }
+
+  public String toString() {
+    long h = this.hits.get();
+    long m = this.misses.get();
+    return "size: " + this.cache.size() + "/" + this.capacity + " hits: " + h
+        + " misses: " + m + " ratio: "
+        + (h + m > 0 ? (100 * h / (h + m)) + "%" : "-");
+  }
+}
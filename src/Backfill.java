@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Properties;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.Store;
+import javax.mail.internet.MimeMessage;
+
+/*
+ * Imports the bodies of messages that were imported header only
+ * (import.mode = headers) or with a body type filter. The mailbox is scanned
+ * by Message-ID and only the selected messages are downloaded, their
+ * previously stored parts are replaced.
+ */
+public class Backfill {
+  private MailImport importer;
+  private MailDB db;
+  private HashMap<String, Integer> pending = new HashMap<String, Integer>();
+  private int filled = 0;
+
+  public static void main(String argv[]) {
+    try {
+      if (argv.length < 2 || argv.length > 3) {
+        System.err
+            .println("Usage: Backfill <config file> <mailbox> [Message-ID file]");
+        System.exit(1);
+      }
+
+      Properties importProps = new Properties();
+      FileReader r = new FileReader(argv[0]);
+      importProps.load(r);
+      r.close();
+
+      HashSet<String> selected = null;
+      if (argv.length > 2) {
+        selected = new HashSet<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(argv[2]));
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (line.trim().length() > 0)
+            selected.add(line.trim());
+        }
+        reader.close();
+      }
+
+      MailImport importer = new MailImport((Session) null);
+      Store store = importer.openMbox(importProps);
+      MailDB db = new MailDB(importProps);
+      db.setTruncateOnConnect(false);
+      db.connect();
+      try {
+        Backfill backfill = new Backfill(importer, db);
+        int count = backfill.select(selected);
+        System.out.println(count + " messages without complete bodies");
+        if (count > 0) {
+          if (store != null)
+            backfill.scan(importer.openFolder(store, argv[1]));
+          else
+            backfill.scan(new File(argv[1]));
+        }
+        System.out.println(backfill.filled + " bodies imported, "
+            + backfill.pending.size() + " not found in " + argv[1]);
+      } finally {
+        db.close();
+        if (store != null)
+          store.close();
+      }
+    } catch (Exception ex) {
+      ex.printStackTrace();
+    }
+    System.exit(0);
+  }
+
+  public Backfill(MailImport importer, MailDB db) {
+    this.importer = importer;
+    this.db = db;
+  }
+
+  /*
+   * Imports the body of m if its Message-ID is pending, committing each
+   * message on its own
+   */
+  private void fill(Message m, int nr) throws Exception {
+    String[] header = m.getHeader("Message-ID");
+    Integer key = header != null ? this.pending.get(header[0].trim()) : null;
+    if (key == null)
+      return;
+
+    EmailMessage email = this.importer.parseEnvelope(m, nr, false);
+    email.key = key;
+    EmailPart body = null;
+    try {
+      body = this.importer.buildPartTree(email, m);
+      this.db.deleteParts(key);
+      this.importer.storePart(this.db, email, body);
+      this.db.setBodyImported(key, email.bodyImported);
+      this.db.commit();
+      this.pending.remove(header[0].trim());
+      this.filled++;
+    } catch (MailImportException mbex) {
+      this.db.rollback();
+      mbex.handleException();
+    } catch (SQLException e) {
+      this.db.rollback();
+      throw e;
+    } finally {
+      if (body != null)
+        body.dispose();
+    }
+  }
+
+  /*
+   * Scans a folder window by window, the envelope prefetch already carries
+   * the Message-IDs
+   */
+  public void scan(Folder f) throws Exception {
+    int total = f.getMessageCount();
+    int window = 500;
+    for (int start = 1; start <= total && !this.pending.isEmpty(); start += window) {
+      Message[] msgs = this.importer.fetch(f, start, Math.min(start + window
+          - 1, total));
+      for (int i = 0; i < msgs.length; i++)
+        this.fill(msgs[i], msgs[i].getMessageNumber() - 1);
+    }
+  }
+
+  public void scan(File mbox) throws Exception {
+    MboxSource source = new MboxSource(mbox);
+    try {
+      ByteBuffer msg;
+      int nr = 0;
+      while ((msg = source.next()) != null && !this.pending.isEmpty()) {
+        PartContent raw = PartContent.wrap(msg);
+        InputStream in = raw.openStream();
+        MimeMessage headers = this.importer.parseHeaders(in);
+        in.close();
+
+        String[] id = headers.getHeader("Message-ID");
+        if (id != null && this.pending.containsKey(id[0].trim())) {
+          in = raw.openStream();
+          try {
+            this.fill(new MimeMessage(null, in), nr);
+          } finally {
+            in.close();
+          }
+        }
+        nr++;
+      }
+    } finally {
+      source.close();
+    }
+  }
+
+  /*
+   * Loads the envelopes still missing bodies, limited to the given
+   * Message-IDs if not null
+   */
+  public int select(HashSet<String> messageIds) throws SQLException {
+    PreparedStatement stmnt = this.db.getConnection().prepareStatement(
+        "select idEnvelope, messageID from Envelope where bodyImported <> ? and messageID is not null");
+    try {
+      stmnt.setInt(1, EmailMessage.BODY_COMPLETE);
+      ResultSet rs = stmnt.executeQuery();
+      while (rs.next()) {
+        String id = rs.getString(2).trim();
+        if (messageIds == null || messageIds.contains(id))
+          this.pending.put(id, rs.getInt(1));
+      }
+      rs.close();
+    } finally {
+      stmnt.close();
+    }
+    return this.pending.size();
+  }
+}
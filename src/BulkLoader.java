@@ -0,0 +1,572 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Properties;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.mail.internet.InternetAddress;
+
+/*
+ * Bulk load mode for first time imports into empty tables (db.bulkLoad):
+ * rows are written to staging files with keys assigned by the KeyAllocator
+ * instead of being inserted, and loaded table by table when the pool
+ * closes, through LOAD DATA with the secondary indexes dropped on MySQL or
+ * multi row INSERTs elsewhere.
+ * Subscribers, Message-IDs and content digests are deduplicated in memory.
+ * Envelope and part rows are staged per transaction and only appended to
+ * the staging files on commit, so a rolled back group can be replayed.
+ * A message staged before only as an attachment keeps its key when it
+ * arrives itself, its new bodyImported is applied after the load.
+ */
+public class BulkLoader {
+  private File dir;
+  private KeyAllocator keyAllocator;
+  private String method;
+  private boolean local;
+  private int rowsPerInsert;
+  private PartCompressor compressor;
+
+  private ConcurrentHashMap<String, Integer> subscribers = new ConcurrentHashMap<String, Integer>();
+  // negative keys for envelopes only staged as attached messages
+  private ConcurrentHashMap<String, Integer> envelopes = new ConcurrentHashMap<String, Integer>();
+  private Set<String> digests = ConcurrentHashMap.newKeySet();
+
+  private StagingFile subscriber;
+  private StagingFile envelope;
+  private StagingFile envelopeSubscriber;
+  private StagingFile partBlob;
+  private StagingFile part;
+  private StagingFile envelopePart;
+  private StagingFile envelopeBody;
+  private AtomicInteger transactions = new AtomicInteger();
+
+  /*
+   * Rows staged by one connection since its last commit. Subscribers and
+   * PartBlob bodies are shared through the dedup maps and staged right away,
+   * rolled back they are just unreferenced.
+   */
+  public class Transaction {
+    private StagingFile envelope;
+    private StagingFile envelopeSubscriber;
+    private StagingFile part;
+    private StagingFile envelopePart;
+    private StagingFile envelopeBody;
+    private Vector<String> messageIds = new Vector<String>();
+    private Vector<String> claimed = new Vector<String>();
+
+    private Transaction(String name) {
+      this.envelope = BulkLoader.this.envelope.fork(name);
+      this.envelopeSubscriber = BulkLoader.this.envelopeSubscriber.fork(name);
+      this.part = BulkLoader.this.part.fork(name);
+      this.envelopePart = BulkLoader.this.envelopePart.fork(name);
+      this.envelopeBody = BulkLoader.this.envelopeBody.fork(name);
+    }
+  }
+
+  public static void main(String argv[]) {
+    try {
+      if (argv.length != 2) {
+        System.err.println("Usage: BulkLoader <config file> <staging dir>");
+        System.exit(1);
+      }
+
+      Properties dbProps = new Properties();
+      FileReader r = new FileReader(argv[0]);
+      dbProps.load(r);
+      r.close();
+
+      Connection conn = new MailDBPool(dbProps).createConnection();
+      try {
+        new BulkLoader(new File(argv[1]), dbProps, null).load(conn);
+      } finally {
+        conn.close();
+      }
+    } catch (Exception ex) {
+      ex.printStackTrace();
+    }
+    System.exit(0);
+  }
+
+  /*
+   * Stages into dir (a new temp directory if null). Without a key allocator
+   * the loader can only load files staged earlier.
+   */
+  public BulkLoader(File dir, Properties dbProps, KeyAllocator keyAllocator)
+      throws IOException {
+    this.keyAllocator = keyAllocator;
+    this.method = Config.getProperty(dbProps, "db.bulkLoad.method", "auto")
+        .toLowerCase();
+    this.local = Config.getBooleanProperty(dbProps, "db.bulkLoad.local",
+        true);
+    this.rowsPerInsert = Math.max(1, Config.getIntProperty(dbProps,
+        "db.bulkLoad.rowsPerInsert", 500));
+    this.compressor = new PartCompressor(dbProps);
+
+    if (dir == null)
+      dir = Files.createTempDirectory("maildb-bulk").toFile();
+    else if (!dir.isDirectory() && !dir.mkdirs())
+      throw new IOException("Can't create staging directory: " + dir);
+    this.dir = dir;
+
+    this.subscriber = new StagingFile(dir, "Subscriber",
+        "idSubscriber, address, name", "iss");
+    this.envelope = new StagingFile(dir, "Envelope",
+        "idEnvelope, messageID, subject, sendDate, xmailer, useragent, bodyImported, idConversation",
+        "issdssii");
+    this.envelopeSubscriber = new StagingFile(dir, "Envelope_Subscriber",
+        "idEnvelope, idSubscriber, type", "iis");
+    this.partBlob = new StagingFile(dir, "PartBlob",
+        "digest, content, contentLength, codec", "sbii");
+    this.part = new StagingFile(dir, "Part",
+        "idPart, filename, content, contentType, contentLength, decodedContent, idReferencedEnvelope, digest, codec",
+        "isbsisisi");
+    this.envelopePart = new StagingFile(dir, "Envelope_Part",
+        "idEnvelope, idPart, idParent", "iii");
+    // not a table, updates Envelope once it is loaded
+    this.envelopeBody = new StagingFile(dir, "EnvelopeBody",
+        "idEnvelope, bodyImported, idConversation", "iii");
+
+    if (keyAllocator != null) {
+      for (StagingFile f : this.getFiles()) {
+        if (f.getFile().exists() || this.envelopeBody.getFile().exists())
+          throw new IOException("Staging files of an earlier run in " + dir
+              + ", load them with BulkLoader or remove them");
+      }
+    }
+  }
+
+  public Transaction begin() {
+    return new Transaction(String.valueOf(this.transactions.incrementAndGet()));
+  }
+
+  /*
+   * Staged keys come from KeySequence and the dedup maps only know this
+   * run, so rows already in the tables would collide with the staged ones.
+   */
+  public void checkEmpty(Connection conn) throws SQLException {
+    for (StagingFile f : this.getFiles())
+      this.checkEmpty(conn, f.getTable());
+  }
+
+  private void checkEmpty(Connection conn, String table) throws SQLException {
+    Statement stmnt = conn.createStatement();
+    try {
+      stmnt.setMaxRows(1);
+      ResultSet rs = stmnt.executeQuery("select 1 from " + table);
+      boolean empty = !rs.next();
+      rs.close();
+      if (!empty)
+        throw new SQLException("Bulk load needs empty tables, " + table
+            + " has rows");
+    } finally {
+      stmnt.close();
+    }
+  }
+
+  public void close() throws IOException {
+    for (StagingFile f : this.getFiles())
+      f.close();
+    this.envelopeBody.close();
+  }
+
+  public void commit(Transaction tx) throws SQLException {
+    try {
+      this.envelope.append(tx.envelope);
+      this.envelopeSubscriber.append(tx.envelopeSubscriber);
+      this.part.append(tx.part);
+      this.envelopePart.append(tx.envelopePart);
+      this.envelopeBody.append(tx.envelopeBody);
+      tx.messageIds.clear();
+      tx.claimed.clear();
+    } catch (IOException e) {
+      throw new SQLException("Staging commit failed: " + e.getMessage(), e);
+    }
+  }
+
+  /*
+   * ALTER TABLE ... DISABLE KEYS only applies to MyISAM, so the secondary
+   * indexes are dropped for the load and added back in a single ALTER
+   * TABLE, sorting each index once instead of inserting row by row.
+   * Returns that ALTER TABLE, null if the table has no secondary indexes.
+   */
+  private String dropIndexes(Statement stmnt, String table)
+      throws SQLException {
+    LinkedHashMap<String, StringBuilder> indexes = new LinkedHashMap<String, StringBuilder>();
+    ResultSet rs = stmnt.executeQuery("SHOW INDEX FROM " + table);
+    while (rs.next()) {
+      String name = rs.getString("Key_name");
+      if (name.equals("PRIMARY"))
+        continue;
+
+      // one row per column in index order
+      StringBuilder columns = indexes.get(name);
+      if (columns == null)
+        indexes.put(name, columns = new StringBuilder(
+            (rs.getInt("Non_unique") == 0 ? "UNIQUE " : "") + "KEY `" + name
+                + "` ("));
+      else
+        columns.append(", ");
+      columns.append('`').append(rs.getString("Column_name")).append('`');
+      String prefix = rs.getString("Sub_part");
+      if (prefix != null)
+        columns.append('(').append(prefix).append(')');
+    }
+    rs.close();
+    if (indexes.isEmpty())
+      return null;
+
+    StringBuilder drop = new StringBuilder("ALTER TABLE " + table);
+    StringBuilder add = new StringBuilder("ALTER TABLE " + table);
+    String separator = " ";
+    for (String name : indexes.keySet()) {
+      drop.append(separator).append("DROP KEY `").append(name).append('`');
+      add.append(separator).append("ADD ").append(indexes.get(name)).append(
+          ')');
+      separator = ", ";
+    }
+    stmnt.execute(drop.toString());
+    return add.toString();
+  }
+
+  public File getDirectory() {
+    return this.dir;
+  }
+
+  private StagingFile[] getFiles() {
+    // parents first
+    return new StagingFile[] { this.subscriber, this.envelope,
+        this.envelopeSubscriber, this.partBlob, this.part, this.envelopePart };
+  }
+
+  /*
+   * Stages the envelope and its subscriber links. A Message-ID seen before
+   * yields the earlier key and marks the message as duplicate, unless it
+   * was only seen attached to another message.
+   */
+  public boolean insertEnvelope(Transaction tx, EmailMessage email)
+      throws SQLException {
+    int key = this.keyAllocator.next("Envelope", "idEnvelope");
+    if (email.messageid != null) {
+      String messageid = email.messageid.toLowerCase();
+      Integer existing = this.envelopes.putIfAbsent(messageid,
+          email.referenced ? -key : key);
+      if (existing != null) {
+        email.key = Math.abs(existing);
+        if (existing < 0 && !email.referenced
+            && this.envelopes.replace(messageid, existing, email.key)) {
+          // the subscriber links are staged, the parts follow
+          tx.claimed.add(messageid);
+          try {
+            tx.envelopeBody.add(email.key, email.bodyImported,
+                email.conversation != 0 ? email.conversation : null);
+          } catch (IOException e) {
+            throw new SQLException("Staging envelope failed: "
+                + e.getMessage(), e);
+          }
+        } else
+          email.duplicate = true;
+        return true;
+      }
+      tx.messageIds.add(messageid);
+    }
+    email.key = key;
+
+    try {
+      tx.envelope.add(key, email.messageid, email.subject, email.senddate,
+          email.xmailer, email.useragent, email.bodyImported,
+          email.conversation != 0 ? email.conversation : null);
+
+      // Envelope_Subscriber is keyed by (idEnvelope, idSubscriber, type)
+      this.stageLinks(tx, key, email.from, "From");
+      this.stageLinks(tx, key, email.to, "To");
+      this.stageLinks(tx, key, email.replyto, "Replyto");
+      this.stageLinks(tx, key, email.cc, "CC");
+    } catch (IOException e) {
+      throw new SQLException("Staging envelope failed: " + e.getMessage(), e);
+    }
+    return true;
+  }
+
+  public boolean insertPart(Transaction tx, EmailPart ep,
+      boolean dedupContent) throws SQLException {
+    ep.key = this.keyAllocator.next("Part", "idPart");
+    PartContent encoded = null;
+    String digest = null;
+
+    try {
+      if (dedupContent && ep.content != null) {
+        digest = ep.content.getDigest();
+        if (this.digests.add(digest)) {
+          encoded = this.compressor.encode(ep.content, ep.contentType);
+          this.partBlob.add(digest, encoded, ep.content.length(), encoded
+              .getCodec());
+        }
+        tx.part.add(ep.key, ep.fileName, null, ep.contentType, ep.content
+            .length(), ep.decodedContent, ep.referencedEmailKey, digest,
+            PartContent.CODEC_NONE);
+      } else {
+        encoded = this.compressor.encode(ep.content, ep.contentType);
+        tx.part.add(ep.key, ep.fileName, encoded, ep.contentType,
+            ep.content != null ? ep.content.length() : 0, ep.decodedContent,
+            ep.referencedEmailKey, null, encoded != null ? encoded.getCodec()
+                : PartContent.CODEC_NONE);
+      }
+      tx.envelopePart.add(ep.emailKey, ep.key, ep.parentKey);
+    } catch (IOException e) {
+      throw new SQLException("Staging part failed: " + e.getMessage(), e);
+    } finally {
+      if (encoded != null && encoded != ep.content)
+        encoded.dispose();
+    }
+    return true;
+  }
+
+  public Vector<Integer> insertSubscriber(InternetAddress[] a)
+      throws SQLException {
+    Vector<Integer> keys = new Vector<Integer>();
+    for (int j = 0; j < a.length; j++) {
+      // the unique keys compare case insensitive
+      String cacheKey = SubscriberCache.key(a[j].getAddress(), a[j]
+          .getPersonal()).toLowerCase();
+      Integer key = this.subscribers.get(cacheKey);
+      if (key == null) {
+        int next = this.keyAllocator.next("Subscriber", "idSubscriber");
+        if ((key = this.subscribers.putIfAbsent(cacheKey, next)) == null) {
+          key = next;
+          try {
+            this.subscriber.add(key, a[j].getAddress(), a[j].getPersonal());
+          } catch (IOException e) {
+            throw new SQLException("Staging subscriber failed: "
+                + e.getMessage(), e);
+          }
+        }
+      }
+      keys.add(key);
+    }
+    return keys;
+  }
+
+  /*
+   * Loads all staging files through conn and removes them on success
+   */
+  public void load(Connection conn) throws SQLException, IOException {
+    this.close();
+
+    boolean loadData = this.method.equals("loaddata");
+    if (this.method.equals("auto")) {
+      String product = conn.getMetaData().getDatabaseProductName()
+          .toLowerCase();
+      loadData = product.contains("mysql") || product.contains("mariadb");
+    }
+
+    // a table is loaded whole, its file is removed once it is committed
+    for (StagingFile f : this.getFiles()) {
+      if (f.getFile().exists())
+        this.checkEmpty(conn, f.getTable());
+    }
+
+    Statement stmnt = conn.createStatement();
+    if (loadData) {
+      stmnt.execute("SET unique_checks = 0");
+      stmnt.execute("SET foreign_key_checks = 0");
+    }
+
+    try {
+      for (StagingFile f : this.getFiles()) {
+        if (!f.getFile().exists())
+          continue;
+
+        long start = System.currentTimeMillis();
+        long rows;
+        if (loadData) {
+          String addIndexes = this.dropIndexes(stmnt, f.getTable());
+          try {
+            rows = stmnt.executeUpdate("LOAD DATA "
+                + (this.local ? "LOCAL " : "") + "INFILE '"
+                + f.getFile().getAbsolutePath().replace("\\", "\\\\")
+                    .replace("'", "\\'") + "' INTO TABLE " + f.getTable()
+                + " CHARACTER SET binary (" + f.getColumns() + ")");
+          } finally {
+            if (addIndexes != null)
+              stmnt.execute(addIndexes);
+          }
+        } else
+          rows = this.insertRows(conn, f);
+
+        if (!conn.getAutoCommit())
+          conn.commit();
+        f.getFile().delete();
+        System.out.println("Bulk loaded " + rows + " rows into "
+            + f.getTable() + " in " + (System.currentTimeMillis() - start)
+            + "ms");
+      }
+
+      if (this.envelopeBody.getFile().exists()) {
+        long rows = this.updateBodies(conn);
+        if (!conn.getAutoCommit())
+          conn.commit();
+        this.envelopeBody.getFile().delete();
+        System.out.println("Bulk updated bodyImported of " + rows
+            + " envelopes");
+      }
+    } finally {
+      if (loadData) {
+        stmnt.execute("SET unique_checks = 1");
+        stmnt.execute("SET foreign_key_checks = 1");
+      }
+      stmnt.close();
+    }
+
+    this.dir.delete();
+  }
+
+  private long insertRows(Connection conn, StagingFile f) throws SQLException,
+      IOException {
+    int width = f.getTypes().length();
+    PreparedStatement full = null;
+    Vector<Object[]> rows = new Vector<Object[]>();
+    long count = 0;
+
+    StagingFile.Reader reader = f.open();
+    try {
+      Object[] row;
+      while (true) {
+        row = reader.next();
+        if (row != null)
+          rows.add(row);
+        if (rows.size() == this.rowsPerInsert
+            || (row == null && rows.size() > 0)) {
+          PreparedStatement stmnt;
+          if (rows.size() == this.rowsPerInsert) {
+            if (full == null)
+              full = this.prepareInsert(conn, f, rows.size());
+            stmnt = full;
+          } else
+            stmnt = this.prepareInsert(conn, f, rows.size());
+
+          int idx = 1;
+          for (Object[] r : rows) {
+            for (int c = 0; c < width; c++)
+              stmnt.setObject(idx++, r[c]);
+          }
+          count += stmnt.executeUpdate();
+          if (stmnt != full)
+            stmnt.close();
+          rows.clear();
+        }
+        if (row == null)
+          break;
+      }
+    } finally {
+      reader.close();
+      if (full != null)
+        full.close();
+    }
+    return count;
+  }
+
+  private PreparedStatement prepareInsert(Connection conn, StagingFile f,
+      int rows) throws SQLException {
+    StringBuilder sql = new StringBuilder("INSERT INTO ").append(f.getTable())
+        .append(" (").append(f.getColumns()).append(") values ");
+    StringBuilder values = new StringBuilder("(");
+    for (int c = 0; c < f.getTypes().length(); c++)
+      values.append(c > 0 ? ", ?" : "?");
+    values.append(')');
+
+    for (int i = 0; i < rows; i++)
+      sql.append(i > 0 ? ", " : "").append(values);
+    return conn.prepareStatement(sql.toString());
+  }
+
+  /*
+   * Drops the rows of the transaction and forgets its Message-IDs, so the
+   * messages are staged again when they are replayed
+   */
+  public void rollback(Transaction tx) {
+    for (String messageid : tx.messageIds)
+      this.envelopes.remove(messageid);
+    for (String messageid : tx.claimed) {
+      Integer key = this.envelopes.get(messageid);
+      if (key != null)
+        this.envelopes.replace(messageid, key, -key);
+    }
+    tx.messageIds.clear();
+    tx.claimed.clear();
+    tx.envelope.discard();
+    tx.envelopeSubscriber.discard();
+    tx.part.discard();
+    tx.envelopePart.discard();
+    tx.envelopeBody.discard();
+  }
+
+  private long updateBodies(Connection conn) throws SQLException, IOException {
+    PreparedStatement stmnt = conn
+        .prepareStatement("update Envelope set bodyImported = ?, idConversation = ? where idEnvelope = ?");
+    long count = 0;
+    int pending = 0;
+
+    StagingFile.Reader reader = this.envelopeBody.open();
+    try {
+      Object[] row;
+      while ((row = reader.next()) != null) {
+        stmnt.setObject(1, row[1]);
+        stmnt.setObject(2, row[2]);
+        stmnt.setObject(3, row[0]);
+        stmnt.addBatch();
+        if (++pending == this.rowsPerInsert) {
+          for (int n : stmnt.executeBatch())
+            count += Math.max(n, 0);
+          pending = 0;
+        }
+      }
+      if (pending > 0) {
+        for (int n : stmnt.executeBatch())
+          count += Math.max(n, 0);
+      }
+    } finally {
+      reader.close();
+      stmnt.close();
+    }
+    return count;
+  }
+
+  private void stageLinks(Transaction tx, int key,
+      Vector<Integer> subscribers, String type) throws IOException {
+    if (subscribers == null)
+      return;
+
+    HashSet<Integer> linked = new HashSet<Integer>();
+    for (Integer s : subscribers) {
+      if (linked.add(s))
+        tx.envelopeSubscriber.add(key, s, type);
+    }
+  }
+}
@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.util.Properties;
+
+/*
+ * Typed lookups of the config file. Values are trimmed and may be quoted,
+ * empty ones count as missing.
+ */
+public class Config {
+  public static boolean getBooleanProperty(Properties props, String key,
+      boolean defaultValue) {
+    String value = getProperty(props, key, null);
+    return value != null ? value.equalsIgnoreCase("true") : defaultValue;
+  }
+
+  public static int getIntProperty(Properties props, String key,
+      int defaultValue) {
+    String value = getProperty(props, key, null);
+    return value != null ? Integer.parseInt(value) : defaultValue;
+  }
+
+  public static String getProperty(Properties props, String key,
+      String defaultValue) {
+    String value = props.getProperty(key);
+    if (value == null)
+      return defaultValue;
+
+    value = value.trim();
+    if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\""))
+      value = value.substring(1, value.length() - 1).trim();
+    return value.length() > 0 ? value : defaultValue;
+  }
+}
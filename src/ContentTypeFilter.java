@@ -0,0 +1,76 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.util.StringTokenizer;
+import java.util.Vector;
+
+/*
+ * Include/exclude lists of MIME types like "text/*, application/pdf". A type
+ * is accepted if it matches the include list (or that is empty) and doesn't
+ * match the exclude list.
+ */
+public class ContentTypeFilter {
+  private Vector<String> include;
+  private Vector<String> exclude;
+
+  private static Vector<String> parse(String types) {
+    Vector<String> patterns = new Vector<String>();
+    if (types == null)
+      return patterns;
+
+    StringTokenizer t = new StringTokenizer(types, ", ");
+    while (t.hasMoreTokens()) {
+      String pattern = t.nextToken().toLowerCase();
+      // "text/*" and "text/" both match the whole primary type
+      if (pattern.endsWith("*"))
+        pattern = pattern.substring(0, pattern.length() - 1);
+      patterns.add(pattern);
+    }
+    return patterns;
+  }
+
+  private static boolean matches(Vector<String> patterns, String type) {
+    for (String pattern : patterns) {
+      if (pattern.endsWith("/") ? type.startsWith(pattern) : type
+          .equals(pattern))
+        return true;
+    }
+    return false;
+  }
+
+  public ContentTypeFilter(String include, String exclude) {
+    this.include = parse(include);
+    this.exclude = parse(exclude);
+  }
+
+  public boolean accepts(String contentType) {
+    if (contentType == null)
+      contentType = "text/plain";
+
+    // drop the parameters
+    int semicolon = contentType.indexOf(';');
+    String type = (semicolon > -1 ? contentType.substring(0, semicolon)
+        : contentType).trim().toLowerCase();
+
+    return (this.include.isEmpty() || matches(this.include, type))
+        && !matches(this.exclude, type);
+  }
+
+  public boolean isEmpty() {
+    return this.include.isEmpty() && this.exclude.isEmpty();
+  }
+}
@@ -0,0 +1,479 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Vector;
+
+/*
+ * Threads messages into conversations while they are imported. Every
+ * Message-ID, including ones only referenced so far, is a node of a
+ * union-find; a message joins the sets of its In-Reply-To and References
+ * ids, so replies arriving before the message they answer still end up in
+ * one conversation. When a message links two conversations the younger one
+ * is merged into the older.
+ *
+ * The index is authoritative in memory. It is written to Conversation
+ * (one summary row each) and ConversationMessage (Message-ID ->
+ * conversation) on a connection of its own every flushMessages committed
+ * messages and on close, and loaded from there on startup. Nodes are
+ * keyed like ConversationMessage.messageID compares: case insensitive and
+ * cut to its 256 characters.
+ */
+public class ConversationIndex {
+  private final static int ID_LENGTH = 256;
+  private final static int PAGE_ROWS = 10000;
+
+  private Connection conn;
+  private SqlDialect dialect;
+  private int flushMessages;
+  private int committed = 0;
+
+  private HashMap<String, Integer> nodes = new HashMap<String, Integer>();
+  private int[] parent = new int[1024];
+  private int[] conversation = new int[1024];
+  private boolean[] seen = new boolean[1024];
+  private int nodeCount = 0;
+  private int nextConversation = 1;
+
+  private HashMap<Integer, Summary> summaries = new HashMap<Integer, Summary>();
+  private HashSet<Integer> dirty = new HashSet<Integer>();
+  private Vector<String> newNodes = new Vector<String>();
+  private Vector<int[]> merges = new Vector<int[]>();
+  private Vector<int[]> lastMerges = new Vector<int[]>();
+
+  public static class Summary {
+    public int id;
+    public String rootMessageID;
+    public String subject;
+    public Date firstDate;
+    public Date lastDate;
+    public int messages;
+
+    void add(Summary other) {
+      this.messages += other.messages;
+      if (other.firstDate != null
+          && (this.firstDate == null || other.firstDate.before(this.firstDate))) {
+        this.firstDate = other.firstDate;
+        this.rootMessageID = other.rootMessageID;
+        this.subject = other.subject;
+      }
+      if (other.lastDate != null
+          && (this.lastDate == null || other.lastDate.after(this.lastDate)))
+        this.lastDate = other.lastDate;
+      if (this.rootMessageID == null) {
+        this.rootMessageID = other.rootMessageID;
+        this.subject = other.subject;
+      }
+    }
+  }
+
+  /*
+   * The ids in a References or In-Reply-To header, <...> tokens or, for
+   * broken mailers, whitespace separated words
+   */
+  public static Vector<String> parseIds(String header) {
+    Vector<String> ids = new Vector<String>();
+    if (header == null)
+      return ids;
+
+    int start = -1;
+    for (int i = 0; i < header.length(); i++) {
+      char c = header.charAt(i);
+      if (c == '<')
+        start = i;
+      else if (c == '>' && start > -1) {
+        ids.add(header.substring(start, i + 1));
+        start = -1;
+      }
+    }
+
+    if (ids.isEmpty()) {
+      for (String word : header.trim().split("\\s+")) {
+        if (word.indexOf('@') > -1)
+          ids.add(word);
+      }
+    }
+    return ids;
+  }
+
+  public ConversationIndex(Connection conn, SqlDialect dialect,
+      int flushMessages) throws SQLException {
+    this.conn = conn;
+    this.dialect = dialect;
+    this.flushMessages = flushMessages;
+    this.conn.setAutoCommit(false);
+    this.load();
+  }
+
+  /*
+   * Assigns email to its conversation before its envelope is written. A
+   * message without Message-ID keeps the id it got on an earlier attempt.
+   * Returns the conversation id.
+   */
+  public synchronized int assign(EmailMessage email) {
+    if (email.messageid == null) {
+      if (email.conversation == 0)
+        email.conversation = this.nextConversation++;
+      return email.conversation;
+    }
+
+    int node = this.node(email.messageid);
+    if (email.references != null) {
+      for (String ref : email.references)
+        node = this.union(node, this.node(ref));
+    }
+
+    int root = this.find(node);
+    if (this.conversation[root] == 0)
+      this.conversation[root] = this.nextConversation++;
+    return email.conversation = this.conversation[root];
+  }
+
+  public synchronized void close() throws SQLException {
+    try {
+      this.flush();
+    } finally {
+      this.conn.close();
+    }
+  }
+
+  /*
+   * Adds a committed message to the summary of its conversation, once per
+   * Message-ID, and flushes every flushMessages of them (0 only flushes on
+   * close)
+   */
+  public void committed(EmailMessage email) throws SQLException {
+    synchronized (this) {
+      Summary msg = new Summary();
+      msg.rootMessageID = email.messageid;
+      msg.subject = email.subject;
+      msg.firstDate = msg.lastDate = email.senddate;
+      msg.messages = 1;
+
+      int id = email.conversation;
+      boolean count = true;
+      if (email.messageid != null) {
+        int self = this.nodes.get(key(email.messageid));
+        // merged since it was assigned
+        id = this.conversation[this.find(self)];
+        count = !this.seen[self];
+        this.seen[self] = true;
+      }
+      if (count && id != 0) {
+        this.summary(id).add(msg);
+        this.dirty.add(id);
+      }
+
+      if (this.flushMessages <= 0 || ++this.committed < this.flushMessages)
+        return;
+      this.committed = 0;
+    }
+    this.flush();
+  }
+
+  private int find(int node) {
+    int root = node;
+    while (this.parent[root] != root)
+      root = this.parent[root];
+
+    // path compression
+    while (this.parent[node] != root) {
+      int next = this.parent[node];
+      this.parent[node] = root;
+      node = next;
+    }
+    return root;
+  }
+
+  /*
+   * Writes merges, new Message-IDs and changed summaries. Merges are applied
+   * a second time with the next flush, to catch envelope rows that were
+   * still uncommitted on the writers' connections.
+   */
+  public synchronized void flush() throws SQLException {
+    PreparedStatement mergeEnvelope = this.conn
+        .prepareStatement("update Envelope set idConversation = ? where idConversation = ?");
+    PreparedStatement mergeMessage = this.conn
+        .prepareStatement("update ConversationMessage set idConversation = ? where idConversation = ?");
+    PreparedStatement delete = this.conn
+        .prepareStatement("delete from Conversation where idConversation = ?");
+    PreparedStatement insert = this.conn
+        .prepareStatement("INSERT INTO Conversation (idConversation, rootMessageID, subject, firstDate, lastDate, messageCount) "
+            + "values (?, ?, ?, ?, ?, ?)");
+    PreparedStatement insertMessage = this.dialect.prepareInsertIgnore(
+        this.conn, "ConversationMessage", new String[] { "messageID",
+            "idConversation" }, 1);
+    try {
+      Vector<int[]> merges = new Vector<int[]>(this.lastMerges);
+      merges.addAll(this.merges);
+      for (int[] merge : merges) {
+        mergeEnvelope.setInt(1, merge[0]);
+        mergeEnvelope.setInt(2, merge[1]);
+        mergeEnvelope.executeUpdate();
+        mergeMessage.setInt(1, merge[0]);
+        mergeMessage.setInt(2, merge[1]);
+        mergeMessage.executeUpdate();
+        delete.setInt(1, merge[1]);
+        delete.executeUpdate();
+      }
+
+      for (String messageid : this.newNodes) {
+        insertMessage.setString(1, messageid);
+        insertMessage.setInt(2, this.conversation[this.find(this.nodes
+            .get(messageid))]);
+        insertMessage.addBatch();
+      }
+      if (!this.newNodes.isEmpty()) {
+        try {
+          insertMessage.executeBatch();
+        } catch (SQLException e) {
+          // H2 and generic databases fail on ids stored by another run,
+          // the rows are inserted one by one then
+          insertMessage.clearBatch();
+          this.insertEach(insertMessage);
+        }
+      }
+
+      for (Integer id : this.dirty) {
+        Summary summary = this.summaries.get(id);
+        delete.setInt(1, id);
+        delete.executeUpdate();
+        if (summary == null)
+          continue;
+
+        insert.setInt(1, id);
+        insert.setString(2, truncate(summary.rootMessageID));
+        insert.setString(3, summary.subject);
+        insert.setDate(4, summary.firstDate);
+        insert.setDate(5, summary.lastDate);
+        insert.setInt(6, summary.messages);
+        insert.addBatch();
+      }
+      if (!this.dirty.isEmpty())
+        insert.executeBatch();
+      this.conn.commit();
+
+      this.lastMerges = this.merges;
+      this.merges = new Vector<int[]>();
+      this.newNodes.clear();
+      this.dirty.clear();
+    } catch (SQLException e) {
+      this.conn.rollback();
+      throw e;
+    } finally {
+      mergeEnvelope.close();
+      mergeMessage.close();
+      delete.close();
+      insert.close();
+      insertMessage.close();
+    }
+  }
+
+  public synchronized Summary getSummary(int id) {
+    return this.summaries.get(id);
+  }
+
+  public synchronized int getConversation(String messageid) {
+    Integer node = this.nodes.get(key(messageid));
+    return node != null ? this.conversation[this.find(node)] : 0;
+  }
+
+  private void insertEach(PreparedStatement insertMessage)
+      throws SQLException {
+    for (String messageid : this.newNodes) {
+      insertMessage.setString(1, messageid);
+      insertMessage.setInt(2, this.conversation[this.find(this.nodes
+          .get(messageid))]);
+      try {
+        insertMessage.executeUpdate();
+      } catch (SQLException e) {
+        if (!this.dialect.isDuplicateKey(e))
+          throw e;
+      }
+    }
+  }
+
+  /*
+   * Reads the tables a page of keys per query, drivers may otherwise buffer
+   * them whole
+   */
+  private void load() throws SQLException {
+    HashMap<Integer, Integer> roots = new HashMap<Integer, Integer>();
+    PreparedStatement page = this.conn
+        .prepareStatement("select messageID, idConversation from ConversationMessage where messageID > ? order by messageID");
+    try {
+      page.setMaxRows(PAGE_ROWS);
+      String last = "";
+      int rows;
+      do {
+        page.setString(1, last);
+        ResultSet rs = page.executeQuery();
+        for (rows = 0; rs.next(); rows++)
+          this.load(last = rs.getString(1), rs.getInt(2), roots, false);
+        rs.close();
+      } while (rows == PAGE_ROWS);
+    } finally {
+      page.close();
+    }
+
+    // messages imported after the last flush
+    page = this.conn
+        .prepareStatement("select idEnvelope, messageID, idConversation from Envelope where idEnvelope > ? and idConversation is not null order by idEnvelope");
+    try {
+      page.setMaxRows(PAGE_ROWS);
+      int last = 0;
+      int rows;
+      do {
+        page.setInt(1, last);
+        ResultSet rs = page.executeQuery();
+        for (rows = 0; rs.next(); rows++) {
+          last = rs.getInt(1);
+          this.load(rs.getString(2), rs.getInt(3), roots, true);
+        }
+        rs.close();
+      } while (rows == PAGE_ROWS);
+    } finally {
+      page.close();
+    }
+    this.newNodes.clear();
+
+    page = this.conn
+        .prepareStatement("select idConversation, rootMessageID, subject, firstDate, lastDate, messageCount from Conversation where idConversation > ? order by idConversation");
+    try {
+      page.setMaxRows(PAGE_ROWS);
+      int last = 0;
+      int rows;
+      do {
+        page.setInt(1, last);
+        ResultSet rs = page.executeQuery();
+        for (rows = 0; rs.next(); rows++) {
+          Summary summary = new Summary();
+          last = summary.id = rs.getInt(1);
+          summary.rootMessageID = rs.getString(2);
+          summary.subject = rs.getString(3);
+          summary.firstDate = rs.getDate(4);
+          summary.lastDate = rs.getDate(5);
+          summary.messages = rs.getInt(6);
+          this.summaries.put(summary.id, summary);
+          this.nextConversation = Math.max(this.nextConversation,
+              summary.id + 1);
+        }
+        rs.close();
+      } while (rows == PAGE_ROWS);
+    } finally {
+      page.close();
+    }
+  }
+
+  private void load(String messageid, int id, HashMap<Integer, Integer> roots,
+      boolean seen) {
+    this.nextConversation = Math.max(this.nextConversation, id + 1);
+    if (messageid == null)
+      return;
+
+    int node = this.node(messageid);
+    this.seen[node] |= seen;
+    Integer root = roots.get(id);
+    if (root == null) {
+      roots.put(id, node);
+      if (this.conversation[this.find(node)] == 0)
+        this.conversation[this.find(node)] = id;
+    } else if (this.find(node) != this.find(root)) {
+      this.parent[this.find(node)] = this.find(root);
+    }
+  }
+
+  private static String key(String messageid) {
+    return truncate(messageid.trim().toLowerCase());
+  }
+
+  private int node(String messageid) {
+    String key = key(messageid);
+    Integer node = this.nodes.get(key);
+    if (node != null)
+      return node;
+
+    if (this.nodeCount == this.parent.length) {
+      int size = this.parent.length * 2;
+      this.parent = Arrays.copyOf(this.parent, size);
+      this.conversation = Arrays.copyOf(this.conversation, size);
+      this.seen = Arrays.copyOf(this.seen, size);
+    }
+    node = this.nodeCount++;
+    this.parent[node] = node;
+    this.conversation[node] = 0;
+    this.seen[node] = false;
+    this.nodes.put(key, node);
+    this.newNodes.add(key);
+    return node;
+  }
+
+  private Summary summary(int id) {
+    Summary summary = this.summaries.get(id);
+    if (summary == null) {
+      summary = new Summary();
+      summary.id = id;
+      this.summaries.put(id, summary);
+    }
+    return summary;
+  }
+
+  private static String truncate(String messageid) {
+    return messageid != null && messageid.length() > ID_LENGTH ? messageid
+        .substring(0, ID_LENGTH) : messageid;
+  }
+
+  /*
+   * Joins the sets of a and b, the older conversation survives
+   */
+  private int union(int a, int b) {
+    int rootA = this.find(a);
+    int rootB = this.find(b);
+    if (rootA == rootB)
+      return rootA;
+
+    int convA = this.conversation[rootA];
+    int convB = this.conversation[rootB];
+    int root = rootA, child = rootB;
+    if (convA == 0 || (convB != 0 && convB < convA)) {
+      root = rootB;
+      child = rootA;
+    }
+    this.parent[child] = root;
+
+    int survivor = this.conversation[root];
+    int merged = this.conversation[child];
+    if (survivor == 0) {
+      this.conversation[root] = merged;
+    } else if (merged != 0) {
+      this.merges.add(new int[] { survivor, merged });
+      Summary gone = this.summaries.remove(merged);
+      if (gone != null)
+        this.summary(survivor).add(gone);
+      this.dirty.add(survivor);
+      this.dirty.add(merged);
+    }
+    return root;
+  }
+}
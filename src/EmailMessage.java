@@ -17,12 +17,25 @@
  ******************************************************************************/
 import java.sql.Date;
 import java.util.Vector;
+import javax.mail.internet.InternetAddress;
 
 public class EmailMessage {
+  // Envelope.bodyImported
+  public final static int BODY_NONE = 0;
+  public final static int BODY_COMPLETE = 1;
+  public final static int BODY_PARTIAL = 2;
+  // only stored as an attached message so far, the parts belong to the
+  // message it was attached to
+  public final static int BODY_REFERENCED = 3;
+
   Vector<Integer> from = null;
   Vector<Integer> replyto = null;
   Vector<Integer> to = null;
   Vector<Integer> cc = null;
+  InternetAddress[] fromAddresses = null;
+  InternetAddress[] replytoAddresses = null;
+  InternetAddress[] toAddresses = null;
+  InternetAddress[] ccAddresses = null;
   int key;
   int nr;
   String messageid;
@@ -30,5 +43,9 @@ public class EmailMessage {
   Date senddate;
   String xmailer;
   String useragent;
+  Vector<String> references = null;
+  int conversation = 0;
   boolean referenced = false;
+  boolean duplicate = false;
+  int bodyImported = BODY_COMPLETE;
 }
@@ -15,6 +15,7 @@
  * along with this program; if not, write to the Free Software
  * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
  ******************************************************************************/
+import java.io.IOException;
 import java.util.Vector;
 
 public class EmailPart {
@@ -22,16 +23,43 @@ public class EmailPart {
   int parentKey;
   int emailKey;
   int referencedEmailKey = 0;
+  EmailMessage referencedEmail = null;
   String contentType;
   String fileName;
   String decodedContent;
-  byte[] content;
+  PartContent content;
+  // decodedContent of a part read back from the DB, loaded on every use
+  TextSource decodedSource = null;
 
   Vector<EmailPart> children = new Vector<EmailPart>();
 
+  public interface TextSource {
+    String load() throws IOException;
+  }
+
   public void addChild(EmailPart child) {
     child.emailKey = this.emailKey;
     child.parentKey = this.key;
     this.children.add(child);
   }
+
+  public String getDecodedContent() throws IOException {
+    if (this.decodedContent == null && this.decodedSource != null)
+      return this.decodedSource.load();
+    return this.decodedContent;
+  }
+
+  public long length() {
+    long length = this.content != null ? this.content.length() : 0;
+    for (EmailPart child : this.children)
+      length += child.length();
+    return length;
+  }
+
+  public void dispose() {
+    if (this.content != null)
+      this.content.dispose();
+    for (EmailPart child : this.children)
+      child.dispose();
+  }
 }
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.io.UnsupportedEncodingException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Vector;
+import javax.mail.internet.InternetAddress;
+
+/*
+ * Streams envelopes with their subscribers out of a query ordered by
+ * idEnvelope, one EmailMessage per next() call. The result set is read in
+ * chunks of the statement's fetch size, close the cursor when done.
+ */
+public class EnvelopeCursor {
+  private PreparedStatement stmnt;
+  private ResultSet rs;
+  private boolean hasRow;
+  private LRUCache<Integer, EmailMessage> cache;
+
+  public EnvelopeCursor(PreparedStatement stmnt,
+      LRUCache<Integer, EmailMessage> cache) throws SQLException {
+    this.stmnt = stmnt;
+    this.cache = cache;
+    this.rs = stmnt.executeQuery();
+    this.hasRow = this.rs.next();
+  }
+
+  public void close() throws SQLException {
+    try {
+      this.rs.close();
+    } finally {
+      this.stmnt.close();
+    }
+  }
+
+  public EmailMessage next() throws SQLException {
+    if (!this.hasRow)
+      return null;
+
+    EmailMessage email = new EmailMessage();
+    email.key = this.rs.getInt(1);
+    email.messageid = this.rs.getString(2);
+    email.subject = this.rs.getString(3);
+    email.senddate = this.rs.getDate(4);
+    email.xmailer = this.rs.getString(5);
+    email.useragent = this.rs.getString(6);
+    email.bodyImported = this.rs.getInt(7);
+    email.conversation = this.rs.getInt(8);
+
+    Vector<InternetAddress> from = new Vector<InternetAddress>();
+    Vector<InternetAddress> to = new Vector<InternetAddress>();
+    Vector<InternetAddress> cc = new Vector<InternetAddress>();
+    Vector<InternetAddress> replyto = new Vector<InternetAddress>();
+
+    // one row per subscriber, null columns if there are none
+    do {
+      String type = this.rs.getString(9);
+      String address = this.rs.getString(10);
+      if (type == null || address == null)
+        continue;
+
+      InternetAddress a = address(address, this.rs.getString(11));
+      if (type.equalsIgnoreCase("From"))
+        from.add(a);
+      else if (type.equalsIgnoreCase("To"))
+        to.add(a);
+      else if (type.equalsIgnoreCase("CC"))
+        cc.add(a);
+      else
+        replyto.add(a);
+    } while ((this.hasRow = this.rs.next()) && this.rs.getInt(1) == email.key);
+
+    email.fromAddresses = from.toArray(new InternetAddress[from.size()]);
+    email.toAddresses = to.toArray(new InternetAddress[to.size()]);
+    email.ccAddresses = cc.toArray(new InternetAddress[cc.size()]);
+    email.replytoAddresses = replyto.toArray(new InternetAddress[replyto
+        .size()]);
+
+    if (this.cache != null)
+      this.cache.put(email.key, email);
+    return email;
+  }
+
+  private static InternetAddress address(String address, String name) {
+    InternetAddress a = new InternetAddress();
+    a.setAddress(address);
+    try {
+      a.setPersonal(name);
+    } catch (UnsupportedEncodingException e) {}
+    return a;
+  }
+}
@@ -0,0 +1,355 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.Vector;
+
+/*
+ * Inverted index over envelope subjects and text parts, kept as immutable
+ * segment files in index.dir. Documents are added once their envelope is
+ * committed, buffered and written out as a new segment every
+ * index.flushDocs documents. Once there are more than index.maxSegments
+ * segments the smallest ones are merged. Buffered documents are lost when
+ * an import stops early, rebuild() indexes them again from the database.
+ */
+public class FullTextIndex {
+  private final static String SUFFIX = ".fti";
+  private final static long MAX_MERGE_BYTES = 1L << 30;
+  private final static int PAGE_ROWS = 1000;
+
+  private File dir;
+  private int flushDocs = 10000;
+  private int maxSegments = 16;
+  private int nextSegment = 1;
+  private Vector<IndexSegment> segments = new Vector<IndexSegment>();
+  private Vector<IndexDocument> pending = new Vector<IndexDocument>();
+  private IndexSegment pendingSegment = null;
+
+  public static void main(String argv[]) {
+    try {
+      if (argv.length < 2) {
+        System.err.println("Usage: FullTextIndex <index dir> <query>");
+        System.err.println("       FullTextIndex -rebuild <config file>");
+        System.exit(1);
+      }
+
+      if (argv[0].equals("-rebuild")) {
+        Properties importProps = new Properties();
+        FileReader r = new FileReader(argv[1]);
+        importProps.load(r);
+        r.close();
+
+        String indexDir = Config.getProperty(importProps, "index.dir", null);
+        if (indexDir == null) {
+          System.err.println("No index.dir in " + argv[1]);
+          System.exit(1);
+        }
+        FullTextIndex index = new FullTextIndex(new File(indexDir),
+            importProps);
+        MailDB db = new MailDB(importProps);
+        db.setTruncateOnConnect(false);
+        db.connect();
+        try {
+          int count = index.rebuild(db);
+          index.close();
+          System.out.println(count + " envelopes indexed");
+        } finally {
+          db.close();
+        }
+        System.exit(0);
+      }
+
+      StringBuilder query = new StringBuilder();
+      for (int i = 1; i < argv.length; i++)
+        query.append(argv[i]).append(' ');
+
+      FullTextIndex index = new FullTextIndex(new File(argv[0]),
+          new Properties());
+      long start = System.nanoTime();
+      int[] ids = index.search(query.toString());
+      long millis = (System.nanoTime() - start) / 1000000;
+
+      for (int id : ids)
+        System.out.println(id);
+      System.err.println(ids.length + " envelopes in " + millis + " ms");
+    } catch (Exception ex) {
+      ex.printStackTrace();
+    }
+    System.exit(0);
+  }
+
+  public FullTextIndex(File dir, Properties props) throws IOException {
+    this.dir = dir;
+    this.flushDocs = Math.max(1, Config.getIntProperty(props,
+        "index.flushDocs", this.flushDocs));
+    this.maxSegments = Math.max(2, Config.getIntProperty(props,
+        "index.maxSegments", this.maxSegments));
+
+    if (!dir.isDirectory() && !dir.mkdirs())
+      throw new IOException("Can't create index directory: " + dir);
+
+    File[] files = dir.listFiles();
+    Vector<File> segmentFiles = new Vector<File>();
+    for (File f : files) {
+      if (f.getName().endsWith(".tmp"))
+        f.delete();
+      else if (f.getName().endsWith(SUFFIX))
+        segmentFiles.add(f);
+    }
+    Collections.sort(segmentFiles);
+    for (File f : segmentFiles) {
+      this.segments.add(new IndexSegment(f));
+      String name = f.getName();
+      int nr = Integer.parseInt(name.substring(4, name.length()
+          - SUFFIX.length()));
+      this.nextSegment = Math.max(this.nextSegment, nr + 1);
+    }
+  }
+
+  public synchronized void add(IndexDocument doc) throws IOException {
+    this.pending.add(doc);
+    this.pendingSegment = null;
+    if (this.pending.size() >= this.flushDocs)
+      this.flush();
+  }
+
+  public synchronized void clear() {
+    for (IndexSegment s : this.segments)
+      s.getFile().delete();
+    this.segments.clear();
+    this.pending.clear();
+    this.pendingSegment = null;
+  }
+
+  public synchronized void close() throws IOException {
+    this.flush();
+  }
+
+  public synchronized void flush() throws IOException {
+    if (this.pending.isEmpty())
+      return;
+
+    File file = this.newSegmentFile();
+    File tmp = new File(file.getPath() + ".tmp");
+    this.write(new IndexSegment.Writer(tmp), this.pending);
+    if (!tmp.renameTo(file))
+      throw new IOException("Can't rename " + tmp + " to " + file);
+
+    this.segments.add(new IndexSegment(file));
+    this.pending.clear();
+    this.pendingSegment = null;
+
+    if (this.segments.size() > this.maxSegments)
+      this.merge();
+  }
+
+  public synchronized int getSegmentCount() {
+    return this.segments.size();
+  }
+
+  /*
+   * Indexes the envelopes found in no segment, a page of keys at a time.
+   * Envelopes without any text are looked at again on every rebuild.
+   * Returns the number of envelopes added.
+   */
+  public synchronized int rebuild(MailDB db) throws SQLException,
+      IOException {
+    this.flush();
+    int[] indexed = new int[0];
+    for (IndexSegment s : this.segments)
+      indexed = FullTextQuery.union(indexed, s.getDocs());
+
+    PreparedStatement page = db.getConnection().prepareStatement(
+        "select idEnvelope, subject from Envelope where idEnvelope > ? order by idEnvelope");
+    page.setMaxRows(PAGE_ROWS);
+    int[] keys = new int[PAGE_ROWS];
+    String[] subjects = new String[PAGE_ROWS];
+    int last = 0;
+    int added = 0;
+    int rows;
+    try {
+      do {
+        page.setInt(1, last);
+        ResultSet rs = page.executeQuery();
+        for (rows = 0; rs.next(); rows++) {
+          keys[rows] = last = rs.getInt(1);
+          subjects[rows] = rs.getString(2);
+        }
+        rs.close();
+
+        // the part trees are read through the same connection
+        for (int i = 0; i < rows; i++) {
+          if (Arrays.binarySearch(indexed, keys[i]) >= 0)
+            continue;
+          IndexDocument doc = new IndexDocument();
+          doc.id = keys[i];
+          doc.add(subjects[i], false);
+          EmailPart body = db.getPartTree(keys[i]);
+          if (body != null)
+            doc.add(body);
+          if (!doc.isEmpty()) {
+            this.add(doc);
+            added++;
+          }
+        }
+      } while (rows == PAGE_ROWS);
+    } finally {
+      page.close();
+    }
+    this.flush();
+    return added;
+  }
+
+  /*
+   * Sorted idEnvelopes of all committed documents matching the query,
+   * see FullTextQuery for the syntax.
+   */
+  public synchronized int[] search(String query) throws IOException {
+    FullTextQuery q = FullTextQuery.parse(query);
+    int[] result = new int[0];
+    for (IndexSegment s : this.segments)
+      result = FullTextQuery.union(result, q.match(s));
+
+    if (!this.pending.isEmpty()) {
+      if (this.pendingSegment == null) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        this.write(new IndexSegment.Writer(out), this.pending);
+        this.pendingSegment = new IndexSegment(ByteBuffer.wrap(out
+            .toByteArray()));
+      }
+      result = FullTextQuery.union(result, q.match(this.pendingSegment));
+    }
+    return result;
+  }
+
+  private void merge() throws IOException {
+    Vector<IndexSegment> bySize = new Vector<IndexSegment>(this.segments);
+    Collections.sort(bySize, new Comparator<IndexSegment>() {
+      public int compare(IndexSegment a, IndexSegment b) {
+        return Long.compare(a.size(), b.size());
+      }
+    });
+
+    Vector<IndexSegment> merged = new Vector<IndexSegment>();
+    long bytes = 0;
+    for (IndexSegment s : bySize) {
+      if (merged.size() >= Math.max(2, this.maxSegments / 2)
+          || (merged.size() >= 2 && bytes + s.size() > MAX_MERGE_BYTES))
+        break;
+      merged.add(s);
+      bytes += s.size();
+    }
+    if (merged.size() < 2 || bytes > MAX_MERGE_BYTES)
+      return;
+
+    TreeSet<String> terms = new TreeSet<String>();
+    int[] docs = new int[0];
+    for (IndexSegment s : merged) {
+      Collections.addAll(terms, s.getTerms());
+      docs = FullTextQuery.union(docs, s.getDocs());
+    }
+
+    File file = this.newSegmentFile();
+    File tmp = new File(file.getPath() + ".tmp");
+    IndexSegment.Writer writer = new IndexSegment.Writer(tmp);
+    IndexSegment.Postings[] heads = new IndexSegment.Postings[merged.size()];
+    int[] next = new int[merged.size()];
+
+    for (String term : terms) {
+      for (int i = 0; i < heads.length; i++) {
+        heads[i] = merged.get(i).getPostings(term);
+        next[i] = 0;
+      }
+
+      // segments may cover overlapping id ranges, merge by doc id
+      IndexSegment.Postings p = new IndexSegment.Postings();
+      while (true) {
+        int min = -1;
+        for (int i = 0; i < heads.length; i++) {
+          if (next[i] < heads[i].size
+              && (min < 0 || heads[i].docs[next[i]] < heads[min].docs[next[min]]))
+            min = i;
+        }
+        if (min < 0)
+          break;
+
+        int doc = heads[min].docs[next[min]];
+        if (p.size == 0 || p.docs[p.size - 1] != doc)
+          p.add(doc, heads[min].positions[next[min]]);
+        next[min]++;
+      }
+      writer.add(term, p);
+    }
+    writer.finish(docs);
+
+    if (!tmp.renameTo(file))
+      throw new IOException("Can't rename " + tmp + " to " + file);
+    this.segments.removeAll(merged);
+    this.segments.add(new IndexSegment(file));
+    for (IndexSegment s : merged)
+      s.getFile().delete();
+  }
+
+  private File newSegmentFile() {
+    return new File(this.dir, String.format("seg-%06d%s", this.nextSegment++,
+        SUFFIX));
+  }
+
+  private void write(IndexSegment.Writer writer, Vector<IndexDocument> docs)
+      throws IOException {
+    Vector<IndexDocument> sorted = new Vector<IndexDocument>(docs);
+    Collections.sort(sorted, new Comparator<IndexDocument>() {
+      public int compare(IndexDocument a, IndexDocument b) {
+        return Integer.compare(a.id, b.id);
+      }
+    });
+
+    TreeMap<String, IndexSegment.Postings> postings = new TreeMap<String, IndexSegment.Postings>();
+    int[] ids = new int[sorted.size()];
+    int n = 0;
+    for (IndexDocument doc : sorted) {
+      if (n > 0 && ids[n - 1] == doc.id)
+        continue;
+      ids[n++] = doc.id;
+
+      for (Map.Entry<String, int[]> e : doc.positions.entrySet()) {
+        IndexSegment.Postings p = postings.get(e.getKey());
+        if (p == null)
+          postings.put(e.getKey(), p = new IndexSegment.Postings());
+        p.add(doc.id, e.getValue());
+      }
+    }
+
+    for (Map.Entry<String, IndexSegment.Postings> e : postings.entrySet())
+      writer.add(e.getKey(), e.getValue());
+    writer.finish(Arrays.copyOf(ids, n));
+  }
+}
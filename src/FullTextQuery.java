@@ -0,0 +1,281 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.util.Arrays;
+import java.util.Vector;
+
+/*
+ * Boolean and phrase queries over index segments:
+ *   word word      both terms (AND is implied)
+ *   word OR word   either term
+ *   -word          documents without the term
+ *   "some words"   the terms in this order
+ *   ( ... )        grouping
+ */
+public abstract class FullTextQuery {
+  public abstract int[] match(IndexSegment segment);
+
+  public static FullTextQuery parse(String query) {
+    Parser parser = new Parser(query);
+    FullTextQuery q = parser.parseOr();
+    return q != null ? q : new Or(new Vector<FullTextQuery>());
+  }
+
+  static FullTextQuery forTerms(String text) {
+    String[] terms = IndexDocument.tokenize(text, false);
+    if (terms.length == 0)
+      return null;
+    return terms.length == 1 ? new Term(terms[0]) : new Phrase(terms);
+  }
+
+  static int[] intersect(int[] a, int[] b) {
+    int[] r = new int[Math.min(a.length, b.length)];
+    int n = 0;
+    for (int i = 0, j = 0; i < a.length && j < b.length;) {
+      if (a[i] < b[j])
+        i++;
+      else if (a[i] > b[j])
+        j++;
+      else {
+        r[n++] = a[i++];
+        j++;
+      }
+    }
+    return Arrays.copyOf(r, n);
+  }
+
+  static int[] subtract(int[] a, int[] b) {
+    int[] r = new int[a.length];
+    int n = 0;
+    for (int i = 0, j = 0; i < a.length; i++) {
+      while (j < b.length && b[j] < a[i])
+        j++;
+      if (j == b.length || b[j] != a[i])
+        r[n++] = a[i];
+    }
+    return Arrays.copyOf(r, n);
+  }
+
+  static int[] union(int[] a, int[] b) {
+    int[] r = new int[a.length + b.length];
+    int n = 0, i = 0, j = 0;
+    while (i < a.length && j < b.length) {
+      if (a[i] < b[j])
+        r[n++] = a[i++];
+      else if (a[i] > b[j])
+        r[n++] = b[j++];
+      else {
+        r[n++] = a[i++];
+        j++;
+      }
+    }
+    while (i < a.length)
+      r[n++] = a[i++];
+    while (j < b.length)
+      r[n++] = b[j++];
+    return Arrays.copyOf(r, n);
+  }
+
+  static class Term extends FullTextQuery {
+    String term;
+
+    Term(String term) {
+      this.term = term;
+    }
+
+    public int[] match(IndexSegment segment) {
+      return segment.getDocs(this.term);
+    }
+  }
+
+  static class Phrase extends FullTextQuery {
+    String[] terms;
+
+    Phrase(String[] terms) {
+      this.terms = terms;
+    }
+
+    public int[] match(IndexSegment segment) {
+      // start from the rarest term, check the others by position
+      int rarest = 0;
+      for (int i = 1; i < this.terms.length; i++) {
+        if (segment.getDocFreq(this.terms[i]) < segment
+            .getDocFreq(this.terms[rarest]))
+          rarest = i;
+      }
+      if (segment.getDocFreq(this.terms[rarest]) == 0)
+        return new int[0];
+
+      int[] candidates = segment.getDocs(this.terms[rarest]);
+      IndexSegment.Postings[] postings = new IndexSegment.Postings[this.terms.length];
+      for (int i = 0; i < this.terms.length; i++) {
+        postings[i] = segment.getPostings(this.terms[i]);
+        candidates = intersect(candidates,
+            Arrays.copyOf(postings[i].docs, postings[i].size));
+      }
+
+      int[] r = new int[candidates.length];
+      int n = 0;
+      int[] d = new int[this.terms.length];
+      for (int doc : candidates) {
+        for (int i = 0; i < this.terms.length; i++)
+          d[i] = postings[i].find(doc);
+
+        int[] first = postings[0].positions[d[0]];
+        for (int k = 1; k <= first[0]; k++) {
+          int i = 1;
+          while (i < this.terms.length
+              && postings[i].hasPosition(d[i], first[k] + i))
+            i++;
+          if (i == this.terms.length) {
+            r[n++] = doc;
+            break;
+          }
+        }
+      }
+      return Arrays.copyOf(r, n);
+    }
+  }
+
+  static class And extends FullTextQuery {
+    Vector<FullTextQuery> must = new Vector<FullTextQuery>();
+    Vector<FullTextQuery> not = new Vector<FullTextQuery>();
+
+    public int[] match(IndexSegment segment) {
+      int[] r = null;
+      for (FullTextQuery q : this.must) {
+        r = r == null ? q.match(segment) : intersect(r, q.match(segment));
+        if (r.length == 0)
+          return r;
+      }
+      if (r == null)
+        r = segment.getDocs();
+      for (FullTextQuery q : this.not)
+        r = subtract(r, q.match(segment));
+      return r;
+    }
+  }
+
+  static class Or extends FullTextQuery {
+    Vector<FullTextQuery> any;
+
+    Or(Vector<FullTextQuery> any) {
+      this.any = any;
+    }
+
+    public int[] match(IndexSegment segment) {
+      int[] r = new int[0];
+      for (FullTextQuery q : this.any)
+        r = union(r, q.match(segment));
+      return r;
+    }
+  }
+
+  private static class Parser {
+    private String s;
+    private int pos = 0;
+
+    Parser(String s) {
+      this.s = s;
+    }
+
+    FullTextQuery parseOr() {
+      Vector<FullTextQuery> any = new Vector<FullTextQuery>();
+      do {
+        FullTextQuery q = this.parseAnd();
+        if (q != null)
+          any.add(q);
+      } while (this.accept("OR"));
+      return any.size() == 1 ? any.get(0) : any.isEmpty() ? null : new Or(any);
+    }
+
+    FullTextQuery parseAnd() {
+      And and = new And();
+      while (true) {
+        this.skipSpace();
+        if (this.pos >= this.s.length() || this.s.charAt(this.pos) == ')'
+            || this.peek("OR"))
+          break;
+
+        boolean negate = this.s.charAt(this.pos) == '-';
+        if (negate)
+          this.pos++;
+        if (this.accept("AND"))
+          continue;
+
+        FullTextQuery q = this.parseAtom();
+        if (q != null)
+          (negate ? and.not : and.must).add(q);
+      }
+      if (and.must.size() == 1 && and.not.isEmpty())
+        return and.must.get(0);
+      return and.must.isEmpty() && and.not.isEmpty() ? null : and;
+    }
+
+    FullTextQuery parseAtom() {
+      if (this.pos >= this.s.length())
+        return null;
+      char c = this.s.charAt(this.pos);
+      if (c == '(') {
+        this.pos++;
+        FullTextQuery q = this.parseOr();
+        this.skipSpace();
+        if (this.pos < this.s.length())
+          this.pos++;
+        return q;
+      }
+
+      int start = this.pos;
+      int end;
+      if (c == '"') {
+        start = ++this.pos;
+        end = this.s.indexOf('"', start);
+        if (end < 0)
+          end = this.s.length();
+        this.pos = Math.min(end + 1, this.s.length());
+      } else {
+        while (this.pos < this.s.length()
+            && !Character.isWhitespace(this.s.charAt(this.pos))
+            && "()\"".indexOf(this.s.charAt(this.pos)) < 0)
+          this.pos++;
+        end = this.pos;
+      }
+      return forTerms(this.s.substring(start, end));
+    }
+
+    private boolean accept(String keyword) {
+      this.skipSpace();
+      if (!this.peek(keyword))
+        return false;
+      this.pos += keyword.length();
+      return true;
+    }
+
+    private boolean peek(String keyword) {
+      int end = this.pos + keyword.length();
+      return this.s.startsWith(keyword, this.pos)
+          && (end == this.s.length() || Character.isWhitespace(this.s
+              .charAt(end)) || this.s.charAt(end) == '(' || this.s.charAt(end) == '"');
+    }
+
+    private void skipSpace() {
+      while (this.pos < this.s.length()
+          && Character.isWhitespace(this.s.charAt(this.pos)))
+        this.pos++;
+    }
+  }
+}
@@ -0,0 +1,58 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import javax.mail.Message;
+
+public class ImportItem {
+  String mailbox;
+  ImportRange range;
+  int nr;
+  long offset = -1;
+  Message message;
+  PartContent raw;
+  EmailMessage email;
+  EmailPart body;
+  IndexDocument document;
+  boolean stored = false;
+  // not stored, its checkpoint stays before it
+  boolean failed = false;
+
+  public ImportItem(ImportRange range, int nr, Message message) {
+    this.range = range;
+    this.mailbox = range != null ? range.mailbox : null;
+    this.nr = nr;
+    this.message = message;
+  }
+
+  /*
+   * Body bytes held by the item, counted against the group commit limit
+   */
+  public long length() {
+    return this.body != null ? this.body.length() : 0;
+  }
+
+  public void dispose() {
+    if (this.raw != null)
+      this.raw.dispose();
+    if (this.body != null)
+      this.body.dispose();
+    this.raw = null;
+    this.body = null;
+    this.document = null;
+    this.message = null;
+  }
+}
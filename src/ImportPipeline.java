@@ -0,0 +1,419 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * fetch -> parse -> write. Each stage hands messages to the next one through
+ * a bounded queue, so a slow writer blocks the parsers, which in turn block
+ * the fetchers. Every range is fetched by a task of its own, on a virtual
+ * thread where the JVM has them, and the number of ranges talking to the
+ * mail server at once is capped by a semaphore. Parsers and writers are a
+ * fixed set of platform threads, writers are capped by the DB pool.
+ */
+public class ImportPipeline {
+  private final static ImportItem NO_MORE_ITEMS = new ImportItem(null, -1,
+      null);
+
+  private MailImport importer;
+  private MailDBPool pool;
+
+  private AtomicInteger pendingRanges = new AtomicInteger();
+  private AtomicBoolean fetchDone = new AtomicBoolean();
+  private volatile boolean submitted = false;
+  private BlockingQueue<ImportItem> fetched;
+  private BlockingQueue<ImportItem> parsed;
+
+  private int mailConnections;
+  private boolean virtualThreads;
+  private int parseThreads;
+  private int writeThreads;
+
+  private int groupMessages;
+  private int groupBytes;
+  private int groupMillis;
+
+  private AtomicInteger activeParsers = new AtomicInteger();
+  private Semaphore mailPermits;
+  private ExecutorService fetchExecutor;
+  private ExecutorService stageExecutor;
+
+  public ImportPipeline(MailImport importer, MailDBPool pool,
+      Properties importProps) {
+    this.importer = importer;
+    this.pool = pool;
+
+    // sizes and thread counts below 1 would stop the pipeline
+    int queueSize = Math.max(1, Config.getIntProperty(importProps,
+        "pipeline.queueSize", 64));
+    this.fetched = new ArrayBlockingQueue<ImportItem>(queueSize);
+    this.parsed = new ArrayBlockingQueue<ImportItem>(queueSize);
+
+    this.mailConnections = Math.max(1, Config.getIntProperty(importProps,
+        "pipeline.mailConnections", Config.getIntProperty(importProps,
+            "pipeline.fetchThreads", 1)));
+    this.virtualThreads = Config.getBooleanProperty(importProps,
+        "pipeline.virtualThreads", true);
+    this.parseThreads = Math.max(1, Config.getIntProperty(importProps,
+        "pipeline.parseThreads", Runtime.getRuntime().availableProcessors()));
+    this.writeThreads = Math.max(1, Math.min(Config.getIntProperty(
+        importProps, "pipeline.writeThreads", pool.getPoolSize()), pool
+        .getPoolSize()));
+
+    this.groupMessages = Math.max(1, Config.getIntProperty(importProps,
+        "pipeline.groupCommit.messages", 1));
+    this.groupBytes = Math.max(1, Config.getIntProperty(importProps,
+        "pipeline.groupCommit.bytes", Integer.MAX_VALUE));
+    this.groupMillis = Math.max(1, Config.getIntProperty(importProps,
+        "pipeline.groupCommit.millis", Integer.MAX_VALUE));
+  }
+
+  /*
+   * Executor for fetch work: one virtual thread per task if the JVM has
+   * them, an unbounded pool of platform threads otherwise. Callers bound
+   * their concurrency themselves.
+   */
+  static ExecutorService newFetchExecutor(boolean virtual) {
+    if (virtual) {
+      try {
+        return (ExecutorService) Executors.class.getMethod(
+            "newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (Exception e) {
+        // before Java 21
+      }
+    }
+    return Executors.newCachedThreadPool(newThreadFactory("import-fetch-"));
+  }
+
+  private static ThreadFactory newThreadFactory(final String prefix) {
+    return new ThreadFactory() {
+      private AtomicInteger count = new AtomicInteger();
+
+      public Thread newThread(Runnable r) {
+        return new Thread(r, prefix + this.count.getAndIncrement());
+      }
+    };
+  }
+
+  public void addRange(final ImportRange range) {
+    this.pendingRanges.incrementAndGet();
+    this.fetchExecutor.execute(new Runnable() {
+      public void run() {
+        ImportPipeline.this.runFetcher(range);
+      }
+    });
+  }
+
+  /*
+   * Waits until every submitted range is fetched, parsed and written, then
+   * shuts the executors down.
+   */
+  public void await() throws InterruptedException {
+    this.submitted = true;
+    if (this.pendingRanges.get() == 0)
+      this.endFetch();
+
+    this.stageExecutor.shutdown();
+    while (!this.stageExecutor.awaitTermination(1, TimeUnit.MINUTES))
+      ;
+    this.fetchExecutor.shutdown();
+    while (!this.fetchExecutor.awaitTermination(1, TimeUnit.MINUTES))
+      ;
+  }
+
+  public ExecutorService getFetchExecutor() {
+    return this.fetchExecutor;
+  }
+
+  public int getFetchedQueueSize() {
+    return this.fetched.size();
+  }
+
+  public int getParsedQueueSize() {
+    return this.parsed.size();
+  }
+
+  /*
+   * A message that failed before reaching the queues. Its range counts it
+   * but keeps it pending, so the checkpoint stays before it.
+   */
+  public void putFailed(ImportItem item) {
+    item.failed = true;
+    if (item.range != null)
+      item.range.itemQueued(item);
+    this.done(item);
+  }
+
+  public void put(ImportItem item) throws InterruptedException {
+    if (item.range != null)
+      item.range.itemQueued(item);
+    this.fetched.put(item);
+  }
+
+  /*
+   * Immediately stops all stages. Messages in the queues are lost, their
+   * ranges aren't checkpointed past them.
+   */
+  public void shutdownNow() {
+    this.fetchExecutor.shutdownNow();
+    this.stageExecutor.shutdownNow();
+  }
+
+  public void start() {
+    this.activeParsers.set(this.parseThreads);
+    this.mailPermits = new Semaphore(this.mailConnections, true);
+    this.fetchExecutor = newFetchExecutor(this.virtualThreads);
+    this.stageExecutor = Executors.newFixedThreadPool(this.parseThreads
+        + this.writeThreads, newThreadFactory("import-stage-"));
+
+    for (int i = 0; i < this.parseThreads; i++)
+      this.stageExecutor.execute(new Runnable() {
+        public void run() {
+          ImportPipeline.this.runParser();
+        }
+      });
+
+    for (int i = 0; i < this.writeThreads; i++)
+      this.stageExecutor.execute(new Runnable() {
+        public void run() {
+          ImportPipeline.this.runWriter();
+        }
+      });
+  }
+
+  public void submit(String mailbox) {
+    this.addRange(new ImportRange(mailbox, 1, 0));
+  }
+
+  private void done(ImportItem item) {
+    item.dispose();
+    if (item.range != null)
+      item.range.itemDone(item);
+  }
+
+  /*
+   * The parsers are told to stop once, after the last range is fetched
+   */
+  private void endFetch() {
+    if (this.fetchDone.compareAndSet(false, true))
+      this.signalEnd(this.fetched, this.parseThreads);
+  }
+
+  private void runFetcher(ImportRange range) {
+    boolean acquired = false;
+    try {
+      this.mailPermits.acquire();
+      acquired = true;
+      this.importer.fetchRange(range, this);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Throwable t) {
+      System.err.println("### FAILED: " + range);
+      t.printStackTrace();
+    } finally {
+      if (acquired)
+        this.mailPermits.release();
+      range.fetchDone();
+      // split ranges are added before their parent range is finished
+      if (this.pendingRanges.decrementAndGet() == 0 && this.submitted)
+        this.endFetch();
+    }
+  }
+
+  private void runParser() {
+    try {
+      ImportItem item;
+      while ((item = this.fetched.take()) != NO_MORE_ITEMS) {
+        if (this.importer.parseItem(item))
+          this.parsed.put(item);
+        else
+          this.done(item);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      if (this.activeParsers.decrementAndGet() == 0)
+        this.signalEnd(this.parsed, this.writeThreads);
+    }
+  }
+
+  private void runWriter() {
+    MailDB db = null;
+    try {
+      db = this.pool.lease();
+    } catch (Exception e) {
+      System.err.println("Writer failed to lease a DB connection");
+      e.printStackTrace();
+      this.drain();
+      return;
+    }
+
+    Vector<ImportItem> group = new Vector<ImportItem>();
+    boolean failed = false;
+    long bytes = 0;
+    long deadline = 0;
+    try {
+      while (true) {
+        ImportItem item;
+        if (group.isEmpty())
+          item = this.parsed.take();
+        else
+          item = this.parsed.poll(Math.max(0, deadline
+              - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        if (item == NO_MORE_ITEMS)
+          break;
+
+        if (item != null) {
+          if (group.isEmpty())
+            deadline = System.currentTimeMillis() + this.groupMillis;
+          group.add(item);
+          bytes += item.length();
+
+          try {
+            if (!failed) {
+              this.importer.writeItem(db, item);
+              failed = !this.written(item);
+            }
+          } catch (Throwable t) {
+            failed = true;
+            if (MailDB.debug)
+              t.printStackTrace();
+          }
+        }
+
+        // commit on any limit, or when the group has waited long enough
+        if (item == null || group.size() >= this.groupMessages
+            || bytes >= this.groupBytes
+            || System.currentTimeMillis() >= deadline) {
+          this.commitGroup(db, group, failed);
+          failed = false;
+          bytes = 0;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      this.commitGroup(db, group, failed);
+      this.pool.release(db);
+    }
+  }
+
+  /*
+   * Commits the messages written since the last commit. If any of them
+   * failed, or the commit does, the group is rolled back and replayed with
+   * a commit per message so a bad message only loses itself. Messages that
+   * fail again hold back the checkpoint of their range.
+   */
+  private void commitGroup(MailDB db, Vector<ImportItem> group, boolean failed) {
+    if (group.isEmpty())
+      return;
+
+    if (!failed) {
+      try {
+        db.commit();
+      } catch (Throwable t) {
+        failed = true;
+        if (MailDB.debug)
+          t.printStackTrace();
+      }
+    }
+
+    if (failed) {
+      this.pool.getStats().replays.incrementAndGet();
+      if (group.size() > 1)
+        System.err.println("Group commit of " + group.size()
+            + " messages failed, replaying them one by one");
+      this.rollback(db);
+
+      for (ImportItem item : group) {
+        try {
+          this.importer.writeItem(db, item);
+          if (this.written(item))
+            db.commit();
+          else {
+            item.failed = true;
+            this.rollback(db);
+          }
+        } catch (Throwable t) {
+          item.stored = false;
+          item.failed = true;
+          System.err.println("Failed: " + item.mailbox);
+          t.printStackTrace();
+          this.rollback(db);
+        }
+      }
+    }
+
+    for (ImportItem item : group) {
+      this.importer.itemCommitted(item);
+      this.done(item);
+    }
+    group.clear();
+  }
+
+  private void rollback(MailDB db) {
+    try {
+      db.rollback();
+    } catch (SQLException e) {
+      if (MailDB.debug)
+        e.printStackTrace();
+    }
+  }
+
+  /*
+   * A message that failed without throwing may have left some of its rows
+   */
+  private boolean written(ImportItem item) {
+    return item.stored || item.email.duplicate;
+  }
+
+  /*
+   * A writer without a DB connection keeps consuming so the other stages
+   * can terminate. Messages it takes are lost.
+   */
+  private void drain() {
+    try {
+      ImportItem item;
+      while ((item = this.parsed.take()) != NO_MORE_ITEMS) {
+        item.failed = true;
+        this.done(item);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void signalEnd(BlockingQueue<ImportItem> queue, int consumers) {
+    try {
+      for (int i = 0; i < consumers; i++)
+        queue.put(NO_MORE_ITEMS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+
+/*
+ * A range of message numbers of one mailbox, imported by one fetcher with
+ * its own folder handle. A range with end 0 stands for the whole mailbox
+ * and is split by the fetcher that picks it up.
+ */
+public class ImportRange {
+  String mailbox;
+  int start;
+  int end;
+  ImportCheckpoint checkpoint = null;
+  // read by the parse stage, closed once all messages are done
+  Folder folder = null;
+
+  private int queued = 0;
+  private int done = 0;
+  private boolean fetched = false;
+  private long started = System.currentTimeMillis();
+
+  public ImportRange(String mailbox, int start, int end) {
+    this.mailbox = mailbox;
+    this.start = start;
+    this.end = end;
+  }
+
+  public synchronized void fetchDone() {
+    this.fetched = true;
+    this.checkDone();
+  }
+
+  public boolean isWhole() {
+    return this.end == 0;
+  }
+
+  public synchronized void itemDone(ImportItem item) {
+    this.done++;
+    if (this.checkpoint != null)
+      this.checkpoint.itemDone(item);
+    this.checkDone();
+  }
+
+  public synchronized void itemQueued(ImportItem item) {
+    this.queued++;
+    if (this.checkpoint != null)
+      this.checkpoint.itemQueued(item);
+  }
+
+  public synchronized String toString() {
+    return this.mailbox + "[" + this.start + "-" + this.end + "] "
+        + this.done + "/" + this.queued + (this.fetched ? "" : "+");
+  }
+
+  private void checkDone() {
+    if (this.fetched && this.done == this.queued && !this.isWhole()) {
+      if (this.checkpoint != null)
+        this.checkpoint.rangeDone();
+      System.out.println(this + " done in "
+          + (System.currentTimeMillis() - this.started) + "ms");
+      this.closeFolder();
+    }
+  }
+
+  private void closeFolder() {
+    if (this.folder == null)
+      return;
+    try {
+      if (this.folder.isOpen())
+        this.folder.close(false);
+    } catch (MessagingException e) {
+      System.err.println("Closing " + this.mailbox + " failed: "
+          + e.getMessage());
+    }
+    this.folder = null;
+  }
+}
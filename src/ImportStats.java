@@ -0,0 +1,241 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/*
+ * Counters, latency histograms and queue depths of an import, shared by the
+ * pipeline stages and every pooled MailDB. Exported as the MBean
+ * MailDB:type=ImportStats and summarized on stdout every
+ * import.statsInterval seconds.
+ */
+public class ImportStats implements DynamicMBean {
+  public final LatencyHistogram fetchWindow = new LatencyHistogram(
+      "fetchWindow");
+  public final LatencyHistogram fetch = new LatencyHistogram("fetch");
+  public final LatencyHistogram parse = new LatencyHistogram("parse");
+  public final LatencyHistogram insertEnvelope = new LatencyHistogram(
+      "insertEnvelope");
+  public final LatencyHistogram insertSubscriber = new LatencyHistogram(
+      "insertSubscriber");
+  public final LatencyHistogram insertEnvelopeSubscriber = new LatencyHistogram(
+      "insertEnvelopeSubscriber");
+  public final LatencyHistogram insertPart = new LatencyHistogram("insertPart");
+  public final LatencyHistogram insertEnvelopePart = new LatencyHistogram(
+      "insertEnvelopePart");
+  public final LatencyHistogram insertBlob = new LatencyHistogram("insertBlob");
+  public final LatencyHistogram executeBatch = new LatencyHistogram(
+      "executeBatch");
+  public final LatencyHistogram commit = new LatencyHistogram("commit");
+
+  public final AtomicLong messages = new AtomicLong();
+  public final AtomicLong parts = new AtomicLong();
+  public final AtomicLong bytes = new AtomicLong();
+  public final AtomicLong addresses = new AtomicLong();
+  public final AtomicLong duplicates = new AtomicLong();
+  public final AtomicLong failures = new AtomicLong();
+  public final AtomicLong replays = new AtomicLong();
+
+  private LatencyHistogram[] histograms = { this.fetchWindow, this.fetch,
+      this.parse,
+      this.insertEnvelope, this.insertSubscriber,
+      this.insertEnvelopeSubscriber, this.insertPart, this.insertEnvelopePart,
+      this.insertBlob, this.executeBatch, this.commit };
+
+  private long started = System.currentTimeMillis();
+  private ImportPipeline pipeline = null;
+  private ScheduledExecutorService reporter = null;
+  private ObjectName objectName = null;
+
+  public synchronized void close() {
+    if (this.reporter != null)
+      this.reporter.shutdownNow();
+    this.reporter = null;
+
+    if (this.objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+            this.objectName);
+      } catch (Exception e) {
+        if (MailDB.debug)
+          e.printStackTrace();
+      }
+      this.objectName = null;
+    }
+  }
+
+  public double getMessagesPerSecond() {
+    long millis = System.currentTimeMillis() - this.started;
+    return millis > 0 ? this.messages.get() * 1000.0 / millis : 0;
+  }
+
+  public void register() throws Exception {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName("MailDB:type=ImportStats");
+    try {
+      server.registerMBean(this, name);
+    } catch (InstanceAlreadyExistsException e) {
+      // left behind by an earlier import in this VM
+      server.unregisterMBean(name);
+      server.registerMBean(this, name);
+    }
+    this.objectName = name;
+  }
+
+  public void setPipeline(ImportPipeline pipeline) {
+    this.pipeline = pipeline;
+  }
+
+  public synchronized void start(int intervalSeconds) {
+    if (intervalSeconds <= 0 || this.reporter != null)
+      return;
+
+    this.reporter = Executors
+        .newSingleThreadScheduledExecutor(new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "import-stats");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    this.reporter.scheduleAtFixedRate(new Runnable() {
+      public void run() {
+        System.out.println(ImportStats.this.summary());
+      }
+    }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  public String summary() {
+    StringBuilder sb = new StringBuilder("stats: ");
+    sb.append(this.messages.get()).append(" msgs (").append(
+        Math.round(this.getMessagesPerSecond() * 10) / 10.0).append("/s) ")
+        .append(this.parts.get()).append(" parts ").append(
+            this.bytes.get() / 1024).append(" KB ").append(
+            this.duplicates.get()).append(" dups ").append(
+            this.failures.get()).append(" failed");
+
+    if (this.pipeline != null)
+      sb.append(" | queues ").append(this.pipeline.getFetchedQueueSize())
+          .append('/').append(this.pipeline.getParsedQueueSize());
+
+    for (LatencyHistogram h : this.histograms) {
+      if (h.getCount() > 0)
+        sb.append(" | ").append(h.getName()).append(' ').append(
+            LatencyHistogram.format(h.getPercentileNanos(50))).append('/')
+            .append(LatencyHistogram.format(h.getPercentileNanos(99)));
+    }
+    return sb.toString();
+  }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder(this.summary());
+    for (LatencyHistogram h : this.histograms) {
+      if (h.getCount() > 0)
+        sb.append("\n  ").append(h);
+    }
+    return sb.toString();
+  }
+
+  /*
+   * DynamicMBean: counters, queue depths and per histogram
+   * <name>Count, <name>MeanMicros, <name>P50Micros, <name>P99Micros and
+   * <name>MaxMicros
+   */
+  private Map<String, Object> values() {
+    LinkedHashMap<String, Object> values = new LinkedHashMap<String, Object>();
+    values.put("Messages", this.messages.get());
+    values.put("MessagesPerSecond", this.getMessagesPerSecond());
+    values.put("Parts", this.parts.get());
+    values.put("Bytes", this.bytes.get());
+    values.put("Addresses", this.addresses.get());
+    values.put("Duplicates", this.duplicates.get());
+    values.put("Failures", this.failures.get());
+    values.put("Replays", this.replays.get());
+    values.put("FetchedQueueSize", this.pipeline != null ? this.pipeline
+        .getFetchedQueueSize() : 0);
+    values.put("ParsedQueueSize", this.pipeline != null ? this.pipeline
+        .getParsedQueueSize() : 0);
+
+    for (LatencyHistogram h : this.histograms) {
+      String n = h.getName();
+      values.put(n + "Count", h.getCount());
+      values.put(n + "MeanMicros", h.getMeanNanos() / 1000);
+      values.put(n + "P50Micros", h.getPercentileNanos(50) / 1000);
+      values.put(n + "P99Micros", h.getPercentileNanos(99) / 1000);
+      values.put(n + "MaxMicros", h.getMaxNanos() / 1000);
+    }
+    return values;
+  }
+
+  public Object getAttribute(String attribute)
+      throws AttributeNotFoundException {
+    Object value = this.values().get(attribute);
+    if (value == null)
+      throw new AttributeNotFoundException(attribute);
+    return value;
+  }
+
+  public AttributeList getAttributes(String[] attributes) {
+    Map<String, Object> values = this.values();
+    AttributeList list = new AttributeList();
+    for (String a : attributes) {
+      if (values.containsKey(a))
+        list.add(new Attribute(a, values.get(a)));
+    }
+    return list;
+  }
+
+  public MBeanInfo getMBeanInfo() {
+    Vector<MBeanAttributeInfo> attrs = new Vector<MBeanAttributeInfo>();
+    for (Map.Entry<String, Object> e : this.values().entrySet())
+      attrs.add(new MBeanAttributeInfo(e.getKey(), e.getValue().getClass()
+          .getName(), e.getKey(), true, false, false));
+
+    return new MBeanInfo(this.getClass().getName(), "MailDB import statistics",
+        attrs.toArray(new MBeanAttributeInfo[attrs.size()]), null, null, null);
+  }
+
+  public Object invoke(String action, Object[] params, String[] signature) {
+    return null;
+  }
+
+  public void setAttribute(Attribute attribute)
+      throws AttributeNotFoundException {
+    throw new AttributeNotFoundException(attribute.getName() + " is read only");
+  }
+
+  public AttributeList setAttributes(AttributeList attributes) {
+    return new AttributeList();
+  }
+}
@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Vector;
+
+/*
+ * Term positions of one envelope, tokenized in the parse stage and handed
+ * to the FullTextIndex once the envelope is committed.
+ */
+public class IndexDocument {
+  public final static int MAX_TERM_LENGTH = 64;
+
+  int id;
+  HashMap<String, int[]> positions = new HashMap<String, int[]>();
+  private int position = 0;
+
+  public void add(String text, boolean html) {
+    if (text == null)
+      return;
+
+    for (String term : tokenize(text, html)) {
+      int[] p = this.positions.get(term);
+      if (p == null)
+        this.positions.put(term, p = new int[4]);
+      else if (p[0] + 1 == p.length) {
+        int[] grown = new int[p.length * 2];
+        System.arraycopy(p, 0, grown, 0, p.length);
+        this.positions.put(term, p = grown);
+      }
+      p[++p[0]] = this.position++;
+    }
+    // keep phrases from matching across fields
+    this.position++;
+  }
+
+  public void add(EmailPart ep) throws IOException {
+    if (ep.contentType != null) {
+      String type = ep.contentType.toLowerCase();
+      if (type.startsWith("text/plain"))
+        this.add(ep.getDecodedContent(), false);
+      else if (type.startsWith("text/html"))
+        this.add(ep.getDecodedContent(), true);
+    }
+    for (EmailPart child : ep.children)
+      this.add(child);
+  }
+
+  public boolean isEmpty() {
+    return this.positions.isEmpty();
+  }
+
+  public Map<String, int[]> getPositions() {
+    return this.positions;
+  }
+
+  /*
+   * Lower cased runs of letters and digits, skipping markup when html is set
+   * and terms longer than MAX_TERM_LENGTH (base64 and uuencoded noise).
+   */
+  public static String[] tokenize(String text, boolean html) {
+    Vector<String> terms = new Vector<String>();
+    StringBuilder term = new StringBuilder();
+    boolean inTag = false;
+
+    for (int i = 0, n = text.length(); i <= n; i++) {
+      char c = i < n ? text.charAt(i) : ' ';
+      if (html && c == '<')
+        inTag = true;
+      else if (inTag) {
+        if (c == '>')
+          inTag = false;
+        continue;
+      }
+
+      if (!inTag && Character.isLetterOrDigit(c)) {
+        term.append(Character.toLowerCase(c));
+        continue;
+      }
+      if (term.length() > 0 && term.length() <= MAX_TERM_LENGTH)
+        terms.add(term.toString());
+      term.setLength(0);
+    }
+    return terms.toArray(new String[terms.size()]);
+  }
+}
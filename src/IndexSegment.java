@@ -0,0 +1,277 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Vector;
+
+/*
+ * Immutable index segment, memory mapped when read from disk:
+ *   postings   per term and document: varint doc id delta, varint
+ *              frequency, varint position deltas
+ *   documents  varint count, varint doc id deltas
+ *   dictionary per term in sort order: varint length, UTF-8 bytes,
+ *              varint document frequency, varint postings offset and length
+ *   trailer    long documents offset, long dictionary offset,
+ *              int term count, int magic
+ */
+public class IndexSegment {
+  public final static int MAGIC = 0x46544931;
+  private final static int TRAILER = 24;
+
+  private File file;
+  private ByteBuffer buf;
+  private String[] terms;
+  private int[] docFreqs;
+  private int[] offsets;
+  private int[] lengths;
+  private int[] docs;
+
+  public IndexSegment(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel ch = raf.getChannel();
+      this.load(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+      this.file = file;
+    } finally {
+      raf.close();
+    }
+  }
+
+  public IndexSegment(ByteBuffer buf) throws IOException {
+    this.load(buf);
+  }
+
+  public int getDocFreq(String term) {
+    int i = Arrays.binarySearch(this.terms, term);
+    return i < 0 ? 0 : this.docFreqs[i];
+  }
+
+  public int[] getDocs() {
+    return this.docs;
+  }
+
+  /*
+   * Document ids containing the term, without decoding positions
+   */
+  public int[] getDocs(String term) {
+    int i = Arrays.binarySearch(this.terms, term);
+    if (i < 0)
+      return new int[0];
+
+    ByteBuffer in = this.slice(i);
+    int[] result = new int[this.docFreqs[i]];
+    int doc = 0;
+    for (int d = 0; d < result.length; d++) {
+      result[d] = doc += readVarInt(in);
+      for (int freq = readVarInt(in); freq > 0; freq--)
+        readVarInt(in);
+    }
+    return result;
+  }
+
+  public File getFile() {
+    return this.file;
+  }
+
+  public Postings getPostings(String term) {
+    int i = Arrays.binarySearch(this.terms, term);
+    Postings p = new Postings();
+    if (i < 0)
+      return p;
+
+    ByteBuffer in = this.slice(i);
+    int doc = 0;
+    for (int d = this.docFreqs[i]; d > 0; d--) {
+      doc += readVarInt(in);
+      int[] pos = new int[readVarInt(in) + 1];
+      pos[0] = pos.length - 1;
+      for (int k = 1, last = 0; k < pos.length; k++)
+        pos[k] = last += readVarInt(in);
+      p.add(doc, pos);
+    }
+    return p;
+  }
+
+  public String[] getTerms() {
+    return this.terms;
+  }
+
+  public long size() {
+    return this.buf.capacity();
+  }
+
+  private void load(ByteBuffer buf) throws IOException {
+    this.buf = buf;
+    int end = buf.capacity();
+    if (end < TRAILER || buf.getInt(end - 4) != MAGIC)
+      throw new IOException("Not an index segment");
+
+    int docsOffset = (int) buf.getLong(end - TRAILER);
+    int dictOffset = (int) buf.getLong(end - TRAILER + 8);
+    int count = buf.getInt(end - 8);
+
+    ByteBuffer in = buf.duplicate();
+    in.position(docsOffset);
+    this.docs = new int[readVarInt(in)];
+    for (int d = 0, doc = 0; d < this.docs.length; d++)
+      this.docs[d] = doc += readVarInt(in);
+
+    in.position(dictOffset);
+    this.terms = new String[count];
+    this.docFreqs = new int[count];
+    this.offsets = new int[count];
+    this.lengths = new int[count];
+    for (int i = 0; i < count; i++) {
+      byte[] b = new byte[readVarInt(in)];
+      in.get(b);
+      this.terms[i] = new String(b, "UTF-8");
+      this.docFreqs[i] = readVarInt(in);
+      this.offsets[i] = readVarInt(in);
+      this.lengths[i] = readVarInt(in);
+    }
+  }
+
+  private ByteBuffer slice(int i) {
+    ByteBuffer in = this.buf.duplicate();
+    in.position(this.offsets[i]);
+    in.limit(this.offsets[i] + this.lengths[i]);
+    return in;
+  }
+
+  static int readVarInt(ByteBuffer in) {
+    int v = 0;
+    for (int shift = 0;; shift += 7) {
+      byte b = in.get();
+      v |= (b & 0x7f) << shift;
+      if (b >= 0)
+        return v;
+    }
+  }
+
+  /*
+   * Document ids in ascending order with their term positions
+   * (positions[d][0] holds the number of positions that follow).
+   */
+  public static class Postings {
+    int size = 0;
+    int[] docs = new int[4];
+    int[][] positions = new int[4][];
+
+    public void add(int doc, int[] pos) {
+      if (this.size == this.docs.length) {
+        this.docs = Arrays.copyOf(this.docs, this.size * 2);
+        this.positions = Arrays.copyOf(this.positions, this.size * 2);
+      }
+      this.docs[this.size] = doc;
+      this.positions[this.size++] = pos;
+    }
+
+    public int find(int doc) {
+      return Arrays.binarySearch(this.docs, 0, this.size, doc);
+    }
+
+    public boolean hasPosition(int d, int position) {
+      int[] pos = this.positions[d];
+      return Arrays.binarySearch(pos, 1, pos[0] + 1, position) >= 0;
+    }
+  }
+
+  /*
+   * Writes a segment; terms have to be added in ascending order.
+   */
+  public static class Writer {
+    private OutputStream out;
+    private long written = 0;
+    private Vector<String> terms = new Vector<String>();
+    private Vector<long[]> entries = new Vector<long[]>();
+
+    public Writer(File file) throws IOException {
+      this(new BufferedOutputStream(new FileOutputStream(file), 65536));
+    }
+
+    public Writer(OutputStream out) {
+      this.out = out;
+    }
+
+    public void add(String term, Postings p) throws IOException {
+      if (p.size == 0)
+        return;
+
+      long offset = this.written;
+      for (int d = 0, last = 0; d < p.size; d++) {
+        this.writeVarInt(p.docs[d] - last);
+        last = p.docs[d];
+
+        int[] pos = p.positions[d];
+        this.writeVarInt(pos[0]);
+        for (int k = 1, prev = 0; k <= pos[0]; k++) {
+          this.writeVarInt(pos[k] - prev);
+          prev = pos[k];
+        }
+      }
+      this.terms.add(term);
+      this.entries.add(new long[] { p.size, offset, this.written - offset });
+    }
+
+    public void finish(int[] docs) throws IOException {
+      long docsOffset = this.written;
+      this.writeVarInt(docs.length);
+      for (int d = 0, last = 0; d < docs.length; d++) {
+        this.writeVarInt(docs[d] - last);
+        last = docs[d];
+      }
+
+      long dictOffset = this.written;
+      for (int i = 0; i < this.terms.size(); i++) {
+        byte[] b = this.terms.get(i).getBytes("UTF-8");
+        this.writeVarInt(b.length);
+        this.out.write(b);
+        this.written += b.length;
+        for (long v : this.entries.get(i))
+          this.writeVarInt((int) v);
+      }
+
+      ByteBuffer trailer = ByteBuffer.allocate(TRAILER);
+      trailer.putLong(docsOffset).putLong(dictOffset)
+          .putInt(this.terms.size()).putInt(MAGIC);
+      this.out.write(trailer.array());
+      this.out.close();
+    }
+
+    public long getWritten() {
+      return this.written;
+    }
+
+    private void writeVarInt(int v) throws IOException {
+      while ((v & ~0x7f) != 0) {
+        this.out.write((v & 0x7f) | 0x80);
+        v >>>= 7;
+        this.written++;
+      }
+      this.out.write(v);
+      this.written++;
+    }
+  }
+}
@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+
+public class KeyAllocator {
+  private Connection conn;
+  private int blockSize;
+
+  private PreparedStatement stmntReserve;
+  private PreparedStatement stmntSelect;
+  private PreparedStatement stmntInsert;
+
+  private HashMap<String, int[]> blocks = new HashMap<String, int[]>();
+
+  public KeyAllocator(Connection conn, int blockSize) throws SQLException {
+    this.conn = conn;
+    this.blockSize = blockSize > 0 ? blockSize : 1;
+    this.conn.setAutoCommit(false);
+
+    this.stmntReserve = this.conn
+        .prepareStatement("UPDATE KeySequence SET nextKey = nextKey + ? WHERE name = ?");
+    this.stmntSelect = this.conn
+        .prepareStatement("SELECT nextKey FROM KeySequence WHERE name = ?");
+    this.stmntInsert = this.conn
+        .prepareStatement("INSERT INTO KeySequence (name, nextKey) values (?, ?)");
+  }
+
+  public synchronized void close() throws SQLException {
+    this.conn.close();
+  }
+
+  public synchronized int next(String table, String column)
+      throws SQLException {
+    int[] block = this.blocks.get(table);
+    if (block == null) {
+      block = new int[2];
+      this.blocks.put(table, block);
+      this.synchronize(table, column);
+    }
+
+    if (block[0] >= block[1])
+      this.reserve(table, block);
+
+    return block[0]++;
+  }
+
+  private int maxKey(String table, String column) throws SQLException {
+    Statement stmnt = this.conn.createStatement();
+    ResultSet rs = stmnt.executeQuery("SELECT MAX(" + column + ") FROM "
+        + table);
+    int max = rs.next() ? rs.getInt(1) : 0;
+    rs.close();
+    stmnt.close();
+    return max;
+  }
+
+  private void reserve(String table, int[] block) throws SQLException {
+    try {
+      this.stmntReserve.setInt(1, this.blockSize);
+      this.stmntReserve.setString(2, table);
+      this.stmntReserve.executeUpdate();
+
+      this.stmntSelect.setString(1, table);
+      ResultSet rs = this.stmntSelect.executeQuery();
+      if (!rs.next())
+        throw new SQLException("No key sequence for " + table);
+
+      block[1] = rs.getInt(1);
+      block[0] = block[1] - this.blockSize;
+      rs.close();
+      this.conn.commit();
+    } catch (SQLException e) {
+      this.conn.rollback();
+      throw e;
+    }
+  }
+
+  /*
+   * Keys may also have been generated by auto increment (non batched imports)
+   * so move the sequence behind the highest existing key before the first
+   * reservation.
+   */
+  private void synchronize(String table, String column) throws SQLException {
+    try {
+      int max = this.maxKey(table, column) + 1;
+
+      this.stmntSelect.setString(1, table);
+      ResultSet rs = this.stmntSelect.executeQuery();
+      if (!rs.next()) {
+        this.stmntInsert.setString(1, table);
+        this.stmntInsert.setInt(2, max);
+        this.stmntInsert.executeUpdate();
+      } else if (rs.getInt(1) < max) {
+        this.stmntReserve.setInt(1, max - rs.getInt(1));
+        this.stmntReserve.setString(2, table);
+        this.stmntReserve.executeUpdate();
+      }
+      rs.close();
+      this.conn.commit();
+    } catch (SQLException e) {
+      this.conn.rollback();
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LRUCache<K, V> {
+  private LinkedHashMap<K, V> map;
+  private int capacity;
+
+  private AtomicLong hits = new AtomicLong();
+  private AtomicLong misses = new AtomicLong();
+
+  public LRUCache(final int capacity) {
+    this.capacity = capacity;
+    this.map = new LinkedHashMap<K, V>(Math.min(capacity, 1 << 16), 0.75f,
+        true) {
+      private static final long serialVersionUID = 1L;
+
+      protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+        return this.size() > capacity;
+      }
+    };
+  }
+
+  public synchronized void clear() {
+    this.map.clear();
+  }
+
+  public V get(K key) {
+    V value;
+    synchronized (this) {
+      value = this.map.get(key);
+    }
+
+    if (value != null)
+      this.hits.incrementAndGet();
+    else
+      this.misses.incrementAndGet();
+    return value;
+  }
+
+  public int getCapacity() {
+    return this.capacity;
+  }
+
+  public long getHits() {
+    return this.hits.get();
+  }
+
+  public long getMisses() {
+    return this.misses.get();
+  }
+
+  public synchronized void put(K key, V value) {
+    if (this.capacity > 0)
+      this.map.put(key, value);
+  }
+
+  public synchronized void remove(K key) {
+    this.map.remove(key);
+  }
+
+  public synchronized int size() {
+    return this.map.size();
+  }
+
+  public String toString() {
+    long h = this.getHits();
+    long m = this.getMisses();
+    return "size: " + this.size() + "/" + this.capacity + " hits: " + h
+        + " misses: " + m + " ratio: "
+        + (h + m > 0 ? (100 * h / (h + m)) + "%" : "-");
+  }
+}
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Lock free latency histogram over nanoseconds with power of two buckets:
+ * bucket i counts values below 2^i. Percentiles are reported as the upper
+ * bound of their bucket, so they are accurate to a factor of two.
+ */
+public class LatencyHistogram {
+  private String name;
+  private AtomicLongArray buckets = new AtomicLongArray(65);
+  private AtomicLong count = new AtomicLong();
+  private AtomicLong total = new AtomicLong();
+  private AtomicLong max = new AtomicLong();
+
+  public LatencyHistogram(String name) {
+    this.name = name;
+  }
+
+  public static String format(long nanos) {
+    if (nanos < 1000000)
+      return (nanos / 1000) + "us";
+    if (nanos < 10000000000L)
+      return (nanos / 100000) / 10.0 + "ms";
+    return (nanos / 100000000) / 10.0 + "s";
+  }
+
+  public long getCount() {
+    return this.count.get();
+  }
+
+  public long getMaxNanos() {
+    return this.max.get();
+  }
+
+  public long getMeanNanos() {
+    long n = this.count.get();
+    return n > 0 ? this.total.get() / n : 0;
+  }
+
+  public String getName() {
+    return this.name;
+  }
+
+  public long getPercentileNanos(double percentile) {
+    long n = this.count.get();
+    if (n == 0)
+      return 0;
+
+    long rank = (long) Math.ceil(n * percentile / 100);
+    long seen = 0;
+    for (int i = 0; i < this.buckets.length(); i++) {
+      if ((seen += this.buckets.get(i)) >= rank)
+        return Math.min(i < 63 ? 1L << i : Long.MAX_VALUE, this.max.get());
+    }
+    return this.max.get();
+  }
+
+  public long getTotalNanos() {
+    return this.total.get();
+  }
+
+  public void record(long nanos) {
+    if (nanos < 0)
+      nanos = 0;
+
+    this.buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+    this.count.incrementAndGet();
+    this.total.addAndGet(nanos);
+
+    long old;
+    while ((old = this.max.get()) < nanos
+        && !this.max.compareAndSet(old, nanos))
+      ;
+  }
+
+  /*
+   * Records the time elapsed since start, a System.nanoTime() value
+   */
+  public void since(long start) {
+    this.record(System.nanoTime() - start);
+  }
+
+  public String toString() {
+    return this.name + " " + this.getCount() + " avg "
+        + format(this.getMeanNanos()) + " p50 "
+        + format(this.getPercentileNanos(50)) + " p99 "
+        + format(this.getPercentileNanos(99)) + " max "
+        + format(this.getMaxNanos());
+  }
+}
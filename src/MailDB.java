@@ -16,17 +16,23 @@
  * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
  ******************************************************************************/
 import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.BatchUpdateException;
 import java.sql.Blob;
 import java.sql.Connection;
+import java.sql.Date;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Properties;
-import java.util.StringTokenizer;
-import java.util.TreeSet;
 import java.util.Vector;
 import javax.mail.internet.InternetAddress;
 public class MailDB {
@@ -36,27 +42,62 @@ public class MailDB {
   private final static String CC = "CC";
   private final static String REPLYTO = "Replyto";
 
+  private final static String SELECT_ENVELOPE = "select e.idEnvelope, e.messageID, e.subject, e.sendDate, e.xmailer, e.useragent, e.bodyImported, e.idConversation, es.type, s.address, s.name "
+      + "from Envelope e left join Envelope_Subscriber es on es.idEnvelope = e.idEnvelope "
+      + "left join Subscriber s on s.idSubscriber = es.idSubscriber ";
+
   public static boolean debug = false;
 
   private PreparedStatement stmntInsertEnvelopePart;
-  private PreparedStatement stmntInsertPart;
-  private PreparedStatement stmntInsertEnvelope;
-  private PreparedStatement stmntInsertSubscriber;
+  private PreparedStatement stmntInsertPartKeyed;
+  private SqlDialect.Upsert upsertEnvelope;
+  private SqlDialect.Upsert upsertSubscriber;
   private PreparedStatement stmntInsertEnvelopeSubscriber;
+  private PreparedStatement stmntClaimEnvelope;
+
+  private PreparedStatement stmntInsertBlob;
 
-  private PreparedStatement stmntSelectEnvelope;
-  private PreparedStatement stmntSelectSubscriber;
+  private PreparedStatement stmntSelectBlob;
+  private PreparedStatement stmntSelectParts;
+  private PreparedStatement stmntSelectDecoded;
 
   private final static String[] TABLE_NAMES = { "Envelope", "Part",
-      "Subscriber", "Envelope_Part", "Envelope_Subscriber" };
+      "Subscriber", "Envelope_Part", "Envelope_Subscriber", "PartBlob",
+      "Conversation", "ConversationMessage", "SubscriberDay", "MailerDay" };
 
   private Properties dbProps;
   private Connection conn;
 
-  private TreeSet<Integer> ignoredSQLErrors = null;
+  private KeyAllocator keyAllocator = null;
+  private boolean ownKeyAllocator = false;
+  private BulkLoader bulkLoader = null;
+  private BulkLoader.Transaction bulkTransaction = null;
+  private SubscriberCache subscriberCache = null;
+  private HashMap<String, Integer> pendingSubscribers = new HashMap<String, Integer>();
+  private LRUCache<String, Boolean> digestCache = null;
+  private HashSet<String> pendingDigests = new HashSet<String>();
+  private boolean dedupContent = false;
+  private PartCompressor compressor;
+
+  private LRUCache<Integer, EmailMessage> envelopeCache;
+  private LRUCache<Integer, EmailPart> partTreeCache;
+  private int fetchSize = 500;
+
+  private int batchSizePart = 1;
+  private int batchSizeEnvelopePart = 1;
+  private int batchSizeEnvelopeSubscriber = 1;
+  private long batchBytes = 0;
+
+  private int pendingPart = 0;
+  private int pendingEnvelopePart = 0;
+  private int pendingEnvelopeSubscriber = 0;
+  private long pendingPartBytes = 0;
+
+  private SqlDialect dialect;
   private boolean autocommit = false;
   private boolean truncateOnConnect = false;
-  private static int addresscnt = 0;
+  private long lastUsed = System.currentTimeMillis();
+  private ImportStats stats = new ImportStats();
 
   public MailDB(Properties dbProps) {
     this.dbProps = dbProps;
@@ -73,59 +114,350 @@ public class MailDB {
     MailDB.debug = strDebug != null ? strDebug.trim().equalsIgnoreCase("true")
         : null;
 
-    String errorCodes = this.getProperty("db.ignoreErrorCode");
-    if (errorCodes != null)
-      this.parseErrorCodes(errorCodes);
+    this.dialect = SqlDialect.forProperties(dbProps);
+
+    this.dedupContent = Config.getBooleanProperty(dbProps,
+        "db.dedupContent", false);
+    this.compressor = new PartCompressor(dbProps);
+
+    // a batch flushes once it holds this many rows, at least one
+    int batchSize = Math.max(1, Config.getIntProperty(dbProps,
+        "db.batchSize", 1));
+    this.batchSizePart = Math.max(1, Config.getIntProperty(dbProps,
+        "db.batchSize.part", batchSize));
+    this.batchSizeEnvelopePart = Math.max(1, Config.getIntProperty(dbProps,
+        "db.batchSize.envelopePart", batchSize));
+    this.batchSizeEnvelopeSubscriber = Math.max(1, Config.getIntProperty(
+        dbProps, "db.batchSize.envelopeSubscriber", batchSize));
+    this.batchBytes = Config.getIntProperty(dbProps, "db.batchBytes",
+        16 * 1024 * 1024);
+
+    this.fetchSize = Config.getIntProperty(dbProps, "db.fetchSize",
+        this.fetchSize);
+    this.envelopeCache = new LRUCache<Integer, EmailMessage>(Config
+        .getIntProperty(dbProps, "db.envelopeCacheSize", 1000));
+    this.partTreeCache = new LRUCache<Integer, EmailPart>(Config
+        .getIntProperty(dbProps, "db.partTreeCacheSize", 100));
+  }
+
+  private void closeQuietly(InputStream in) {
+    if (in != null) {
+      try {
+        in.close();
+      } catch (IOException e) {
+        if (debug)
+          e.printStackTrace();
+      }
+    }
   }
 
   public void close() throws SQLException {
-    System.err.println("addrcnt: " + addresscnt);
-    this.conn.close();
+    try {
+      this.flush();
+    } finally {
+      if (this.bulkLoader != null)
+        this.bulkLoader.rollback(this.bulkTransaction);
+      if (this.ownKeyAllocator)
+        this.keyAllocator.close();
+      this.conn.close();
+    }
   }
 
   public void commit() throws SQLException {
+    long start = System.nanoTime();
+    this.flush();
     if (!this.autocommit)
       this.conn.commit();
+    if (this.bulkLoader != null)
+      this.bulkLoader.commit(this.bulkTransaction);
+    this.publishPending();
+    this.stats.commit.since(start);
   }
 
-  public void connect() throws IllegalAccessException, InstantiationException,
-      SQLException, ClassNotFoundException {
+  public Connection createConnection() throws IllegalAccessException,
+      InstantiationException, SQLException, ClassNotFoundException {
+    return this.createConnection(new Properties());
+  }
+
+  private Connection createConnection(Properties info)
+      throws IllegalAccessException, InstantiationException, SQLException,
+      ClassNotFoundException {
     String userName = this.getProperty("db.user");
     String password = this.getProperty("db.pass");
     String dburl = this.getProperty("jdbc.url");
     String driver = this.getProperty("jdbc.driver");
     Class.forName(driver).newInstance();
 
-    this.conn = DriverManager.getConnection(dburl, userName, password);
+    if (userName != null)
+      info.setProperty("user", userName);
+    if (password != null)
+      info.setProperty("password", password);
+    return DriverManager.getConnection(dburl, info);
+  }
+
+  public void connect() throws IllegalAccessException, InstantiationException,
+      SQLException, ClassNotFoundException {
+    this.conn = this.createConnection(this.dialect.getConnectionProperties());
     this.conn.setAutoCommit(this.autocommit);
 
     this.stmntInsertEnvelopePart = this.conn
         .prepareStatement("INSERT INTO Envelope_Part (idEnvelope, idPart, idParent) "
             + "values (?, ?, ?)");
-    this.stmntInsertPart = this.conn
-        .prepareStatement(
-            "INSERT INTO Part (filename, content, contentType, contentLength, decodedContent, idReferencedEnvelope) "
-                + "values (?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
-    this.stmntInsertEnvelope = this.conn.prepareStatement(
-        "INSERT INTO Envelope (messageID, subject, sendDate, xmailer, useragent) "
-            + "values (?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
-    this.stmntInsertSubscriber = this.conn.prepareStatement(
-        "INSERT INTO Subscriber (Address, Name) " + "values (?,?)",
-        Statement.RETURN_GENERATED_KEYS);
+    this.stmntInsertPartKeyed = this.conn
+        .prepareStatement("INSERT INTO Part (idPart, filename, content, contentType, contentLength, decodedContent, idReferencedEnvelope, digest, codec) "
+            + "values (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+    this.stmntInsertBlob = this.dialect.prepareInsertIgnore(this.conn,
+        "PartBlob", new String[] { "digest", "content", "contentLength",
+            "codec" }, 1);
+    this.stmntSelectBlob = this.conn
+        .prepareStatement("select 1 from PartBlob where digest = ?");
+    this.upsertEnvelope = this.dialect.prepareUpsert(this.conn, "Envelope",
+        "idEnvelope", new String[] { "messageID", "subject", "sendDate",
+            "xmailer", "useragent", "bodyImported", "idConversation" }, 1);
+    this.upsertSubscriber = this.dialect.prepareUpsert(this.conn,
+        "Subscriber", "idSubscriber", new String[] { "address", "name" }, 2);
     this.stmntInsertEnvelopeSubscriber = this.conn
         .prepareStatement("INSERT INTO Envelope_Subscriber(idEnvelope, idSubscriber, type) "
             + "values (?,?,?)");
-    this.stmntSelectEnvelope = this.conn
-        .prepareStatement("select idEnvelope from Envelope where messageID = ? ");
-    this.stmntSelectSubscriber = this.conn
-        .prepareStatement("select idSubscriber from Subscriber where address  = ?  and name = ?");
+    this.stmntClaimEnvelope = this.conn
+        .prepareStatement("update Envelope set bodyImported = ?, idConversation = ? "
+            + "where idEnvelope = ? and bodyImported = ?");
+    this.stmntSelectParts = this.conn
+        .prepareStatement("select p.idPart, ep.idParent, p.filename, p.contentType, p.contentLength, "
+            + "case when p.decodedContent is null then 0 else 1 end, p.idReferencedEnvelope, p.digest "
+            + "from Envelope_Part ep join Part p on p.idPart = ep.idPart where ep.idEnvelope = ? order by p.idPart");
+    this.stmntSelectDecoded = this.conn
+        .prepareStatement("select decodedContent from Part where idPart = ?");
 
     if (this.truncateOnConnect)
       this.truncateAll(this.conn);
+
+    // Part keys always come from KeySequence, AUTO_INCREMENT keys would
+    // collide with the blocks handed out to other connections
+    if (this.keyAllocator == null) {
+      this.keyAllocator = new KeyAllocator(this.createConnection(), Config
+          .getIntProperty(this.dbProps, "db.keyBlockSize", 1000));
+      this.ownKeyAllocator = true;
+    }
+  }
+
+  /*
+   * Removes the parts stored for an envelope, before its body is imported
+   * again. Shared PartBlob bodies stay.
+   */
+  public void deleteParts(int keyEmail) throws SQLException {
+    PreparedStatement stmnt = this.conn
+        .prepareStatement("delete from Part where idPart in (select idPart from Envelope_Part where idEnvelope = ?)");
+    try {
+      stmnt.setInt(1, keyEmail);
+      stmnt.executeUpdate();
+    } finally {
+      stmnt.close();
+    }
+
+    stmnt = this.conn
+        .prepareStatement("delete from Envelope_Part where idEnvelope = ?");
+    try {
+      stmnt.setInt(1, keyEmail);
+      stmnt.executeUpdate();
+    } finally {
+      stmnt.close();
+    }
+    this.partTreeCache.remove(keyEmail);
+  }
+
+  /*
+   * A failed batch is only kept in part when the driver went on past the
+   * failed rows and every failure was a duplicate of a statement whose
+   * duplicates are harmless. Anything else fails the batch and with it the
+   * transaction, which the writer replays message by message.
+   */
+  private void executeBatch(PreparedStatement stmnt, int rows,
+      boolean ignoreDuplicates) throws SQLException {
+    long start = System.nanoTime();
+    try {
+      stmnt.executeBatch();
+    } catch (BatchUpdateException e) {
+      stmnt.clearBatch();
+      if (!ignoreDuplicates || e.getUpdateCounts().length < rows)
+        throw e;
+
+      SQLException next = e;
+      while (next != null) {
+        if (!this.dialect.isDuplicateKey(next))
+          throw e;
+        next = next.getNextException();
+      }
+
+      if (debug)
+        e.printStackTrace();
+      for (int count : e.getUpdateCounts()) {
+        if (count == Statement.EXECUTE_FAILED)
+          this.stats.duplicates.incrementAndGet();
+      }
+    } finally {
+      this.stats.executeBatch.since(start);
+    }
+  }
+
+  private void countPart(EmailPart ep) {
+    this.stats.parts.incrementAndGet();
+    if (ep.content != null)
+      this.stats.bytes.addAndGet(ep.content.length());
+  }
+
+  /*
+   * All messages of a conversation, see ConversationIndex
+   */
+  public EnvelopeCursor findByConversation(int idConversation)
+      throws SQLException {
+    PreparedStatement stmnt = this.prepareCursor("where e.idConversation = ?");
+    stmnt.setInt(1, idConversation);
+    return new EnvelopeCursor(stmnt, this.envelopeCache);
+  }
+
+  public EnvelopeCursor findByDateRange(Date from, Date to)
+      throws SQLException {
+    PreparedStatement stmnt = this
+        .prepareCursor("where e.sendDate between ? and ?");
+    stmnt.setDate(1, from);
+    stmnt.setDate(2, to);
+    return new EnvelopeCursor(stmnt, this.envelopeCache);
+  }
+
+  public EmailMessage findByMessageId(String messageid) throws SQLException {
+    PreparedStatement stmnt = this.prepareCursor("where e.messageID = ?");
+    stmnt.setString(1, messageid);
+    EnvelopeCursor cursor = new EnvelopeCursor(stmnt, this.envelopeCache);
+    try {
+      return cursor.next();
+    } finally {
+      cursor.close();
+    }
+  }
+
+  public EnvelopeCursor findByRecipient(String address) throws SQLException {
+    return this.findBySubscriber(address, "'To', 'CC'");
+  }
+
+  public EnvelopeCursor findBySender(String address) throws SQLException {
+    return this.findBySubscriber(address, "'From'");
+  }
+
+  private EnvelopeCursor findBySubscriber(String address, String types)
+      throws SQLException {
+    PreparedStatement stmnt = this
+        .prepareCursor("where e.idEnvelope in (select es2.idEnvelope from Envelope_Subscriber es2 "
+            + "join Subscriber s2 on s2.idSubscriber = es2.idSubscriber "
+            + "where s2.address = ? and es2.type in (" + types + "))");
+    stmnt.setString(1, address);
+    return new EnvelopeCursor(stmnt, this.envelopeCache);
+  }
+
+  public void flush() throws SQLException {
+    if (this.pendingPart > 0)
+      this.flushParts();
+    if (this.pendingEnvelopePart > 0)
+      this.flushEnvelopeParts();
+    if (this.pendingEnvelopeSubscriber > 0)
+      this.flushEnvelopeSubscribers();
+  }
+
+  private void flushEnvelopeParts() throws SQLException {
+    int rows = this.pendingEnvelopePart;
+    this.pendingEnvelopePart = 0;
+    this.executeBatch(this.stmntInsertEnvelopePart, rows, false);
+  }
+
+  private void flushEnvelopeSubscribers() throws SQLException {
+    int rows = this.pendingEnvelopeSubscriber;
+    this.pendingEnvelopeSubscriber = 0;
+    this.executeBatch(this.stmntInsertEnvelopeSubscriber, rows, true);
+  }
+
+  private void flushParts() throws SQLException {
+    int rows = this.pendingPart;
+    this.pendingPart = 0;
+    this.pendingPartBytes = 0;
+    this.executeBatch(this.stmntInsertPartKeyed, rows, false);
+  }
+
+  public Connection getConnection() {
+    return this.conn;
+  }
+
+  public SqlDialect getDialect() {
+    return this.dialect;
+  }
+
+  public EmailMessage getEnvelope(int key) throws SQLException {
+    EmailMessage email = this.envelopeCache.get(key);
+    if (email != null)
+      return email;
+
+    PreparedStatement stmnt = this.prepareCursor("where e.idEnvelope = ?");
+    stmnt.setInt(1, key);
+    EnvelopeCursor cursor = new EnvelopeCursor(stmnt, this.envelopeCache);
+    try {
+      return cursor.next();
+    } finally {
+      cursor.close();
+    }
+  }
+
+  public LRUCache<Integer, EmailMessage> getEnvelopeCache() {
+    return this.envelopeCache;
+  }
+
+  public long getLastUsed() {
+    return this.lastUsed;
+  }
+
+  /*
+   * Rebuilds the part tree of an envelope. Bodies and decoded text are
+   * loaded through this connection only when they are used.
+   */
+  public EmailPart getPartTree(int keyEmail) throws SQLException {
+    EmailPart root = this.partTreeCache.get(keyEmail);
+    if (root != null)
+      return root;
+
+    HashMap<Integer, EmailPart> parts = new HashMap<Integer, EmailPart>();
+    this.stmntSelectParts.setInt(1, keyEmail);
+    ResultSet rs = this.stmntSelectParts.executeQuery();
+    while (rs.next()) {
+      EmailPart ep = new EmailPart();
+      ep.key = rs.getInt(1);
+      ep.parentKey = rs.getInt(2);
+      ep.emailKey = keyEmail;
+      ep.fileName = rs.getString(3);
+      ep.contentType = rs.getString(4);
+      int length = rs.getInt(5);
+      if (rs.getInt(6) != 0)
+        ep.decodedSource = this.lazyDecoded(ep.key);
+      ep.referencedEmailKey = rs.getInt(7);
+      ep.content = this.lazyContent(ep.key, rs.getString(8), length);
+
+      // the root part is inserted first, its parent is the envelope
+      if (root == null)
+        root = ep;
+      else if (parts.containsKey(ep.parentKey))
+        parts.get(ep.parentKey).children.add(ep);
+      parts.put(ep.key, ep);
+    }
+    rs.close();
+
+    if (root != null)
+      this.partTreeCache.put(keyEmail, root);
+    return root;
+  }
+
+  public LRUCache<Integer, EmailPart> getPartTreeCache() {
+    return this.partTreeCache;
   }
 
   private String getProperty(String key) {
-    return this.strip(this.dbProps.getProperty(key));
+    return Config.getProperty(this.dbProps, key, null);
   }
 
   public void insertChildParts(EmailPart parent) throws SQLException {
@@ -142,43 +474,45 @@ public class MailDB {
   }
 
   public boolean insertEnvelope(EmailMessage email) throws SQLException {
-    ResultSet rs = null;
-    try {
-      this.stmntInsertEnvelope.setString(1, email.messageid);
-      this.stmntInsertEnvelope.setString(2, email.subject);
-      this.stmntInsertEnvelope.setDate(3, email.senddate);
-      this.stmntInsertEnvelope.setString(4, email.xmailer);
-      this.stmntInsertEnvelope.setString(5, email.useragent);
-
-      try {
-        this.stmntInsertEnvelope.executeUpdate();
-
-        rs = this.stmntInsertPart.getGeneratedKeys();
-
-        if (rs.next())
-          email.key = rs.getInt(1);
-      } catch (SQLException ex) {
-        if (this.throwSQLException(ex) && email.referenced) {
-          this.stmntSelectEnvelope.setString(1, email.messageid);
-          rs = this.stmntSelectEnvelope.executeQuery();
+    if (this.bulkLoader != null)
+      return this.bulkLoader.insertEnvelope(this.bulkTransaction, email);
 
-          if (rs.next())
-            email.key = rs.getInt(1);
-        }
+    try {
+      this.upsertEnvelope.setString(1, email.messageid);
+      this.upsertEnvelope.setString(2, email.subject);
+      this.upsertEnvelope.setDate(3, email.senddate);
+      this.upsertEnvelope.setString(4, email.xmailer);
+      this.upsertEnvelope.setString(5, email.useragent);
+      this.upsertEnvelope.setInt(6, email.bodyImported);
+      if (email.conversation != 0)
+        this.upsertEnvelope.setInt(7, email.conversation);
+      else
+        this.upsertEnvelope.setNull(7, Types.INTEGER);
+
+      long start = System.nanoTime();
+      boolean inserted = this.upsertEnvelope.execute();
+      email.key = this.upsertEnvelope.getKey();
+      this.stats.insertEnvelope.since(start);
+      if (email.key == 0)
+        throw new SQLException("No key for envelope " + email.messageid);
+
+      // imported before, with its subscribers and parts, unless only as
+      // an attached message: then the subscribers are there and the parts
+      // are stored now
+      if (!inserted) {
+        if (email.referenced || !this.claimEnvelope(email))
+          email.duplicate = true;
+        return true;
       }
 
-      if (rs != null)
-        rs.close();
-
       if (email.from != null)
-        this.insertEnvelopeSubscriber(email.key, email.from.elements(), FROM);
+        this.insertEnvelopeSubscriber(email.key, email.from, FROM);
       if (email.to != null)
-        this.insertEnvelopeSubscriber(email.key, email.to.elements(), TO);
+        this.insertEnvelopeSubscriber(email.key, email.to, TO);
       if (email.replyto != null)
-        this.insertEnvelopeSubscriber(email.key, email.replyto.elements(),
-            REPLYTO);
+        this.insertEnvelopeSubscriber(email.key, email.replyto, REPLYTO);
       if (email.cc != null)
-        this.insertEnvelopeSubscriber(email.key, email.cc.elements(), CC);
+        this.insertEnvelopeSubscriber(email.key, email.cc, CC);
 
       return true;
     } catch (SQLException e) {
@@ -187,107 +521,174 @@ public class MailDB {
     return false;
   }
 
+  /*
+   * Takes over an envelope stored only for an attached message, the
+   * condition on bodyImported lets one writer win
+   */
+  private boolean claimEnvelope(EmailMessage email) throws SQLException {
+    this.stmntClaimEnvelope.setInt(1, email.bodyImported);
+    if (email.conversation != 0)
+      this.stmntClaimEnvelope.setInt(2, email.conversation);
+    else
+      this.stmntClaimEnvelope.setNull(2, Types.INTEGER);
+    this.stmntClaimEnvelope.setInt(3, email.key);
+    this.stmntClaimEnvelope.setInt(4, EmailMessage.BODY_REFERENCED);
+    if (this.stmntClaimEnvelope.executeUpdate() == 0)
+      return false;
+
+    this.envelopeCache.remove(email.key);
+    this.partTreeCache.remove(email.key);
+    return true;
+  }
+
+  /*
+   * Part keys are never reused, a collision here is an error and not a
+   * duplicate to skip
+   */
   public boolean insertEnvelopePart(int keyEmail, int keyParent, int keyPart)
       throws SQLException {
+    long start = System.nanoTime();
     try {
       this.stmntInsertEnvelopePart.setInt(1, keyEmail);
       this.stmntInsertEnvelopePart.setInt(2, keyPart);
       this.stmntInsertEnvelopePart.setInt(3, keyParent);
-      this.stmntInsertEnvelopePart.executeUpdate();
+
+      if (this.batchSizeEnvelopePart > 1) {
+        this.stmntInsertEnvelopePart.addBatch();
+        if (++this.pendingEnvelopePart >= this.batchSizeEnvelopePart)
+          this.flushEnvelopeParts();
+      } else
+        this.stmntInsertEnvelopePart.executeUpdate();
       return true;
-    } catch (SQLException e) {
-      this.throwSQLException(e);
+    } finally {
+      this.stats.insertEnvelopePart.since(start);
     }
-    return false;
   }
 
-  public boolean insertEnvelopeSubscriber(int keyEmail,
-      Enumeration<Integer> keys, String type) throws SQLException {
-    while (keys.hasMoreElements()) {
+  /*
+   * Links each subscriber once per type, an address can be listed twice in
+   * the same header
+   */
+  public boolean insertEnvelopeSubscriber(int keyEmail, Vector<Integer> keys,
+      String type) throws SQLException {
+    HashSet<Integer> linked = new HashSet<Integer>();
+    for (Integer key : keys) {
+      if (!linked.add(key))
+        continue;
+
+      long start = System.nanoTime();
       try {
         this.stmntInsertEnvelopeSubscriber.setInt(1, keyEmail);
-        this.stmntInsertEnvelopeSubscriber.setInt(2, keys.nextElement());
+        this.stmntInsertEnvelopeSubscriber.setInt(2, key);
         this.stmntInsertEnvelopeSubscriber.setString(3, type);
-        this.stmntInsertEnvelopeSubscriber.executeUpdate();
+
+        if (this.batchSizeEnvelopeSubscriber > 1) {
+          this.stmntInsertEnvelopeSubscriber.addBatch();
+          if (++this.pendingEnvelopeSubscriber >= this.batchSizeEnvelopeSubscriber)
+            this.flushEnvelopeSubscribers();
+        } else
+          this.stmntInsertEnvelopeSubscriber.executeUpdate();
       } catch (SQLException e) {
         this.throwSQLException(e);
+      } finally {
+        this.stats.insertEnvelopeSubscriber.since(start);
       }
     }
     return true;
   }
 
   public boolean insertPart(EmailPart ep) throws SQLException {
-    try {
-      ResultSet rs = null;
-      Blob b = null;
-      ;
-
-      this.stmntInsertPart.setString(1, ep.fileName);
-      if (ep.content != null)
-        this.stmntInsertPart.setBinaryStream(2, new ByteArrayInputStream(
-            ep.content), ep.content.length);
-      else
-        this.stmntInsertPart.setBlob(2, (Blob) null);
-
-      this.stmntInsertPart.setString(3, ep.contentType);
-      this.stmntInsertPart
-          .setInt(4, ep.content != null ? ep.content.length : 0);
-      this.stmntInsertPart.setString(5, ep.decodedContent);
-      this.stmntInsertPart.setInt(6, ep.referencedEmailKey);
-      this.stmntInsertPart.executeUpdate();
-
-      rs = this.stmntInsertPart.getGeneratedKeys();
-
-      if (rs.next()) {
-        int keyPart = rs.getInt(1);
-        ep.key = keyPart;
-        this.insertEnvelopePart(ep.emailKey, ep.parentKey, keyPart);
-
-      } else {
-        System.err.println("No key for child of: " + ep.parentKey);
-      }
+    if (this.bulkLoader != null) {
+      this.countPart(ep);
+      return this.bulkLoader.insertPart(this.bulkTransaction, ep,
+          this.dedupContent);
+    }
 
-      if (rs != null)
-        rs.close();
+    long start = System.nanoTime();
+    InputStream in = null;
+    PartContent inline = null;
+    boolean batched = this.batchSizePart > 1;
+    try {
+      ep.key = this.keyAllocator.next("Part", "idPart");
+      inline = this.storeContent(ep);
+
+      this.stmntInsertPartKeyed.setInt(1, ep.key);
+      this.stmntInsertPartKeyed.setString(2, ep.fileName);
+      in = this.setContent(this.stmntInsertPartKeyed, 3, inline);
+      this.stmntInsertPartKeyed.setString(4, ep.contentType);
+      this.stmntInsertPartKeyed.setInt(5, ep.content != null ? (int) ep.content
+          .length() : 0);
+      this.stmntInsertPartKeyed.setString(6, ep.decodedContent);
+      this.stmntInsertPartKeyed.setInt(7, ep.referencedEmailKey);
+      this.stmntInsertPartKeyed.setString(8, inline == null
+          && ep.content != null ? ep.content.getDigest() : null);
+      this.stmntInsertPartKeyed.setInt(9, inline != null ? inline.getCodec()
+          : PartContent.CODEC_NONE);
+
+      if (batched) {
+        this.stmntInsertPartKeyed.addBatch();
+
+        // spilled content is streamed from its temp file right away
+        this.pendingPartBytes += inline != null ? inline.length() : 0;
+        if (++this.pendingPart >= this.batchSizePart
+            || this.pendingPartBytes >= this.batchBytes
+            || (inline != null && inline.isSpilled()))
+          this.flushParts();
+      } else
+        this.stmntInsertPartKeyed.executeUpdate();
+      this.stats.insertPart.since(start);
+      this.countPart(ep);
+
+      this.insertEnvelopePart(ep.emailKey, ep.parentKey, ep.key);
       return true;
-    } catch (SQLException e) {
-      this.throwSQLException(e);
+    } finally {
+      if (!batched || (inline != null && inline.isSpilled()))
+        this.closeQuietly(in);
+      // a deflated copy in memory stays referenced by the batched stream
+      if (inline != null && inline != ep.content)
+        inline.dispose();
     }
-    return false;
   }
 
   public Vector<Integer> insertSubscriber(InternetAddress[] a)
       throws SQLException {
-    addresscnt += a.length;
+    this.stats.addresses.addAndGet(a.length);
+    if (this.bulkLoader != null)
+      return this.bulkLoader.insertSubscriber(a);
 
-    ResultSet rs = null;
     Vector<Integer> keys = new Vector<Integer>();
 
     for (int j = 0; j < a.length; j++) {
       try {
-        this.stmntInsertSubscriber.setString(1, a[j].getAddress());
-        this.stmntInsertSubscriber.setString(2, a[j].getPersonal());
-
-        try {
-          this.stmntInsertSubscriber.executeUpdate();
-          rs = this.stmntInsertSubscriber.getGeneratedKeys();
+        String cacheKey = SubscriberCache.key(a[j].getAddress(), a[j]
+            .getPersonal());
+        Integer key = this.pendingSubscribers.get(cacheKey);
+        if (key == null && this.subscriberCache != null)
+          key = this.subscriberCache.get(cacheKey);
+
+        if (key != null) {
+          keys.add(key);
+          continue;
+        }
 
-          if (rs.next())
-            keys.add(rs.getInt(1));
+        this.upsertSubscriber.setString(1, a[j].getAddress());
+        this.upsertSubscriber.setString(2, a[j].getPersonal());
 
-        } catch (SQLException ex) {
-          if (this.throwSQLException(ex)) {
-            this.stmntSelectSubscriber.setString(1, a[j].getAddress());
-            this.stmntSelectSubscriber.setString(2, a[j].getPersonal());
-            rs = this.stmntSelectSubscriber.executeQuery();
+        long start = System.nanoTime();
+        boolean inserted = this.upsertSubscriber.execute();
+        this.stats.insertSubscriber.since(start);
 
-            if (rs.next())
-              keys.add(rs.getInt(1));
-          }
-        }
+        if (this.upsertSubscriber.getKey() == 0)
+          throw new SQLException("No key for subscriber " + cacheKey);
+        keys.add(key = this.upsertSubscriber.getKey());
+        // rows of other transactions can be cached right away
+        if (inserted)
+          this.pendingSubscribers.put(cacheKey, key);
+        else if (this.subscriberCache != null)
+          this.subscriberCache.put(cacheKey, key);
 
-        if (rs != null)
-          rs.close();
+        if (this.autocommit)
+          this.publishPending();
 
       } catch (SQLException e) {
         this.throwSQLException(e);
@@ -296,22 +697,266 @@ public class MailDB {
     return keys;
   }
 
-  private void parseErrorCodes(String codeList) {
-    this.ignoredSQLErrors = new TreeSet<Integer>();
-    StringTokenizer errCodes = new StringTokenizer(codeList, ",");
-    while (errCodes.hasMoreTokens())
-      this.ignoredSQLErrors.add(Integer.parseInt(errCodes.nextToken().trim()));
+  public boolean isValid(int timeout) {
+    try {
+      return this.conn.isValid(timeout);
+    } catch (SQLException e) {
+      if (debug)
+        e.printStackTrace();
+      return false;
+    }
+  }
+
+  private PartContent lazyContent(final int keyPart, final String digest,
+      long length) {
+    return PartContent.lazy(new PartContent.Source() {
+      public InputStream open() throws IOException {
+        try {
+          return MailDB.this.openContent(keyPart, digest);
+        } catch (SQLException e) {
+          throw new IOException("Part content unreadable: " + e.getMessage(),
+              e);
+        }
+      }
+    }, length, digest);
+  }
+
+  private EmailPart.TextSource lazyDecoded(final int keyPart) {
+    return new EmailPart.TextSource() {
+      public String load() throws IOException {
+        try {
+          MailDB.this.stmntSelectDecoded.setInt(1, keyPart);
+          ResultSet rs = MailDB.this.stmntSelectDecoded.executeQuery();
+          String decoded = rs.next() ? rs.getString(1) : null;
+          rs.close();
+          return decoded;
+        } catch (SQLException e) {
+          throw new IOException("Part text unreadable: " + e.getMessage(), e);
+        }
+      }
+    };
+  }
+
+  /*
+   * Parts with a digest keep their body in PartBlob, others inline. The body
+   * is streamed from the result set, which is closed with the stream.
+   */
+  private InputStream openContent(int keyPart, String digest)
+      throws SQLException {
+    final PreparedStatement stmnt;
+    if (digest != null) {
+      stmnt = this.conn
+          .prepareStatement("select codec, content from PartBlob where digest = ?");
+      stmnt.setString(1, digest);
+    } else {
+      stmnt = this.conn
+          .prepareStatement("select codec, content from Part where idPart = ?");
+      stmnt.setInt(1, keyPart);
+    }
+
+    final ResultSet rs;
+    InputStream in = null;
+    int codec = PartContent.CODEC_NONE;
+    try {
+      rs = stmnt.executeQuery();
+      // columns in order, the stream is only valid until the next getter
+      if (rs.next()) {
+        codec = rs.getInt(1);
+        in = rs.getBinaryStream(2);
+      }
+    } catch (SQLException e) {
+      stmnt.close();
+      throw e;
+    }
+
+    if (in == null) {
+      rs.close();
+      stmnt.close();
+      return new ByteArrayInputStream(new byte[0]);
+    }
+
+    try {
+      return PartContent.decode(new FilterInputStream(in) {
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            try {
+              rs.close();
+              stmnt.close();
+            } catch (SQLException e) {
+              if (debug)
+                e.printStackTrace();
+            }
+          }
+        }
+      }, codec);
+    } catch (IOException e) {
+      rs.close();
+      stmnt.close();
+      throw new SQLException("Part content unreadable: " + e.getMessage(), e);
+    }
+  }
+
+  /*
+   * Discards everything written since the last commit, including batched
+   * rows and cache entries that were waiting for the commit.
+   */
+  public void rollback() throws SQLException {
+    this.pendingPart = 0;
+    this.pendingPartBytes = 0;
+    this.pendingEnvelopePart = 0;
+    this.pendingEnvelopeSubscriber = 0;
+    this.stmntInsertPartKeyed.clearBatch();
+    this.stmntInsertEnvelopePart.clearBatch();
+    this.stmntInsertEnvelopeSubscriber.clearBatch();
+    this.pendingSubscribers.clear();
+    this.pendingDigests.clear();
+    if (this.bulkLoader != null)
+      this.bulkLoader.rollback(this.bulkTransaction);
+
+    if (!this.autocommit)
+      this.conn.rollback();
+  }
+
+  public void setBulkLoader(BulkLoader bulkLoader) {
+    this.bulkLoader = bulkLoader;
+    this.bulkTransaction = bulkLoader != null ? bulkLoader.begin() : null;
+  }
+
+  public void setDigestCache(LRUCache<String, Boolean> digestCache) {
+    this.digestCache = digestCache;
+  }
+
+  public void setKeyAllocator(KeyAllocator keyAllocator) {
+    this.keyAllocator = keyAllocator;
+  }
+
+  public void setStats(ImportStats stats) {
+    this.stats = stats;
+  }
+
+  public void setSubscriberCache(SubscriberCache subscriberCache) {
+    this.subscriberCache = subscriberCache;
   }
 
-  private String strip(String prop) {
-    if (prop != null) {
-      prop = prop.trim();
-      int lastChar = prop.length() - 1;
-      if (prop.charAt(0) == '"' && prop.charAt(lastChar) == '"')
-        return prop.substring(1, lastChar);
+  public void setBodyImported(int keyEmail, int bodyImported)
+      throws SQLException {
+    PreparedStatement stmnt = this.conn
+        .prepareStatement("update Envelope set bodyImported = ? where idEnvelope = ?");
+    try {
+      stmnt.setInt(1, bodyImported);
+      stmnt.setInt(2, keyEmail);
+      stmnt.executeUpdate();
+    } finally {
+      stmnt.close();
+    }
+
+    EmailMessage cached = this.envelopeCache.get(keyEmail);
+    if (cached != null)
+      cached.bodyImported = bodyImported;
+  }
+
+  public void setTruncateOnConnect(boolean truncateOnConnect) {
+    this.truncateOnConnect = truncateOnConnect;
+  }
+
+  private PreparedStatement prepareCursor(String where) throws SQLException {
+    PreparedStatement stmnt = this.conn.prepareStatement(SELECT_ENVELOPE
+        + where + " order by e.idEnvelope", ResultSet.TYPE_FORWARD_ONLY,
+        ResultSet.CONCUR_READ_ONLY);
+    stmnt.setFetchSize(this.fetchSize);
+    return stmnt;
+  }
+
+  private void publishPending() {
+    if (this.subscriberCache != null)
+      this.subscriberCache.putAll(this.pendingSubscribers);
+    this.pendingSubscribers.clear();
+
+    if (this.digestCache != null) {
+      for (String digest : this.pendingDigests)
+        this.digestCache.put(digest, Boolean.TRUE);
+    }
+    this.pendingDigests.clear();
+  }
+
+  private InputStream setContent(PreparedStatement stmnt, int index,
+      PartContent content) throws SQLException {
+    if (content == null) {
+      stmnt.setBlob(index, (Blob) null);
+      return null;
+    }
+
+    try {
+      InputStream in = content.openStream();
+      stmnt.setBinaryStream(index, in, (int) content.length());
+      return in;
+    } catch (IOException e) {
+      throw new SQLException("Part content unreadable: " + e.getMessage(), e);
+    }
+  }
+
+  private PartContent encode(EmailPart ep) throws SQLException {
+    try {
+      return this.compressor.encode(ep.content, ep.contentType);
+    } catch (IOException e) {
+      throw new SQLException("Part content unreadable: " + e.getMessage(), e);
+    }
+  }
+
+  /*
+   * Content addressed storage: the body goes to PartBlob once per digest and
+   * the Part row only references it. Returns the, possibly compressed,
+   * content to store inline in Part or null.
+   */
+  private PartContent storeContent(EmailPart ep) throws SQLException {
+    PartContent content = ep.content;
+    if (!this.dedupContent || content == null)
+      return this.encode(ep);
+
+    String digest = content.getDigest();
+    if (this.pendingDigests.contains(digest)
+        || (this.digestCache != null && this.digestCache.get(digest) != null))
+      return null;
+
+    long start = System.nanoTime();
+    this.stmntSelectBlob.setString(1, digest);
+    ResultSet rs = this.stmntSelectBlob.executeQuery();
+    boolean exists = rs.next();
+    rs.close();
+
+    if (exists) {
+      if (this.digestCache != null)
+        this.digestCache.put(digest, Boolean.TRUE);
+      return null;
+    }
+
+    InputStream in = null;
+    PartContent blob = null;
+    try {
+      blob = this.encode(ep);
+      this.stmntInsertBlob.setString(1, digest);
+      in = this.setContent(this.stmntInsertBlob, 2, blob);
+      this.stmntInsertBlob.setInt(3, (int) content.length());
+      this.stmntInsertBlob.setInt(4, blob.getCodec());
+      // 0 if inserted concurrently by another connection
+      if (this.stmntInsertBlob.executeUpdate() > 0)
+        this.pendingDigests.add(digest);
       else
-        return prop;
+        this.stats.duplicates.incrementAndGet();
+    } catch (SQLException e) {
+      // the same, on databases without an insert that ignores it
+      this.throwSQLException(e);
+    } finally {
+      this.closeQuietly(in);
+      if (blob != null && blob != content)
+        blob.dispose();
+      this.stats.insertBlob.since(start);
     }
+
+    if (this.autocommit)
+      this.publishPending();
     return null;
   }
 
@@ -319,10 +964,15 @@ public class MailDB {
     if (debug)
       ex.printStackTrace();
 
-    if (!this.ignoredSQLErrors.contains(ex.getErrorCode()))
+    if (!this.dialect.isDuplicateKey(ex))
       throw ex;
-    else
-      return true;
+
+    this.stats.duplicates.incrementAndGet();
+    return true;
+  }
+
+  public void touch() {
+    this.lastUsed = System.currentTimeMillis();
   }
 
   private void truncateAll(Connection conn) throws SQLException {
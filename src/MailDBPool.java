@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.Vector;
+import java.util.concurrent.LinkedBlockingQueue;
+
+public class MailDBPool {
+  private Properties dbProps;
+  private LinkedBlockingQueue<MailDB> idle = new LinkedBlockingQueue<MailDB>();
+  private Vector<MailDB> connections = new Vector<MailDB>();
+  private KeyAllocator keyAllocator = null;
+  private BulkLoader bulkLoader = null;
+  private SubscriberCache subscriberCache;
+  private LRUCache<String, Boolean> digestCache;
+  private ImportStats stats = new ImportStats();
+
+  private int poolSize;
+  private long validateIdleMillis;
+  private int validateTimeout;
+  private boolean closed = false;
+
+  public MailDBPool(Properties dbProps) {
+    this.dbProps = dbProps;
+    this.poolSize = Config.getIntProperty(dbProps, "db.poolSize", Config
+        .getIntProperty(dbProps, "threads", 1));
+    this.validateIdleMillis = Config.getIntProperty(dbProps,
+        "db.validateIdleMillis", 30000);
+    this.validateTimeout = Config.getIntProperty(dbProps,
+        "db.validateTimeout", 5);
+
+    if (this.poolSize < 1)
+      this.poolSize = 1;
+
+    this.subscriberCache = new SubscriberCache(Config.getIntProperty(
+        dbProps, "db.subscriberCacheSize", 100000));
+    this.digestCache = new LRUCache<String, Boolean>(Config.getIntProperty(
+        dbProps, "db.digestCacheSize", 100000));
+  }
+
+  public synchronized void close() {
+    this.closed = true;
+    Vector<MailDB> all = new Vector<MailDB>(this.connections);
+    this.connections.clear();
+    this.idle.clear();
+
+    if (this.bulkLoader != null && !all.isEmpty()) {
+      try {
+        this.bulkLoader.load(all.get(0).getConnection());
+      } catch (Exception e) {
+        System.err.println("Bulk load failed, staging files kept in "
+            + this.bulkLoader.getDirectory());
+        e.printStackTrace();
+      }
+    }
+
+    if (this.keyAllocator != null) {
+      try {
+        this.keyAllocator.close();
+      } catch (SQLException e) {
+        if (MailDB.debug)
+          e.printStackTrace();
+      }
+    }
+
+    for (MailDB db : all) {
+      try {
+        db.close();
+      } catch (SQLException e) {
+        if (MailDB.debug)
+          e.printStackTrace();
+      }
+    }
+    System.err.println(this.stats);
+    System.err.println("subscriber cache: " + this.subscriberCache);
+    System.err.println("digest cache: " + this.digestCache);
+  }
+
+  public Connection createConnection() throws IllegalAccessException,
+      InstantiationException, SQLException, ClassNotFoundException {
+    return new MailDB(this.dbProps).createConnection();
+  }
+
+  public SqlDialect getDialect() {
+    return SqlDialect.forProperties(this.dbProps);
+  }
+
+  public int getPoolSize() {
+    return this.poolSize;
+  }
+
+  public ImportStats getStats() {
+    return this.stats;
+  }
+
+  public boolean isBulkLoading() {
+    return this.bulkLoader != null;
+  }
+
+  public SubscriberCache getSubscriberCache() {
+    return this.subscriberCache;
+  }
+
+  public MailDB lease() throws InterruptedException, IllegalAccessException,
+      InstantiationException, SQLException, ClassNotFoundException {
+    MailDB db = this.idle.poll();
+
+    if (db == null) {
+      db = this.create();
+      if (db == null)
+        db = this.idle.take();
+    }
+
+    if (System.currentTimeMillis() - db.getLastUsed() > this.validateIdleMillis
+        && !db.isValid(this.validateTimeout)) {
+      System.err.println("Replacing stale DB connection");
+      this.discard(db);
+      db = this.create();
+      if (db == null)
+        db = this.idle.take();
+    }
+    return db;
+  }
+
+  public void open() throws IllegalAccessException, InstantiationException,
+      SQLException, ClassNotFoundException {
+    MailDB db = new MailDB(this.dbProps);
+    // shared by all connections, each would otherwise reserve its own blocks
+    this.keyAllocator = new KeyAllocator(db.createConnection(), Config
+        .getIntProperty(this.dbProps, "db.keyBlockSize", 1000));
+    db.setKeyAllocator(this.keyAllocator);
+    db.connect();
+
+    if (Config.getBooleanProperty(this.dbProps, "db.bulkLoad", false)) {
+      String dir = Config.getProperty(this.dbProps, "db.bulkLoad.dir", null);
+      try {
+        this.bulkLoader = new BulkLoader(dir != null ? new File(dir) : null,
+            this.dbProps, this.keyAllocator);
+      } catch (IOException e) {
+        throw new SQLException(e.getMessage(), e);
+      }
+      // after db.truncateOnConnect, before anything is staged
+      this.bulkLoader.checkEmpty(db.getConnection());
+      System.out.print("staging rows in " + this.bulkLoader.getDirectory()
+          + "... ");
+    }
+    db.setBulkLoader(this.bulkLoader);
+    db.setSubscriberCache(this.subscriberCache);
+    db.setDigestCache(this.digestCache);
+    db.setStats(this.stats);
+    this.subscriberCache.warm(db.getConnection());
+
+    this.connections.add(db);
+    this.idle.add(db);
+  }
+
+  public void release(MailDB db) {
+    if (db == null)
+      return;
+
+    db.touch();
+    synchronized (this) {
+      if (this.closed || !this.connections.contains(db)) {
+        this.discard(db);
+        return;
+      }
+    }
+    this.idle.add(db);
+  }
+
+  private MailDB create() throws IllegalAccessException,
+      InstantiationException, SQLException, ClassNotFoundException {
+    synchronized (this) {
+      if (this.closed)
+        throw new SQLException("Connection pool closed");
+      if (this.connections.size() >= this.poolSize)
+        return null;
+    }
+
+    MailDB db = new MailDB(this.dbProps);
+    db.setTruncateOnConnect(false);
+    db.setKeyAllocator(this.keyAllocator);
+    db.setBulkLoader(this.bulkLoader);
+    db.setSubscriberCache(this.subscriberCache);
+    db.setDigestCache(this.digestCache);
+    db.setStats(this.stats);
+    db.connect();
+
+    synchronized (this) {
+      if (this.connections.size() < this.poolSize) {
+        this.connections.add(db);
+        return db;
+      }
+    }
+    db.close();
+    return null;
+  }
+
+  private void discard(MailDB db) {
+    this.connections.remove(db);
+    try {
+      db.close();
+    } catch (SQLException e) {
+      if (MailDB.debug)
+        e.printStackTrace();
+    }
+  }
+}
@@ -21,14 +21,21 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
 import java.util.Date;
+import java.util.Enumeration;
 import java.util.Properties;
 import java.util.Vector;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import javax.mail.*;
 import javax.mail.internet.*;
 
 public class MailImport {
+  public final static String NATIVE_MBOX = "mmbox";
+
   public static void main(String argv[]) {
     try {
       if (argv.length != 2) {
@@ -57,9 +64,10 @@ public class MailImport {
   public static byte[] readByteArray(InputStream in) throws IOException {
     try {
       ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-      int c;
-      while ((c = in.read()) != -1)
-        buffer.write(c);
+      byte[] buf = new byte[8192];
+      int n;
+      while ((n = in.read(buf)) != -1)
+        buffer.write(buf, 0, n);
 
       return buffer.toByteArray();
     } catch (Exception e) {
@@ -69,12 +77,51 @@ public class MailImport {
     }
   }
 
-  private MailDB db;
+  private MailDBPool pool;
+
+  private MessageIdFilter knownMessages = null;
 
   private Store store;
 
   private Session session;
 
+  private int spillThreshold = 1024 * 1024;
+
+  private File spillDir = null;
+
+  private boolean spoolMessages = true;
+
+  private boolean headersOnly = false;
+
+  private ContentTypeFilter bodyFilter = null;
+
+  private int fetchWindow = 500;
+
+  private int rangesPerFolder = 1;
+
+  private int checkpointInterval = 1000;
+
+  private SyncCheckpoints syncCheckpoints = null;
+
+  private FullTextIndex fullTextIndex = null;
+
+  private ConversationIndex conversations = null;
+
+  private StatsRollup rollups = null;
+
+  private ImportStats stats = null;
+
+  private AddressParser addressParser;
+
+  /*
+   * Parser only, for tools and benchmarks that don't run an import
+   */
+  public MailImport(Session session) {
+    this.session = session;
+    this.addressParser = new AddressParser(session, 100000);
+    this.stats = new ImportStats();
+  }
+
   public MailImport(File configFile, String[] mboxNames) throws Exception {
     try {
       System.out.print("Loading DB configuration... ");
@@ -82,83 +129,145 @@ public class MailImport {
       System.out.println("Done");
 
       System.out.print("Connecting to DB... ");
-      this.db = new MailDB(importProps);
-      this.db.connect();
+      this.pool = new MailDBPool(importProps);
+      this.pool.open();
       System.out.println("Done");
 
+      this.stats = this.pool.getStats();
+      try {
+        this.stats.register();
+      } catch (Exception e) {
+        System.err.println("Registering import MBean failed: "
+            + e.getMessage());
+      }
+      this.stats.start(Config.getIntProperty(importProps,
+          "import.statsInterval", 10));
+
+      if (Config.getBooleanProperty(importProps, "import.skipKnown", false)) {
+        System.out.print("Loading known Message-IDs... ");
+        this.knownMessages = this.loadKnownMessages(importProps);
+        System.out.println("Done");
+      }
+
+      if (Config.getBooleanProperty(importProps, "import.incremental", false))
+        this.syncCheckpoints = new SyncCheckpoints(this.pool
+            .createConnection());
+
+      if (Config.getBooleanProperty(importProps, "import.conversations",
+          false)) {
+        System.out.print("Loading conversations... ");
+        // bulk loaded envelopes can only be updated after the load
+        this.conversations = new ConversationIndex(this.pool
+            .createConnection(), this.pool.getDialect(), this.pool
+            .isBulkLoading() ? 0 : Config.getIntProperty(importProps,
+            "import.conversationFlushMessages", 10000));
+        System.out.println("Done");
+      }
+
+      if (Config.getBooleanProperty(importProps, "import.rollups", false))
+        this.rollups = new StatsRollup(this.pool.createConnection(),
+            this.pool.getDialect(), Config.getIntProperty(importProps,
+                "import.rollupFlushMessages", 10000));
+
+      String indexDir = Config.getProperty(importProps, "index.dir", null);
+      if (indexDir != null) {
+        System.out.print("Opening full text index... ");
+        this.fullTextIndex = new FullTextIndex(new File(indexDir),
+            importProps);
+        if (Config.getBooleanProperty(importProps, "db.truncateOnConnect",
+            false))
+          this.fullTextIndex.clear();
+        System.out.println("Done");
+      }
+
+      this.spillThreshold = Config.getIntProperty(importProps,
+          "import.spillThreshold", this.spillThreshold);
+      String dir = Config.getProperty(importProps, "import.spillDir", null);
+      if (dir != null)
+        this.spillDir = new File(dir);
+      // windows, checkpoints and ranges need at least one message
+      this.fetchWindow = Math.max(1, Config.getIntProperty(importProps,
+          "import.fetchWindow", this.fetchWindow));
+      this.checkpointInterval = Math.max(1, Config.getIntProperty(
+          importProps, "import.checkpointInterval", this.checkpointInterval));
+      this.rangesPerFolder = Math.max(1, Config.getIntProperty(importProps,
+          "import.rangesPerFolder", this.rangesPerFolder));
+      this.spoolMessages = Config.getBooleanProperty(importProps,
+          "pipeline.spoolMessages", this.spoolMessages);
+      this.headersOnly = Config.getProperty(importProps, "import.mode", "")
+          .equalsIgnoreCase("headers");
+      this.setBodyFilter(new ContentTypeFilter(Config.getProperty(
+          importProps, "import.bodyTypes", null), Config.getProperty(
+          importProps, "import.skipBodyTypes", null)));
+
       System.out.print("Connecting to Mailbox... ");
       this.store = this.openMbox(importProps);
       System.out.println("Done");
 
-      final Semaphore sema = new Semaphore(Integer.parseInt(importProps
-          .getProperty("threads")));
-      for (int i = 0; i < mboxNames.length; i++) {
-        final String name = mboxNames[i];
-        try {
-          System.out.println(name + " open... ");
-          Folder f = this.openFolder(this.store, name);
-
-          System.out.println(name + " fetch messages... ");
-          final Message[] msgs = this.fetch(f);
-
-          sema.acquire();
-
-          new Thread() {
-            public void run() {
-              try {
-                System.out.println(name + " import " + msgs.length
-                    + " messages... ");
-                MailImport.this.importMessages(name, msgs);
-                System.out.println(name + " done ");
-              } catch (Throwable t) {
-                t.printStackTrace();
-              } finally {
-                sema.release();
-              }
-            }
-          }.start();
-        } catch (Throwable t) {
-          System.err.println("### FAILED: " + name);
-          t.printStackTrace();
-        }
+      ImportPipeline pipeline = new ImportPipeline(this, this.pool,
+          importProps);
+      this.stats.setPipeline(pipeline);
+      pipeline.start();
+      for (int i = 0; i < mboxNames.length; i++)
+        pipeline.submit(mboxNames[i]);
 
-      }
+      pipeline.await();
     } catch (Exception e) {
       e.printStackTrace();
       System.err.flush();
       System.exit(2);
     } finally {
-      /*
-       * try {
-       * db.close();
-       * } catch (Exception e1) {
-       * e1.printStackTrace();
-       * }
-       * try {
-       * store.close();
-       * } catch (Exception e1) {
-       * e1.printStackTrace();
-       * }
-       */
+      if (this.stats != null)
+        this.stats.close();
+      if (this.pool != null)
+        this.pool.close();
+      if (this.addressParser != null)
+        System.err.println("address cache: " + this.addressParser);
+      try {
+        if (this.knownMessages != null)
+          this.knownMessages.close();
+        if (this.syncCheckpoints != null)
+          this.syncCheckpoints.close();
+        if (this.fullTextIndex != null)
+          this.fullTextIndex.close();
+        if (this.conversations != null)
+          this.conversations.close();
+        if (this.rollups != null)
+          this.rollups.close();
+      } catch (Exception e1) {
+        e1.printStackTrace();
+      }
+      try {
+        if (this.store != null && this.store.isConnected())
+          this.store.close();
+      } catch (Exception e1) {
+        e1.printStackTrace();
+      }
     }
   }
 
   public EmailPart buildPartTree(EmailMessage parent, Part p)
       throws MailImportException {
     EmailPart ep = new EmailPart();
-    EmailMessage referencedEmail = null;
 
     try {
-      if (p instanceof Message) {
-        if ((referencedEmail = this.importEnvelope((Message) p, -1, true)) != null)
-          ep.referencedEmailKey = referencedEmail.key;
-      }
+      if (p instanceof Message)
+        ep.referencedEmail = this.parseEnvelope((Message) p, -1, true);
 
       ep.contentType = p.getContentType();
       Object content = null;
       try {
         ep.fileName = p.getFileName();
 
+        // filtered bodies are not stored, only the part is recorded. They
+        // are still downloaded if the fetch stage spooled the message.
+        if (this.bodyFilter != null && !p.isMimeType("multipart/*")
+            && !p.isMimeType("message/rfc822")
+            && !this.bodyFilter.accepts(ep.contentType)) {
+          parent.bodyImported = EmailMessage.BODY_PARTIAL;
+          return ep;
+        }
+
         try {
           // ### ANOTHER OUTLOOK WORKAROUND
           if (ep.contentType.contains("UTF-7")) {
@@ -178,7 +287,7 @@ public class MailImport {
         if (content != null) {
           if (p.isMimeType("text/plain")) {
             ep.decodedContent = content.toString();
-            ep.content = ep.decodedContent.getBytes();
+            ep.content = PartContent.wrap(ep.decodedContent.getBytes());
           } else if (p.isMimeType("multipart/*")
               && (content instanceof Multipart || content instanceof MimeMultipart)) {
             Multipart mp = (Multipart) content;
@@ -194,10 +303,10 @@ public class MailImport {
 
       if (content != null && ep.content == null) {
         if (content instanceof InputStream) {
-          ep.content = readByteArray((InputStream) content);
+          ep.content = this.readContent((InputStream) content);
         } else if (content instanceof String) {
           ep.decodedContent = content.toString();
-          ep.content = ep.decodedContent.getBytes();
+          ep.content = PartContent.wrap(ep.decodedContent.getBytes());
         }
       }
     } catch (Exception e) {
@@ -207,117 +316,200 @@ public class MailImport {
     return ep;
   }
 
-  public Message[] fetch(Folder folder) throws MessagingException {
-    Message[] msgs = folder.getMessages();
+  public Message[] fetch(Folder folder, int start, int end)
+      throws Exception {
+    long begin = System.nanoTime();
+    Message[] msgs = folder.getMessages(start, end);
     FetchProfile fp = new FetchProfile();
     fp.add(FetchProfile.Item.ENVELOPE);
     fp.add(FetchProfile.Item.FLAGS);
     fp.add("X-Mailer");
+    fp.add("Message-ID");
+    fp.add("User-Agent");
+    fp.add("In-Reply-To");
+    fp.add("References");
+    if (this.syncCheckpoints != null && folder instanceof UIDFolder)
+      fp.add(UIDFolder.FetchProfileItem.UID);
     folder.fetch(msgs, fp);
+    this.stats.fetchWindow.since(begin);
+
+    if (this.knownMessages != null)
+      msgs = this.skipKnown(msgs);
 
     return msgs;
   }
 
-  private Address[] getInternetAddresses(MimeMessage m, String name)
-      throws MessagingException {
-    String value = m.getHeader(name, ",");
-
-    // ### MICROSOFT OUTLOOK WORKAROUND ### //
-    if (value != null && value.indexOf("<<") > -1) {
-      value = (value = value.replace("<<", "<")).replace(">>", ">");
+  private void fetchMbox(ImportRange range, ImportPipeline pipeline)
+      throws Exception {
+    MboxSource source = new MboxSource(new File(range.mailbox));
+    try {
+      source.seek(source.readCheckpoint());
+      range.checkpoint = new MboxCheckpoint(source, this.checkpointInterval);
+      System.out.println(range.mailbox + " import from offset "
+          + source.getPosition() + " of " + source.getSize() + "... ");
+
+      ByteBuffer msg;
+      int nr = 0;
+      long start = System.nanoTime();
+      while ((msg = source.next()) != null) {
+        this.stats.fetch.since(start);
+        ImportItem item = new ImportItem(range, nr++, null);
+        item.offset = source.getMessageOffset();
+        item.raw = PartContent.wrap(msg);
+        pipeline.put(item);
+        start = System.nanoTime();
+      }
+      range.end = Math.max(nr, range.start);
+    } finally {
+      // mapped buffers stay valid after the channel is closed
+      source.close();
     }
-
-    String s = this.session.getProperty("mail.mime.address.strict");
-    boolean strict = (s == null) || Boolean.valueOf(s).booleanValue();
-    return (value != null) ? InternetAddress.parseHeader(value, strict) : null;
   }
 
-  public EmailMessage importEnvelope(Message m, int nr, boolean referenced)
-      throws MailImportException {
-    InternetAddress[] a;
-    EmailMessage email = new EmailMessage();
-    email.nr = nr;
-    email.referenced = referenced;
-
-    try {
-      if ((a = (InternetAddress[]) this.getInternetAddresses((MimeMessage) m,
-          "From")) != null)
-        email.from = this.db.insertSubscriber(a);
+  public void fetchRange(ImportRange range, ImportPipeline pipeline)
+      throws Exception {
+    if (this.store == null) {
+      this.fetchMbox(range, pipeline);
+      return;
+    }
 
-      if ((a = (InternetAddress[]) this.getInternetAddresses((MimeMessage) m,
-          "Reply-to")) != null)
-        email.replyto = this.db.insertSubscriber(a);
+    String name = range.mailbox;
+    if (range.isWhole())
+      System.out.println(name + " open... ");
 
-      if ((a = (InternetAddress[]) this.getInternetAddresses((MimeMessage) m,
-          "To")) != null)
-        email.to = this.db.insertSubscriber(a);
+    final Folder f = this.openFolder(this.store, name);
+    try {
+      if (range.isWhole()) {
+        int total = f.getMessageCount();
+        if (this.syncCheckpoints != null && f instanceof UIDFolder) {
+          // one range per folder so the UID checkpoint only ever advances
+          if (!this.startIncremental((UIDFolder) f, range, total))
+            return;
+        } else {
+          System.out.println(name + " import " + total + " messages... ");
+
+          int parts = Math.min(this.rangesPerFolder, Math.max(1, total
+              / this.fetchWindow));
+          if (parts > 1) {
+            int size = (total + parts - 1) / parts;
+            for (int start = 1; start <= total; start += size)
+              pipeline.addRange(new ImportRange(name, start, Math.min(start
+                  + size - 1, total)));
+            return;
+          }
+          range.end = total;
+        }
+      }
 
-      if ((a = (InternetAddress[]) this.getInternetAddresses((MimeMessage) m,
-          "Cc")) != null)
-        email.cc = this.db.insertSubscriber(a);
+      // without spooling the parse stage still reads from the folder
+      if (!this.isSpooling())
+        range.folder = f;
+      int fetched = this.fetchWindows(f, range, pipeline);
+      int total = range.end - range.start + 1;
+      if (fetched < total)
+        System.out.println(range + " skipped " + (total - fetched)
+            + " known messages");
+    } finally {
+      // a handle only opened to count and split the mailbox is closed too
+      if (range.folder == null && f.isOpen())
+        f.close(false);
+    }
+  }
 
-      email.subject = m.getSubject();
-      Date senddate = m.getSentDate();
+  private int fetchWindows(Folder f, ImportRange range,
+      ImportPipeline pipeline) throws Exception {
+    ExecutorService prefetcher = pipeline.getFetchExecutor();
+    int fetched = 0;
+    Future<Message[]> next = this.prefetch(prefetcher, f, range.start, Math
+        .min(range.start + this.fetchWindow - 1, range.end));
+    try {
 
-      if (senddate != null) {
-        email.senddate = new java.sql.Date(senddate.getTime());
+      for (int start = range.start; start <= range.end; start += this.fetchWindow) {
+        Message[] msgs = next.get();
+
+        // fetch the next window while this one is imported
+        int nextStart = start + this.fetchWindow;
+        if (nextStart <= range.end)
+          next = this.prefetch(prefetcher, f, nextStart, Math.min(nextStart
+              + this.fetchWindow - 1, range.end));
+
+        fetched += msgs.length;
+        for (int i = 0; i < msgs.length; i++) {
+          ImportItem item = new ImportItem(range,
+              msgs[i].getMessageNumber() - 1, msgs[i]);
+          if (range.checkpoint instanceof UidCheckpoint)
+            item.offset = ((UIDFolder) f).getUID(msgs[i]);
+          msgs[i] = null;
+
+          if (this.isSpooling()) {
+            long begin = System.nanoTime();
+            try {
+              item.raw = this.spool(item.message);
+              item.message = null;
+              this.stats.fetch.since(begin);
+            } catch (Exception e) {
+              this.stats.failures.incrementAndGet();
+              new MailImportException("Message fetch failed", null, e)
+                  .handleException();
+              pipeline.putFailed(item);
+              continue;
+            }
+          }
+          pipeline.put(item);
+        }
       }
+    } finally {
+      next.cancel(true);
+    }
+    return fetched;
+  }
 
-      String[] header;
-      if ((header = m.getHeader("X-Mailer")) != null)
-        email.xmailer = header[0];
-      if ((header = m.getHeader("Message-ID")) != null)
-        email.messageid = header[0];
-      if ((header = m.getHeader("User-Agent")) != null)
-        email.useragent = header[0];
+  private InternetAddress[] getInternetAddresses(MimeMessage m, String name)
+      throws MessagingException {
+    return this.addressParser.parse(m.getHeader(name, ","));
+  }
 
-      if (this.db.insertEnvelope(email))
-        return email;
-      else
-        return null;
-    } catch (Exception e) {
-      throw new MailImportException("Message import failed", email, e);
-    }
+  /*
+   * Messages are copied in the fetch stage unless only their headers are
+   * imported, which the envelope prefetch has already loaded
+   */
+  private boolean isSpooling() {
+    return this.spoolMessages && !this.headersOnly;
   }
 
-  public void importMessages(String name, Message[] msgs)
-      throws MailImportException {
-    for (int i = 0; i < msgs.length; i++) {
-      EmailMessage email = null;
+  public void itemCommitted(ImportItem item) {
+    if (!item.stored)
+      return;
+
+    EmailMessage email = item.email;
+    this.stats.messages.incrementAndGet();
+    if (this.knownMessages != null && email.messageid != null)
+      this.knownMessages.add(email.messageid);
+
+    if (this.conversations != null) {
       try {
-        if ((email = this.importEnvelope(msgs[i], i, false)) == null)
-          throw new MailImportException("No Email returned", null, null);
-
-        this.importPart(email, msgs[i]);
-        this.db.commit();
-        msgs[i] = null;
-      } catch (MailImportException mbex) {
-        mbex.handleException();
-      } catch (Throwable t) {
-        System.err.println("Failed: " + name);
-        t.printStackTrace();
+        this.conversations.committed(email);
+      } catch (SQLException e) {
+        System.err.println("Saving conversations failed: " + e.getMessage());
       }
-
     }
-  }
 
-  public EmailPart importPart(EmailMessage email, Part p)
-      throws MailImportException {
-    try {
-      EmailPart ep = this.buildPartTree(email, p);
-      ep.emailKey = email.key;
-      ep.parentKey = email.key;
+    if (this.rollups != null) {
+      try {
+        this.rollups.add(email);
+      } catch (SQLException e) {
+        System.err.println("Saving statistics failed: " + e.getMessage());
+      }
+    }
 
-      if (this.db.insertPart(ep)) {
-        this.db.insertChildParts(ep);
-        return ep;
-      } else
-        return null;
-    } catch (MailImportException mbex) {
-      mbex.handleException();
-      return null;
-    } catch (Exception e) {
-      throw new MailImportException("Part import failed", email, e);
+    if (this.fullTextIndex != null && item.document != null
+        && !item.document.isEmpty()) {
+      item.document.id = email.key;
+      try {
+        this.fullTextIndex.add(item.document);
+      } catch (IOException e) {
+        System.err.println("Indexing failed: " + e.getMessage());
+      }
     }
   }
 
@@ -329,6 +521,14 @@ public class MailImport {
     return dbProps;
   }
 
+  private MessageIdFilter loadKnownMessages(Properties importProps)
+      throws Exception {
+    String rate = Config.getProperty(importProps,
+        "import.skipKnownFalsePositiveRate", "0.01");
+    return MessageIdFilter.load(this.pool.createConnection(), Double
+        .parseDouble(rate));
+  }
+
   public Folder openFolder(Store store, String name) throws MessagingException {
     // Folder folder = store.getFolder(name);
     Folder folder = store.getDefaultFolder();
@@ -337,9 +537,9 @@ public class MailImport {
 
     int totalMessages = folder.getMessageCount();
 
+    // the store is shared by the ranges of other folders
     if (totalMessages == 0) {
       folder.close(false);
-      store.close();
       throw new RuntimeException("Empy mailbox folder");
     }
     return folder;
@@ -354,10 +554,317 @@ public class MailImport {
     String host = importProps.getProperty("mail.host");
 
     this.session = Session.getInstance(props, null);
+    this.addressParser = new AddressParser(this.session, Config
+        .getIntProperty(importProps, "import.addressCacheSize", 100000));
+    if (NATIVE_MBOX.equals(provider.trim())) {
+      System.out.println("Reading mbox files directly");
+      return null;
+    }
+
     Store store = this.session.getStore(provider);
     store.connect(host, user, pass);
     System.out.println("Store connected");
 
     return store;
   }
+
+  public EmailMessage parseEnvelope(Message m, int nr, boolean referenced)
+      throws MailImportException {
+    EmailMessage email = new EmailMessage();
+    email.nr = nr;
+    email.referenced = referenced;
+    if (referenced)
+      email.bodyImported = EmailMessage.BODY_REFERENCED;
+
+    try {
+      MimeMessage mm = (MimeMessage) m;
+      email.fromAddresses = this.getInternetAddresses(mm, "From");
+      email.replytoAddresses = this.getInternetAddresses(mm, "Reply-to");
+      email.toAddresses = this.getInternetAddresses(mm, "To");
+      email.ccAddresses = this.getInternetAddresses(mm, "Cc");
+
+      email.subject = m.getSubject();
+      Date senddate = m.getSentDate();
+
+      if (senddate != null) {
+        email.senddate = new java.sql.Date(senddate.getTime());
+      }
+
+      String[] header;
+      if ((header = m.getHeader("X-Mailer")) != null)
+        email.xmailer = header[0];
+      if ((header = m.getHeader("Message-ID")) != null)
+        email.messageid = header[0];
+      if ((header = m.getHeader("User-Agent")) != null)
+        email.useragent = header[0];
+
+      String refs = ((MimeMessage) m).getHeader("References", " ");
+      String inReplyTo = ((MimeMessage) m).getHeader("In-Reply-To", " ");
+      if (refs != null || inReplyTo != null) {
+        email.references = ConversationIndex.parseIds(refs);
+        for (String id : ConversationIndex.parseIds(inReplyTo)) {
+          if (!email.references.contains(id))
+            email.references.add(id);
+        }
+      }
+
+      return email;
+    } catch (Exception e) {
+      throw new MailImportException("Message import failed", email, e);
+    }
+  }
+
+  /*
+   * Reads only the header block of a raw message, the body is never copied
+   */
+  public MimeMessage parseHeaders(InputStream in) throws MessagingException {
+    InternetHeaders headers = new InternetHeaders(in);
+    MimeMessage m = new MimeMessage(this.session);
+    Enumeration<?> lines = headers.getAllHeaderLines();
+    while (lines.hasMoreElements())
+      m.addHeaderLine((String) lines.nextElement());
+    return m;
+  }
+
+  public boolean parseItem(ImportItem item) {
+    long start = System.nanoTime();
+    InputStream in = null;
+    try {
+      Message m = item.message;
+      if (item.raw != null) {
+        in = item.raw.openStream();
+        m = this.headersOnly ? this.parseHeaders(in) : new MimeMessage(
+            this.session, in);
+      }
+
+      item.email = this.parseEnvelope(m, item.nr, false);
+      if (item.message == null && this.knownMessages != null
+          && item.email.messageid != null
+          && this.knownMessages.contains(item.email.messageid))
+        return false;
+
+      if (this.headersOnly) {
+        item.email.bodyImported = EmailMessage.BODY_NONE;
+      } else {
+        try {
+          item.body = this.buildPartTree(item.email, m);
+        } catch (MailImportException mbex) {
+          mbex.handleException();
+        }
+      }
+
+      if (this.fullTextIndex != null) {
+        item.document = new IndexDocument();
+        item.document.add(item.email.subject, false);
+        if (item.body != null)
+          item.document.add(item.body);
+      }
+      return true;
+    } catch (MailImportException mbex) {
+      item.failed = true;
+      this.stats.failures.incrementAndGet();
+      mbex.handleException();
+    } catch (Throwable t) {
+      item.failed = true;
+      this.stats.failures.incrementAndGet();
+      System.err.println("Failed: " + item.mailbox);
+      t.printStackTrace();
+    } finally {
+      this.stats.parse.since(start);
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {}
+      }
+      if (item.raw != null)
+        item.raw.dispose();
+      item.raw = null;
+      item.message = null;
+    }
+    return false;
+  }
+
+  private Future<Message[]> prefetch(ExecutorService prefetcher,
+      final Folder f, final int start, final int end) {
+    return prefetcher.submit(new Callable<Message[]>() {
+      public Message[] call() throws Exception {
+        return MailImport.this.fetch(f, start, end);
+      }
+    });
+  }
+
+  private PartContent readContent(InputStream in) {
+    try {
+      try {
+        return PartContent.read(in, this.spillThreshold, this.spillDir);
+      } finally {
+        in.close();
+      }
+    } catch (Exception e) {
+      if (MailDB.debug)
+        e.printStackTrace();
+      return null;
+    }
+  }
+
+  /*
+   * Narrows the range to the messages above the folder's last imported UID.
+   * A changed UIDVALIDITY invalidates all UIDs and starts a full resync.
+   */
+  boolean startIncremental(UIDFolder f, ImportRange range, int total)
+      throws Exception {
+    String name = range.mailbox;
+    long validity = f.getUIDValidity();
+    long[] cp = this.syncCheckpoints.load(name);
+    long last = 0;
+
+    if (cp != null && cp[0] == validity)
+      last = cp[1];
+    else if (cp != null) {
+      System.out.println(name + " UIDVALIDITY changed, full resync");
+      this.syncCheckpoints.save(name, validity, 0);
+    }
+
+    range.checkpoint = new UidCheckpoint(this.syncCheckpoints, name,
+        validity, last, this.checkpointInterval);
+    range.end = total;
+
+    if (last > 0) {
+      // UID n:* always returns the last message, even if its UID is lower
+      range.start = total + 1;
+      Message[] newer = f.getMessagesByUID(last + 1, UIDFolder.LASTUID);
+      for (int i = 0; i < newer.length; i++) {
+        if (newer[i] != null && f.getUID(newer[i]) > last) {
+          range.start = newer[i].getMessageNumber();
+          break;
+        }
+      }
+    }
+
+    System.out.println(name + " import " + (range.end - range.start + 1)
+        + " of " + total + " messages after UID " + last + "... ");
+    return range.start <= range.end;
+  }
+
+  private Message[] skipKnown(Message[] msgs) throws Exception {
+    Vector<Message> unknown = new Vector<Message>(msgs.length);
+    String[] header;
+    for (int i = 0; i < msgs.length; i++) {
+      if ((header = msgs[i].getHeader("Message-ID")) == null
+          || !this.knownMessages.contains(header[0]))
+        unknown.add(msgs[i]);
+    }
+
+    return unknown.toArray(new Message[unknown.size()]);
+  }
+
+  /*
+   * Bodies of leaf parts the filter rejects are skipped, null imports all
+   */
+  public void setBodyFilter(ContentTypeFilter bodyFilter) {
+    this.bodyFilter = bodyFilter != null && !bodyFilter.isEmpty() ? bodyFilter
+        : null;
+  }
+
+  public void setHeadersOnly(boolean headersOnly) {
+    this.headersOnly = headersOnly;
+  }
+
+  public void setRollups(StatsRollup rollups) {
+    this.rollups = rollups;
+  }
+
+  public void setSyncCheckpoints(SyncCheckpoints syncCheckpoints) {
+    this.syncCheckpoints = syncCheckpoints;
+  }
+
+  private PartContent spool(Message m) throws IOException, MessagingException {
+    PartContent.Output out = new PartContent.Output(this.spillThreshold,
+        this.spillDir);
+    try {
+      m.writeTo(out);
+      return out.toContent();
+    } catch (IOException e) {
+      out.discard();
+      throw e;
+    } catch (MessagingException e) {
+      out.discard();
+      throw e;
+    }
+  }
+
+  public boolean storeEnvelope(MailDB db, EmailMessage email)
+      throws MailImportException {
+    try {
+      if (email.fromAddresses != null)
+        email.from = db.insertSubscriber(email.fromAddresses);
+      if (email.replytoAddresses != null)
+        email.replyto = db.insertSubscriber(email.replytoAddresses);
+      if (email.toAddresses != null)
+        email.to = db.insertSubscriber(email.toAddresses);
+      if (email.ccAddresses != null)
+        email.cc = db.insertSubscriber(email.ccAddresses);
+
+      return db.insertEnvelope(email);
+    } catch (Exception e) {
+      throw new MailImportException("Message import failed", email, e);
+    }
+  }
+
+  public void storePart(MailDB db, EmailMessage email, EmailPart ep)
+      throws MailImportException {
+    try {
+      ep.emailKey = email.key;
+      ep.parentKey = email.key;
+      this.storePartTree(db, ep);
+    } catch (MailImportException mbex) {
+      mbex.handleException();
+    } catch (Exception e) {
+      throw new MailImportException("Part import failed", email, e);
+    }
+  }
+
+  private void storePartTree(MailDB db, EmailPart ep) throws Exception {
+    if (ep.referencedEmail != null && this.storeEnvelope(db, ep.referencedEmail))
+      ep.referencedEmailKey = ep.referencedEmail.key;
+
+    if (db.insertPart(ep)) {
+      for (EmailPart child : ep.children) {
+        child.emailKey = ep.emailKey;
+        child.parentKey = ep.key;
+        this.storePartTree(db, child);
+      }
+    }
+  }
+
+  /*
+   * Stores the message without committing, the writer commits it alone or
+   * as part of a group and then calls itemCommitted.
+   */
+  public void writeItem(MailDB db, ImportItem item) throws SQLException {
+    EmailMessage email = item.email;
+    // left from a write of the group that was rolled back
+    item.stored = false;
+    email.duplicate = false;
+    email.key = 0;
+    try {
+      if (this.conversations != null)
+        this.conversations.assign(email);
+      if (!this.storeEnvelope(db, email))
+        throw new MailImportException("No Email returned", null, null);
+
+      // staged before by the bulk loader
+      if (email.duplicate) {
+        this.stats.duplicates.incrementAndGet();
+        return;
+      }
+
+      if (item.body != null)
+        this.storePart(db, email, item.body);
+      item.stored = true;
+    } catch (MailImportException mbex) {
+      this.stats.failures.incrementAndGet();
+      mbex.handleException();
+    }
+  }
 }
@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.io.IOException;
+
+/*
+ * Keeps the byte offset of the first unfinished message of an mbox file in
+ * <mbox>.checkpoint so an interrupted import resumes there.
+ */
+public class MboxCheckpoint implements ImportCheckpoint {
+  private MboxSource source;
+  private Watermark watermark = new Watermark();
+  private int interval;
+  private int sinceSave = 0;
+
+  public MboxCheckpoint(MboxSource source, int interval) {
+    this.source = source;
+    this.interval = interval;
+  }
+
+  public void itemDone(ImportItem item) {
+    // a failed message stays pending, the import resumes at it
+    if (!item.failed)
+      this.watermark.done(item.offset);
+
+    synchronized (this) {
+      if (++this.sinceSave < this.interval)
+        return;
+      this.sinceSave = 0;
+    }
+
+    long resume = this.watermark.getLowestPending();
+    if (resume >= 0)
+      this.save(resume);
+  }
+
+  public void itemQueued(ImportItem item) {
+    this.watermark.add(item.offset);
+  }
+
+  public void rangeDone() {
+    long resume = this.watermark.getLowestPending();
+    this.save(resume >= 0 ? resume : this.source.getPosition());
+  }
+
+  private void save(long offset) {
+    try {
+      this.source.writeCheckpoint(offset);
+    } catch (IOException e) {
+      System.err.println("Writing checkpoint failed: " + e.getMessage());
+    }
+  }
+}
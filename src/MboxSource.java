@@ -0,0 +1,213 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.LineNumberReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Reads a local mbox file through memory mapped segments. Messages are found
+ * by scanning for "From " at the start of a line and are handed out as
+ * slices of the mapping, so parsing them in parallel copies nothing.
+ */
+public class MboxSource {
+  private final static int SEGMENT_SIZE = 256 * 1024 * 1024;
+  private final static byte[] FROM = { 'F', 'r', 'o', 'm', ' ' };
+
+  private File file;
+  private RandomAccessFile raf;
+  private FileChannel channel;
+  private long size;
+
+  private MappedByteBuffer segment = null;
+  private long segmentOffset = 0;
+  private int segmentSize = SEGMENT_SIZE;
+
+  private long position;
+  private long messageOffset = -1;
+
+  public MboxSource(File file) throws IOException {
+    this.file = file;
+    this.raf = new RandomAccessFile(file, "r");
+    this.channel = this.raf.getChannel();
+    this.size = this.channel.size();
+    this.position = 0;
+  }
+
+  public void close() throws IOException {
+    this.segment = null;
+    this.raf.close();
+  }
+
+  public File getCheckpointFile() {
+    return new File(this.file.getPath() + ".checkpoint");
+  }
+
+  public long getMessageOffset() {
+    return this.messageOffset;
+  }
+
+  public long getPosition() {
+    return this.position;
+  }
+
+  public long getSize() {
+    return this.size;
+  }
+
+  /*
+   * Returns the next message without its "From " line or null at the end of
+   * the file.
+   */
+  public ByteBuffer next() throws IOException {
+    while (this.position < this.size) {
+      this.map(this.position);
+
+      int start = (int) (this.position - this.segmentOffset);
+      int limit = this.segment.limit();
+      if (!this.isFromLine(start)) {
+        // garbage before the first message
+        int next = this.findFromLine(start, limit);
+        if (next < 0 && this.segmentOffset + limit < this.size) {
+          this.growSegment();
+          continue;
+        }
+        this.position = next < 0 ? this.size : this.segmentOffset + next;
+        continue;
+      }
+
+      int body = this.findLineEnd(start, limit);
+      int end = body < 0 ? -1 : this.findFromLine(body, limit);
+      if (end < 0 && this.segmentOffset + limit < this.size) {
+        // message continues beyond this segment
+        this.growSegment();
+        continue;
+      }
+      if (body < 0)
+        body = limit;
+      if (end < 0)
+        end = limit;
+
+      ByteBuffer msg = this.segment.duplicate();
+      msg.position(body);
+      msg.limit(end);
+
+      this.messageOffset = this.position;
+      this.position = this.segmentOffset + end;
+      return msg.slice();
+    }
+    return null;
+  }
+
+  public long readCheckpoint() throws IOException {
+    File cp = this.getCheckpointFile();
+    if (!cp.exists())
+      return 0;
+
+    LineNumberReader r = new LineNumberReader(new FileReader(cp));
+    try {
+      String line = r.readLine();
+      return line != null ? Long.parseLong(line.trim()) : 0;
+    } finally {
+      r.close();
+    }
+  }
+
+  /*
+   * A position beyond the end means the file was replaced, start over.
+   */
+  public void seek(long position) {
+    this.position = position > 0 && position <= this.size ? position : 0;
+  }
+
+  public synchronized void writeCheckpoint(long offset) throws IOException {
+    File cp = this.getCheckpointFile();
+    File tmp = new File(cp.getPath() + ".tmp");
+    FileWriter w = new FileWriter(tmp);
+    try {
+      w.write(Long.toString(offset));
+      w.write('\n');
+    } finally {
+      w.close();
+    }
+    if (!tmp.renameTo(cp)) {
+      cp.delete();
+      tmp.renameTo(cp);
+    }
+  }
+
+  private int findFromLine(int from, int limit) {
+    for (int i = from; i < limit; i++) {
+      if (this.segment.get(i) == '\n' && this.isFromLine(i + 1))
+        return i + 1;
+    }
+    return -1;
+  }
+
+  private int findLineEnd(int from, int limit) {
+    for (int i = from; i < limit; i++) {
+      if (this.segment.get(i) == '\n')
+        return i + 1;
+    }
+    return -1;
+  }
+
+  private void growSegment() throws IOException {
+    if (this.segmentOffset < this.position) {
+      // remap starting at the current message first
+      this.segment = null;
+      this.map(this.position);
+      return;
+    }
+
+    if (this.segmentSize == Integer.MAX_VALUE)
+      throw new IOException("Message at " + this.position + " in "
+          + this.file + " exceeds " + Integer.MAX_VALUE + " bytes");
+    this.segmentSize = (int) Math.min(2L * this.segmentSize,
+        Integer.MAX_VALUE);
+    this.segment = null;
+    this.map(this.position);
+  }
+
+  private boolean isFromLine(int i) {
+    if (i + FROM.length > this.segment.limit())
+      return false;
+    for (int j = 0; j < FROM.length; j++) {
+      if (this.segment.get(i + j) != FROM[j])
+        return false;
+    }
+    return true;
+  }
+
+  private void map(long offset) throws IOException {
+    long end = this.segment != null ? this.segmentOffset
+        + this.segment.limit() : -1;
+    if (this.segment != null && offset >= this.segmentOffset && offset < end
+        && (end == this.size || offset + FROM.length < end))
+      return;
+
+    this.segmentOffset = offset;
+    this.segment = this.channel.map(FileChannel.MapMode.READ_ONLY, offset,
+        Math.min(this.segmentSize, this.size - offset));
+  }
+}
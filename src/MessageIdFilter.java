@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Bloom filter over the Message-IDs of imported messages, envelopes only
+ * stored for attached messages are left out. A negative answer is exact, a
+ * positive answer is confirmed against the Envelope table on the filter's
+ * own connection.
+ */
+public class MessageIdFilter {
+  private final static int PAGE_ROWS = 10000;
+
+  private AtomicLongArray bits;
+  private long numBits;
+  private int numHashes;
+
+  private Connection conn = null;
+  private PreparedStatement stmntSelectEnvelope;
+
+  public static MessageIdFilter load(Connection conn, double falsePositiveRate)
+      throws SQLException {
+    Statement stmnt = conn.createStatement();
+    ResultSet rs = stmnt.executeQuery("select count(*) from Envelope");
+    long count = rs.next() ? rs.getLong(1) : 0;
+    rs.close();
+
+    // leave room for the messages of this run
+    MessageIdFilter filter = new MessageIdFilter(
+        Math.max(count * 2, 1 << 16), falsePositiveRate);
+
+    stmnt.close();
+
+    // a page of keys per query, drivers may otherwise buffer the whole table
+    PreparedStatement page = conn
+        .prepareStatement("select idEnvelope, messageID, bodyImported from Envelope where idEnvelope > ? order by idEnvelope");
+    page.setMaxRows(PAGE_ROWS);
+    int last = 0;
+    int rows;
+    do {
+      page.setInt(1, last);
+      rs = page.executeQuery();
+      String messageid;
+      for (rows = 0; rs.next(); rows++) {
+        last = rs.getInt(1);
+        // only seen attached, the message itself is still to be imported
+        if ((messageid = rs.getString(2)) != null
+            && rs.getInt(3) != EmailMessage.BODY_REFERENCED)
+          filter.add(messageid);
+      }
+      rs.close();
+    } while (rows == PAGE_ROWS);
+    page.close();
+
+    filter.conn = conn;
+    filter.stmntSelectEnvelope = conn
+        .prepareStatement("select idEnvelope from Envelope where messageID = ? and bodyImported <> "
+            + EmailMessage.BODY_REFERENCED);
+    return filter;
+  }
+
+  public MessageIdFilter(long expected, double falsePositiveRate) {
+    double ln2 = Math.log(2);
+    long m = (long) Math.ceil(-expected * Math.log(falsePositiveRate)
+        / (ln2 * ln2));
+    int words = (int) Math.min(Integer.MAX_VALUE - 8, (m + 63) / 64);
+
+    this.bits = new AtomicLongArray(Math.max(words, 1));
+    this.numBits = (long) this.bits.length() * 64;
+    this.numHashes = Math.max(1, (int) Math.round((double) m / expected * ln2));
+  }
+
+  public void add(String messageid) {
+    long hash = hash(messageid);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+
+    for (int i = 0; i < this.numHashes; i++) {
+      long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % this.numBits;
+      int word = (int) (bit >>> 6);
+      long mask = 1L << bit;
+      long old;
+      while (((old = this.bits.get(word)) & mask) == 0
+          && !this.bits.compareAndSet(word, old, old | mask))
+        ;
+    }
+  }
+
+  public void close() throws SQLException {
+    if (this.conn != null)
+      this.conn.close();
+  }
+
+  public synchronized boolean contains(String messageid) throws SQLException {
+    if (!this.mightContain(messageid))
+      return false;
+    if (this.stmntSelectEnvelope == null)
+      return true;
+
+    this.stmntSelectEnvelope.setString(1, messageid);
+    ResultSet rs = this.stmntSelectEnvelope.executeQuery();
+    boolean found = rs.next();
+    rs.close();
+    return found;
+  }
+
+  public boolean mightContain(String messageid) {
+    long hash = hash(messageid);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+
+    for (int i = 0; i < this.numHashes; i++) {
+      long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % this.numBits;
+      if ((this.bits.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+        return false;
+    }
+    return true;
+  }
+
+  public long size() {
+    return this.numBits / 8;
+  }
+
+  private static long hash(String s) {
+    // 64 bit FNV-1a with a final avalanche step
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < s.length(); i++) {
+      h ^= s.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    return h;
+  }
+}
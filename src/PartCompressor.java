@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.io.IOException;
+import java.util.Properties;
+import java.util.StringTokenizer;
+import java.util.Vector;
+import java.util.zip.Deflater;
+
+/*
+ * Decides which part bodies are stored deflated (db.compress). Bodies below
+ * db.compress.minBytes, of a type listed in db.compress.skipTypes or that
+ * don't shrink by at least an eighth are stored as they are.
+ */
+public class PartCompressor {
+  private boolean enabled;
+  private int level;
+  private int minBytes;
+  private Vector<String> skipTypes = new Vector<String>();
+
+  public PartCompressor(Properties dbProps) {
+    this.enabled = Config.getBooleanProperty(dbProps, "db.compress", false);
+    this.level = Config.getIntProperty(dbProps, "db.compress.level",
+        Deflater.DEFAULT_COMPRESSION);
+    this.minBytes = Config.getIntProperty(dbProps, "db.compress.minBytes",
+        512);
+
+    StringTokenizer types = new StringTokenizer(Config.getProperty(dbProps,
+        "db.compress.skipTypes",
+        "image/,audio/,video/,application/zip,application/x-zip,"
+            + "application/gzip,application/x-gzip,application/pdf"), ",");
+    while (types.hasMoreTokens())
+      this.skipTypes.add(types.nextToken().trim().toLowerCase());
+  }
+
+  /*
+   * Returns the body to store, either content itself or a deflated copy
+   * that the caller disposes of after storing it.
+   */
+  public PartContent encode(PartContent content, String contentType)
+      throws IOException {
+    if (!this.enabled || content == null
+        || content.getCodec() != PartContent.CODEC_NONE
+        || content.length() < this.minBytes || this.isSkipped(contentType))
+      return content;
+
+    // a body that fits in memory compresses into memory
+    PartContent deflated = content.deflate(this.level,
+        content.isSpilled() ? 0 : Integer.MAX_VALUE, null);
+    if (deflated.length() > content.length() - content.length() / 8) {
+      deflated.dispose();
+      return content;
+    }
+    return deflated;
+  }
+
+  public boolean isEnabled() {
+    return this.enabled;
+  }
+
+  private boolean isSkipped(String contentType) {
+    if (contentType == null)
+      return false;
+
+    String type = contentType.trim().toLowerCase();
+    for (String skip : this.skipTypes) {
+      if (type.startsWith(skip))
+        return true;
+    }
+    return false;
+  }
+}
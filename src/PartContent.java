@@ -0,0 +1,473 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import javax.mail.internet.SharedInputStream;
+
+/*
+ * Body of a part. Small bodies are kept on the heap, bodies larger than the
+ * spill threshold are streamed to a temporary file. Length and SHA-1 digest
+ * are computed while reading. Streams are SharedInputStreams, a MimeMessage
+ * parsed from one keeps ranges of it instead of copying its body.
+ */
+public class PartContent {
+  public final static int CODEC_NONE = 0;
+  public final static int CODEC_DEFLATE = 1;
+
+  private final static int BUFFER_SIZE = 64 * 1024;
+  private final static char[] HEX = "0123456789abcdef".toCharArray();
+
+  private byte[] data;
+  private ByteBuffer buffer;
+  private File file;
+  private long length;
+  private String digest;
+  private Source source;
+  private int codec = CODEC_NONE;
+
+  /*
+   * Where a lazily loaded body is read from each time it is opened
+   */
+  public interface Source {
+    InputStream open() throws IOException;
+  }
+
+  public static class Output extends OutputStream {
+    private MessageDigest md = newDigest();
+    private int spillThreshold;
+    private File spillDir;
+
+    private byte[] data;
+    private int count = 0;
+    private File file = null;
+    private OutputStream out = null;
+    private long length = 0;
+
+    public Output(int spillThreshold, File spillDir) {
+      this.spillThreshold = Math.max(spillThreshold, 0);
+      this.spillDir = spillDir;
+      this.data = new byte[Math.min(this.spillThreshold, 4096)];
+    }
+
+    public void close() throws IOException {
+      if (this.out != null)
+        this.out.close();
+    }
+
+    public void discard() {
+      try {
+        this.close();
+      } catch (IOException e) {}
+      if (this.file != null)
+        this.file.delete();
+      this.file = null;
+      this.data = null;
+    }
+
+    public PartContent toContent() throws IOException {
+      this.close();
+
+      PartContent pc = new PartContent();
+      if (this.file != null) {
+        pc.file = this.file;
+      } else {
+        byte[] trimmed = this.data;
+        if (this.count < this.data.length) {
+          trimmed = new byte[this.count];
+          System.arraycopy(this.data, 0, trimmed, 0, this.count);
+        }
+        pc.data = trimmed;
+      }
+      pc.length = this.length;
+      pc.digest = hex(this.md.digest());
+      this.data = null;
+      this.file = null;
+      return pc;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (this.out == null && this.count + len > this.spillThreshold)
+        this.spill();
+
+      if (this.out != null) {
+        this.out.write(b, off, len);
+      } else {
+        if (this.count + len > this.data.length) {
+          byte[] grown = new byte[Math.min(Math.max(this.data.length * 2,
+              this.count + len), this.spillThreshold)];
+          System.arraycopy(this.data, 0, grown, 0, this.count);
+          this.data = grown;
+        }
+        System.arraycopy(b, off, this.data, this.count, len);
+        this.count += len;
+      }
+      this.md.update(b, off, len);
+      this.length += len;
+    }
+
+    public void write(int b) throws IOException {
+      this.write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    private void spill() throws IOException {
+      this.file = File.createTempFile("maildb", ".part", this.spillDir);
+      this.out = new BufferedOutputStream(new FileOutputStream(this.file),
+          BUFFER_SIZE);
+      this.out.write(this.data, 0, this.count);
+      this.data = null;
+      this.count = 0;
+    }
+  }
+
+  /*
+   * Shared streams extend BufferedInputStream only because MimeMultipart
+   * wraps any other stream in one and then reads positions that are ahead
+   * of its boundaries. The inherited buffer is never used.
+   */
+  private static class BufferInputStream extends BufferedInputStream
+      implements SharedInputStream {
+    private ByteBuffer buffer;
+    private int origin;
+
+    public BufferInputStream(ByteBuffer buffer) {
+      super(null, 1);
+      this.buffer = buffer;
+      this.origin = buffer.position();
+    }
+
+    public int available() {
+      return this.buffer.remaining();
+    }
+
+    public long getPosition() {
+      return this.buffer.position() - this.origin;
+    }
+
+    public synchronized void mark(int readlimit) {
+      this.buffer.mark();
+    }
+
+    public boolean markSupported() {
+      return true;
+    }
+
+    public InputStream newStream(long start, long end) {
+      ByteBuffer range = this.buffer.duplicate();
+      if (end >= 0)
+        range.limit(this.origin + (int) end);
+      range.position(this.origin + (int) start);
+      return new BufferInputStream(range);
+    }
+
+    public int read() {
+      return this.buffer.hasRemaining() ? this.buffer.get() & 0xff : -1;
+    }
+
+    public int read(byte[] b, int off, int len) {
+      if (!this.buffer.hasRemaining())
+        return -1;
+      len = Math.min(len, this.buffer.remaining());
+      this.buffer.get(b, off, len);
+      return len;
+    }
+
+    public synchronized void reset() {
+      this.buffer.reset();
+    }
+
+    public long skip(long n) {
+      int skipped = (int) Math.min(Math.max(n, 0), this.buffer.remaining());
+      this.buffer.position(this.buffer.position() + skipped);
+      return skipped;
+    }
+  }
+
+  /*
+   * A range of a spilled file. Streams created by newStream() read through
+   * the file handle of the stream they came from and can't be read once
+   * that one is closed.
+   */
+  private static class FileRangeInputStream extends BufferedInputStream
+      implements SharedInputStream {
+    private RandomAccessFile file;
+    private boolean owner;
+    private long start;
+    private long end;
+    private long pos;
+    private long mark;
+
+    private byte[] buf;
+    private long bufPos = 0;
+    private int bufLen = 0;
+
+    public FileRangeInputStream(File file) throws IOException {
+      this(new RandomAccessFile(file, "r"), true, 0, file.length(),
+          BUFFER_SIZE);
+    }
+
+    private FileRangeInputStream(RandomAccessFile file, boolean owner,
+        long start, long end, int bufferSize) {
+      super(null, 1);
+      this.file = file;
+      this.owner = owner;
+      this.start = start;
+      this.end = end;
+      this.pos = this.mark = start;
+      this.buf = new byte[bufferSize];
+    }
+
+    public int available() {
+      return (int) Math.min(this.end - this.pos, Integer.MAX_VALUE);
+    }
+
+    public void close() throws IOException {
+      if (this.owner)
+        this.file.close();
+    }
+
+    private boolean fill() throws IOException {
+      if (this.pos >= this.bufPos && this.pos < this.bufPos + this.bufLen)
+        return true;
+      if (this.pos >= this.end)
+        return false;
+
+      synchronized (this.file) {
+        this.file.seek(this.pos);
+        this.bufLen = this.file.read(this.buf, 0, (int) Math.min(
+            this.buf.length, this.end - this.pos));
+      }
+      this.bufPos = this.pos;
+      if (this.bufLen <= 0) {
+        this.bufLen = 0;
+        return false;
+      }
+      return true;
+    }
+
+    public long getPosition() {
+      return this.pos - this.start;
+    }
+
+    public synchronized void mark(int readlimit) {
+      this.mark = this.pos;
+    }
+
+    public boolean markSupported() {
+      return true;
+    }
+
+    public InputStream newStream(long start, long end) {
+      return new FileRangeInputStream(this.file, false, this.start + start,
+          end >= 0 ? this.start + end : this.end, 8192);
+    }
+
+    public int read() throws IOException {
+      if (!this.fill())
+        return -1;
+      return this.buf[(int) (this.pos++ - this.bufPos)] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0)
+        return 0;
+      if (!this.fill())
+        return -1;
+      len = (int) Math.min(len, this.bufPos + this.bufLen - this.pos);
+      System.arraycopy(this.buf, (int) (this.pos - this.bufPos), b, off, len);
+      this.pos += len;
+      return len;
+    }
+
+    public synchronized void reset() {
+      this.pos = this.mark;
+    }
+
+    public long skip(long n) {
+      long skipped = Math.min(Math.max(n, 0), this.end - this.pos);
+      this.pos += skipped;
+      return skipped;
+    }
+  }
+
+  /*
+   * Content that isn't held in memory but read from its source on every
+   * openStream(), used for parts read back from the DB.
+   */
+  public static PartContent lazy(Source source, long length, String digest) {
+    PartContent pc = new PartContent();
+    pc.source = source;
+    pc.length = length;
+    pc.digest = digest;
+    return pc;
+  }
+
+  /*
+   * Undoes the codec a body was stored with
+   */
+  public static InputStream decode(InputStream in, int codec)
+      throws IOException {
+    switch (codec) {
+    case CODEC_NONE:
+      return in;
+    case CODEC_DEFLATE:
+      return new InflaterInputStream(in);
+    default:
+      throw new IOException("Unknown content codec: " + codec);
+    }
+  }
+
+  public static PartContent read(InputStream in, int spillThreshold,
+      File spillDir) throws IOException {
+    Output out = new Output(spillThreshold, spillDir);
+    try {
+      byte[] buf = new byte[BUFFER_SIZE];
+      int n;
+      while ((n = in.read(buf)) != -1)
+        out.write(buf, 0, n);
+
+      return out.toContent();
+    } catch (IOException e) {
+      out.discard();
+      throw e;
+    }
+  }
+
+  public static PartContent wrap(byte[] data) {
+    PartContent pc = new PartContent();
+    pc.data = data;
+    pc.length = data.length;
+    pc.digest = hex(newDigest().digest(data));
+    return pc;
+  }
+
+  /*
+   * Wraps a slice of a mapped file without copying. The digest is computed
+   * on first use.
+   */
+  public static PartContent wrap(ByteBuffer buffer) {
+    PartContent pc = new PartContent();
+    pc.buffer = buffer;
+    pc.length = buffer.remaining();
+    return pc;
+  }
+
+  private static String hex(byte[] bytes) {
+    char[] chars = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+      chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+    }
+    return new String(chars);
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private PartContent() {}
+
+  /*
+   * Streams the body through a Deflater. The result keeps the digest of the
+   * uncompressed body, its length is the compressed length.
+   */
+  public PartContent deflate(int level, int spillThreshold, File spillDir)
+      throws IOException {
+    Output out = new Output(spillThreshold, spillDir);
+    Deflater deflater = new Deflater(level);
+    InputStream in = this.openStream();
+    try {
+      DeflaterOutputStream dout = new DeflaterOutputStream(out, deflater,
+          BUFFER_SIZE);
+      byte[] buf = new byte[BUFFER_SIZE];
+      int n;
+      while ((n = in.read(buf)) != -1)
+        dout.write(buf, 0, n);
+      dout.finish();
+
+      PartContent pc = out.toContent();
+      pc.digest = this.getDigest();
+      pc.codec = CODEC_DEFLATE;
+      return pc;
+    } catch (IOException e) {
+      out.discard();
+      throw e;
+    } finally {
+      deflater.end();
+      in.close();
+    }
+  }
+
+  public void dispose() {
+    if (this.file != null) {
+      this.file.delete();
+      this.file = null;
+    }
+    this.data = null;
+    this.buffer = null;
+    this.source = null;
+  }
+
+  public int getCodec() {
+    return this.codec;
+  }
+
+  public String getDigest() {
+    if (this.digest == null && this.buffer != null) {
+      MessageDigest md = newDigest();
+      md.update(this.buffer.duplicate());
+      this.digest = hex(md.digest());
+    }
+    return this.digest;
+  }
+
+  public boolean isSpilled() {
+    return this.file != null;
+  }
+
+  public long length() {
+    return this.length;
+  }
+
+  public InputStream openStream() throws IOException {
+    if (this.file != null)
+      return new FileRangeInputStream(this.file);
+    if (this.buffer != null)
+      return new BufferInputStream(this.buffer.duplicate());
+    if (this.source != null)
+      return this.source.open();
+    if (this.data == null)
+      throw new IOException("Part content already disposed");
+    return new BufferInputStream(ByteBuffer.wrap(this.data));
+  }
+}
@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.Vector;
+
+/*
+ * Converts the bodies stored before db.compress was turned on. Rows are
+ * read in key order a batch at a time and each batch is committed on its
+ * own, so the job can be stopped and restarted at any point and runs next
+ * to an import. Rows compressed concurrently are left alone.
+ */
+public class Recompress {
+  private final static int SPILL_THRESHOLD = 1024 * 1024;
+
+  private Connection conn;
+  private PartCompressor compressor;
+  private int batchSize;
+  private long pauseMillis;
+
+  private long rows = 0;
+  private long compressed = 0;
+  private long bytesBefore = 0;
+  private long bytesAfter = 0;
+
+  public static void main(String argv[]) {
+    try {
+      if (argv.length < 1 || argv.length > 3) {
+        System.err
+            .println("Usage: Recompress <config file> [batch size [pause millis]]");
+        System.exit(1);
+      }
+
+      Properties dbProps = new Properties();
+      FileReader r = new FileReader(argv[0]);
+      dbProps.load(r);
+      r.close();
+      // the level and the filters still come from the config
+      dbProps.setProperty("db.compress", "true");
+
+      Connection conn = new MailDBPool(dbProps).createConnection();
+      try {
+        Recompress job = new Recompress(conn, new PartCompressor(dbProps),
+            argv.length > 1 ? Integer.parseInt(argv[1]) : 100,
+            argv.length > 2 ? Long.parseLong(argv[2]) : 0);
+        job.run("Part", "idPart", "contentType", Integer.valueOf(0));
+        job.run("PartBlob", "digest", null, "");
+      } finally {
+        conn.close();
+      }
+    } catch (Exception ex) {
+      ex.printStackTrace();
+    }
+    System.exit(0);
+  }
+
+  public Recompress(Connection conn, PartCompressor compressor,
+      int batchSize, long pauseMillis) throws SQLException {
+    this.conn = conn;
+    this.compressor = compressor;
+    this.batchSize = Math.max(1, batchSize);
+    this.pauseMillis = pauseMillis;
+    this.conn.setAutoCommit(false);
+  }
+
+  /*
+   * Compresses the uncompressed bodies of table, walking it by keyColumn
+   * upwards from firstKey
+   */
+  public void run(String table, String keyColumn, String typeColumn,
+      Object firstKey) throws SQLException, InterruptedException {
+    PreparedStatement select = this.conn.prepareStatement("select "
+        + keyColumn + ", content, " + (typeColumn != null ? typeColumn : "null")
+        + " from " + table + " where codec = 0 and content is not null and "
+        + keyColumn + " > ? order by " + keyColumn);
+    select.setMaxRows(this.batchSize);
+    PreparedStatement update = this.conn.prepareStatement("update " + table
+        + " set content = ?, codec = ? where " + keyColumn
+        + " = ? and codec = 0");
+
+    System.out.println(table + " recompress... ");
+    this.rows = this.compressed = this.bytesBefore = this.bytesAfter = 0;
+    Object last = firstKey;
+    try {
+      while (true) {
+        Vector<Object> keys = new Vector<Object>();
+        Vector<PartContent> contents = new Vector<PartContent>();
+        Vector<String> types = new Vector<String>();
+        try {
+          select.setObject(1, last);
+          ResultSet rs = select.executeQuery();
+          try {
+            while (rs.next()) {
+              keys.add(last = rs.getObject(1));
+              contents.add(PartContent.read(rs.getBinaryStream(2),
+                  SPILL_THRESHOLD, null));
+              types.add(rs.getString(3));
+            }
+          } finally {
+            rs.close();
+          }
+
+          for (int i = 0; i < keys.size(); i++)
+            this.recompress(update, keys.get(i), contents.get(i), types
+                .get(i));
+          this.conn.commit();
+        } catch (IOException e) {
+          throw new SQLException("Part content unreadable: " + e.getMessage(),
+              e);
+        } finally {
+          for (PartContent content : contents)
+            content.dispose();
+        }
+
+        if (keys.isEmpty())
+          break;
+
+        System.out.println(table + " " + this);
+        if (this.pauseMillis > 0)
+          Thread.sleep(this.pauseMillis);
+      }
+    } catch (SQLException e) {
+      this.conn.rollback();
+      throw e;
+    } finally {
+      select.close();
+      update.close();
+    }
+  }
+
+  public String toString() {
+    return this.rows + " rows, " + this.compressed + " compressed, "
+        + (this.bytesBefore / 1024) + " KB -> " + (this.bytesAfter / 1024)
+        + " KB";
+  }
+
+  private void recompress(PreparedStatement update, Object key,
+      PartContent content, String contentType) throws SQLException {
+    PartContent encoded = null;
+    InputStream in = null;
+    try {
+      this.rows++;
+      this.bytesBefore += content.length();
+      encoded = this.compressor.encode(content, contentType);
+      this.bytesAfter += encoded.length();
+      if (encoded == content)
+        return;
+
+      in = encoded.openStream();
+      update.setBinaryStream(1, in, (int) encoded.length());
+      update.setInt(2, encoded.getCodec());
+      update.setObject(3, key);
+      if (update.executeUpdate() > 0)
+        this.compressed++;
+    } catch (IOException e) {
+      throw new SQLException("Part content unreadable: " + e.getMessage(), e);
+    } finally {
+      try {
+        if (in != null)
+          in.close();
+      } catch (IOException e) {}
+      if (encoded != null && encoded != content)
+        encoded.dispose();
+    }
+  }
+}
@@ -0,0 +1,425 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.Vector;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * Upgrades a MySQL database to the schema of sql/dbschema.sql (db.schema)
+ * without stopping imports for the copy. Every table is created anew as
+ * <table>_migrate and filled from the old one in chunks of rows, in key
+ * order and each chunk committed on its own, so the copy runs next to an
+ * import and can be stopped and restarted at any point. Columns the old
+ * table doesn't have get their defaults.
+ * 
+ * copy    copies the rows, run it as often as you like
+ * switch  with no import running: copies the rows added since, also those
+ *         committed behind the copied keys, redoes the rows changed in
+ *         place and swaps the tables. The old ones are
+ *         kept as <table>_old.
+ * 
+ * Envelope isn't partitioned: MySQL wants the partitioning column in every
+ * unique key, and messageID has to stay unique on its own for the
+ * Message-ID dedup of the import.
+ */
+public class SchemaMigrate {
+  public final static int SCHEMA_VERSION = 2;
+
+  private final static String SUFFIX_NEW = "_migrate";
+  private final static String SUFFIX_OLD = "_old";
+
+  /* rows of these are updated in place, they are copied again on switch */
+  private final static List<String> UPDATED_TABLES = Arrays.asList(
+      "KeySequence", "SyncCheckpoint", "Conversation", "ConversationMessage",
+      "SubscriberDay", "MailerDay");
+  /* Backfill deletes parts and their links before it stores them again */
+  private final static List<String> DELETED_TABLES = Arrays.asList("Part",
+      "Envelope_Part");
+  private final static String[] UPDATED_ENVELOPE_COLUMNS = { "bodyImported",
+      "idConversation" };
+
+  private Connection conn;
+  private LinkedHashMap<String, String> schema;
+  private int chunkRows;
+  private long pauseMillis;
+
+  public static void main(String argv[]) {
+    try {
+      if (argv.length < 2 || argv.length > 4
+          || !(argv[1].equals("copy") || argv[1].equals("switch"))) {
+        System.err
+            .println("Usage: SchemaMigrate <config file> copy|switch [chunk rows [pause millis]]");
+        System.exit(1);
+      }
+
+      Properties dbProps = new Properties();
+      FileReader r = new FileReader(argv[0]);
+      dbProps.load(r);
+      r.close();
+
+      if (Config.getProperty(dbProps, "db.partitionYears", null) != null) {
+        System.err.println("db.partitionYears isn't supported anymore, "
+            + "a partitioned Envelope can't keep messageID unique");
+        System.exit(1);
+      }
+
+      Connection conn = new MailDBPool(dbProps).createConnection();
+      try {
+        SchemaMigrate job = new SchemaMigrate(conn, new File(Config
+            .getProperty(dbProps, "db.schema", "sql/dbschema.sql")),
+            argv.length > 2 ? Integer.parseInt(argv[2]) : 10000,
+            argv.length > 3 ? Long.parseLong(argv[3]) : 0);
+        if (argv[1].equals("copy"))
+          job.copy();
+        else
+          job.swap();
+      } finally {
+        conn.close();
+      }
+    } catch (Exception ex) {
+      ex.printStackTrace();
+    }
+    System.exit(0);
+  }
+
+  public SchemaMigrate(Connection conn, File schemaFile, int chunkRows,
+      long pauseMillis) throws IOException, SQLException {
+    this.conn = conn;
+    this.conn.setAutoCommit(true);
+    this.schema = parseSchema(schemaFile);
+    this.chunkRows = Math.max(1, chunkRows);
+    this.pauseMillis = pauseMillis;
+  }
+
+  /*
+   * CREATE TABLE statements of a mysqldump file by table name
+   */
+  private static LinkedHashMap<String, String> parseSchema(File file)
+      throws IOException {
+    StringBuilder sql = new StringBuilder();
+    BufferedReader reader = new BufferedReader(new FileReader(file));
+    String line;
+    while ((line = reader.readLine()) != null) {
+      if (!line.trim().startsWith("--"))
+        sql.append(line).append('\n');
+    }
+    reader.close();
+
+    LinkedHashMap<String, String> tables = new LinkedHashMap<String, String>();
+    Pattern create = Pattern.compile("^\\s*CREATE TABLE `(\\w+)`");
+    for (String s : sql.toString().split(";")) {
+      Matcher m = create.matcher(s);
+      if (m.find())
+        tables.put(m.group(1), s.trim());
+    }
+    return tables;
+  }
+
+  public void copy() throws SQLException, InterruptedException {
+    int version = this.getVersion();
+    Vector<String> tables = new Vector<String>();
+    if (version < SCHEMA_VERSION)
+      tables.addAll(this.schema.keySet());
+    tables.remove("SchemaVersion");
+
+    if (tables.isEmpty()) {
+      System.out.println("Schema version " + version + " is up to date");
+      return;
+    }
+
+    System.out.println("Migrating schema version " + version + " to "
+        + SCHEMA_VERSION);
+    for (String table : tables) {
+      if (!this.exists(table)) {
+        System.out.println(table + " created");
+        this.execute(this.schema.get(table));
+        continue;
+      }
+
+      if (!this.exists(table + SUFFIX_NEW))
+        this.execute(this.createStatement(table, table + SUFFIX_NEW));
+      this.copyRows(table);
+    }
+  }
+
+  /*
+   * Finishes the tables copy() started and replaces the old ones with them
+   */
+  public void swap() throws SQLException, InterruptedException {
+    Vector<String> tables = new Vector<String>();
+    for (String table : this.schema.keySet()) {
+      if (this.exists(table + SUFFIX_NEW))
+        tables.add(table);
+    }
+    if (tables.isEmpty()) {
+      System.out.println("Nothing to switch, run copy first");
+      return;
+    }
+
+    StringBuilder rename = new StringBuilder();
+    for (String table : tables) {
+      String copy = table + SUFFIX_NEW;
+      if (UPDATED_TABLES.contains(table))
+        this.execute("delete from " + copy);
+      this.copyRows(table);
+      if (!UPDATED_TABLES.contains(table))
+        this.insertMissing(table);
+
+      if (table.equals("Envelope"))
+        this.updateEnvelopes();
+      if (DELETED_TABLES.contains(table))
+        this.deleteRemoved(table);
+
+      rename.append(rename.length() > 0 ? ", " : "").append(table).append(
+          " TO ").append(table + SUFFIX_OLD).append(", ").append(copy).append(
+          " TO ").append(table);
+    }
+
+    // all tables at once
+    this.execute("RENAME TABLE " + rename);
+    if (!this.exists("SchemaVersion"))
+      this.execute(this.schema.get("SchemaVersion"));
+    if (this.getVersion() < SCHEMA_VERSION)
+      this.execute("INSERT INTO SchemaVersion (version, applied) values ("
+          + SCHEMA_VERSION + ", now())");
+    System.out.println("Switched " + tables + ", the old tables end with "
+        + SUFFIX_OLD);
+  }
+
+  /*
+   * Copies the rows past the last key already copied, a chunk of keys per
+   * statement
+   */
+  private void copyRows(String table) throws SQLException,
+      InterruptedException {
+    String copy = table + SUFFIX_NEW;
+    String key = this.getKeyColumns(table)[0];
+    String columns = this.commonColumns(table, copy);
+
+    PreparedStatement last = this.conn.prepareStatement("select max(" + key
+        + ") from " + copy);
+    PreparedStatement first = this.conn.prepareStatement("select max(" + key
+        + ") from (select " + key + " from " + table + " order by " + key
+        + " limit " + this.chunkRows + ") c");
+    PreparedStatement next = this.conn.prepareStatement("select max(" + key
+        + ") from (select " + key + " from " + table + " where " + key
+        + " > ? order by " + key + " limit " + this.chunkRows + ") c");
+    PreparedStatement insertFirst = this.conn.prepareStatement("INSERT INTO "
+        + copy + " (" + columns + ") select " + columns + " from " + table
+        + " where " + key + " <= ?");
+    PreparedStatement insertNext = this.conn.prepareStatement("INSERT INTO "
+        + copy + " (" + columns + ") select " + columns + " from " + table
+        + " where " + key + " > ? and " + key + " <= ?");
+    try {
+      Object from = this.queryValue(last);
+      long rows = 0;
+      while (true) {
+        Object to;
+        if (from == null) {
+          to = this.queryValue(first);
+        } else {
+          next.setObject(1, from);
+          to = this.queryValue(next);
+        }
+        if (to == null)
+          break;
+
+        // rows with the same key never end up in two chunks
+        if (from == null) {
+          insertFirst.setObject(1, to);
+          rows += insertFirst.executeUpdate();
+        } else {
+          insertNext.setObject(1, from);
+          insertNext.setObject(2, to);
+          rows += insertNext.executeUpdate();
+        }
+        from = to;
+
+        System.out.println(table + " " + rows + " rows copied");
+        if (this.pauseMillis > 0)
+          Thread.sleep(this.pauseMillis);
+      }
+      if (rows == 0)
+        System.out.println(table + " copied");
+    } finally {
+      last.close();
+      first.close();
+      next.close();
+      insertFirst.close();
+      insertNext.close();
+    }
+  }
+
+  /*
+   * Imports commit their keys out of order, copyRows() may have passed keys
+   * whose rows were committed after the chunk was copied
+   */
+  private void insertMissing(String table) throws SQLException {
+    String[] keys = this.getKeyColumns(table);
+    StringBuilder on = new StringBuilder();
+    for (String key : keys) {
+      on.append(on.length() > 0 ? " and " : "").append("n.").append(key)
+          .append(" = o.").append(key);
+    }
+    String columns = this.commonColumns(table, table + SUFFIX_NEW);
+    int rows = this.execute("INSERT INTO " + table + SUFFIX_NEW + " ("
+        + columns + ") select o." + columns.replace(", ", ", o.") + " from "
+        + table + " o left join " + table + SUFFIX_NEW + " n on " + on
+        + " where n." + keys[0] + " is null");
+    System.out.println(table + " " + rows + " rows inserted");
+  }
+
+  private void updateEnvelopes() throws SQLException {
+    Vector<String> old = this.getColumns("Envelope");
+    StringBuilder set = new StringBuilder();
+    StringBuilder changed = new StringBuilder();
+    for (String column : UPDATED_ENVELOPE_COLUMNS) {
+      if (!old.contains(column))
+        continue;
+      set.append(set.length() > 0 ? ", " : "").append("n.").append(column)
+          .append(" = o.").append(column);
+      changed.append(changed.length() > 0 ? " or " : "").append("not n.")
+          .append(column).append(" <=> o.").append(column);
+    }
+    if (set.length() == 0)
+      return;
+
+    int rows = this.execute("update Envelope" + SUFFIX_NEW
+        + " n join Envelope o on o.idEnvelope = n.idEnvelope set " + set
+        + " where " + changed);
+    System.out.println("Envelope " + rows + " rows updated");
+  }
+
+  private void deleteRemoved(String table) throws SQLException {
+    String[] keys = this.getKeyColumns(table);
+    StringBuilder on = new StringBuilder();
+    for (String key : keys) {
+      on.append(on.length() > 0 ? " and " : "").append("o.").append(key)
+          .append(" = n.").append(key);
+    }
+    int rows = this.execute("delete n from " + table + SUFFIX_NEW
+        + " n left join " + table + " o on " + on + " where o." + keys[0]
+        + " is null");
+    System.out.println(table + " " + rows + " rows deleted");
+  }
+
+  private String commonColumns(String table, String copy)
+      throws SQLException {
+    HashSet<String> old = new HashSet<String>();
+    for (String column : this.getColumns(table))
+      old.add(column.toLowerCase());
+
+    StringBuilder columns = new StringBuilder();
+    for (String column : this.getColumns(copy)) {
+      if (old.contains(column.toLowerCase()))
+        columns.append(columns.length() > 0 ? ", " : "").append(column);
+    }
+    return columns.toString();
+  }
+
+  /*
+   * The statement of the schema for a table named name
+   */
+  private String createStatement(String table, String name) {
+    return this.schema.get(table).replaceFirst("`" + table + "`",
+        "`" + name + "`");
+  }
+
+  private int execute(String sql) throws SQLException {
+    Statement stmnt = this.conn.createStatement();
+    try {
+      return stmnt.executeUpdate(sql);
+    } finally {
+      stmnt.close();
+    }
+  }
+
+  private boolean exists(String table) {
+    try {
+      this.getColumns(table);
+      return true;
+    } catch (SQLException e) {
+      return false;
+    }
+  }
+
+  private Vector<String> getColumns(String table) throws SQLException {
+    Statement stmnt = this.conn.createStatement();
+    try {
+      ResultSetMetaData meta = stmnt.executeQuery(
+          "select * from " + table + " where 1 = 0").getMetaData();
+      Vector<String> columns = new Vector<String>();
+      for (int i = 1; i <= meta.getColumnCount(); i++)
+        columns.add(meta.getColumnName(i));
+      return columns;
+    } finally {
+      stmnt.close();
+    }
+  }
+
+  /*
+   * Primary key columns of the schema, the first one orders the copy
+   */
+  private String[] getKeyColumns(String table) {
+    Matcher m = Pattern.compile("PRIMARY KEY \\(([^)]*)\\)").matcher(
+        this.schema.get(table));
+    if (!m.find())
+      throw new IllegalStateException("No primary key for " + table);
+    return m.group(1).replace("`", "").split(",");
+  }
+
+  private int getVersion() {
+    try {
+      Statement stmnt = this.conn.createStatement();
+      try {
+        ResultSet rs = stmnt
+            .executeQuery("select max(version) from SchemaVersion");
+        return rs.next() ? Math.max(1, rs.getInt(1)) : 1;
+      } finally {
+        stmnt.close();
+      }
+    } catch (SQLException e) {
+      // created before schema versions
+      return 1;
+    }
+  }
+
+  private Object queryValue(PreparedStatement stmnt) throws SQLException {
+    ResultSet rs = stmnt.executeQuery();
+    try {
+      return rs.next() ? rs.getObject(1) : null;
+    } finally {
+      rs.close();
+    }
+  }
+}
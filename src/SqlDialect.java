@@ -0,0 +1,532 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.TreeSet;
+
+/*
+ * The vendor specific SQL of MailDB. Rows with a unique key are written with
+ * one statement that returns the key of the new or the already existing
+ * row, instead of an insert that fails on duplicates and a select after it:
+ * 
+ * mysql       INSERT ... ON DUPLICATE KEY UPDATE id = LAST_INSERT_ID(id),
+ *             the key read from the OK packet
+ * postgresql  INSERT ... ON CONFLICT (...) DO UPDATE ... RETURNING id
+ * h2/generic  INSERT, select on a duplicate key error (only for databases
+ *             that keep the transaction usable after it)
+ * 
+ * The dialect is picked by db.dialect or the jdbc.url.
+ * 
+ * Counters (prepareIncrement) are added to the existing row the same way,
+ * in batches: ON DUPLICATE KEY UPDATE, ON CONFLICT DO UPDATE, MERGE ...
+ * WHEN MATCHED, and an UPDATE with an INSERT for rows it didn't find on
+ * generic databases.
+ * 
+ * Rows without a generated key, like PartBlob, are inserted by
+ * prepareInsertIgnore, which leaves an existing row alone: ON DUPLICATE KEY
+ * UPDATE with an unchanged column and ON CONFLICT DO NOTHING. H2 and
+ * generic databases report the duplicate key error instead.
+ */
+public abstract class SqlDialect {
+  private Set<Integer> duplicateKeyCodes = null;
+
+  public static SqlDialect forName(String name, String jdbcUrl) {
+    if (name == null || name.trim().length() == 0)
+      name = jdbcUrl != null && jdbcUrl.startsWith("jdbc:") ? jdbcUrl
+          .substring(5, Math.max(5, jdbcUrl.indexOf(':', 5))) : "";
+
+    name = name.trim().toLowerCase();
+    if (name.equals("mysql") || name.equals("mariadb"))
+      return new MySQL();
+    if (name.equals("postgresql"))
+      return new PostgreSQL();
+    if (name.equals("h2"))
+      return new H2();
+    return new Generic();
+  }
+
+  /*
+   * The dialect of db.dialect or the jdbc.url, with the duplicate key codes
+   * of db.ignoreErrorCode
+   */
+  public static SqlDialect forProperties(Properties dbProps) {
+    SqlDialect dialect = forName(Config.getProperty(dbProps, "db.dialect",
+        null), Config.getProperty(dbProps, "jdbc.url", null));
+    String codeList = Config.getProperty(dbProps, "db.ignoreErrorCode", null);
+    if (codeList != null) {
+      TreeSet<Integer> codes = new TreeSet<Integer>();
+      StringTokenizer errCodes = new StringTokenizer(codeList, ",");
+      while (errCodes.hasMoreTokens())
+        codes.add(Integer.parseInt(errCodes.nextToken().trim()));
+      dialect.setDuplicateKeyCodes(codes);
+    }
+    return dialect;
+  }
+
+  public abstract String getName();
+
+  /*
+   * Driver properties of the import connections
+   */
+  public Properties getConnectionProperties() {
+    return new Properties();
+  }
+
+  /*
+   * Vendor error codes configured by db.ignoreErrorCode replace the
+   * dialect's own check
+   */
+  public boolean isDuplicateKey(SQLException e) {
+    if (this.duplicateKeyCodes != null)
+      return this.duplicateKeyCodes.contains(e.getErrorCode());
+    return this.isUniqueViolation(e);
+  }
+
+  protected boolean isUniqueViolation(SQLException e) {
+    return "23505".equals(e.getSQLState());
+  }
+
+  public void setDuplicateKeyCodes(Set<Integer> duplicateKeyCodes) {
+    this.duplicateKeyCodes = duplicateKeyCodes;
+  }
+
+  /*
+   * Adds the last of the columns to the row with the unique key of the first
+   * uniqueColumns, inserting the row if there is none
+   */
+  public abstract Increment prepareIncrement(Connection conn, String table,
+      String[] columns, int uniqueColumns) throws SQLException;
+
+  /*
+   * INSERT of the columns, the first uniqueColumns of them being the unique
+   * key. executeUpdate() returns 0 for an existing row.
+   */
+  public PreparedStatement prepareInsertIgnore(Connection conn, String table,
+      String[] columns, int uniqueColumns) throws SQLException {
+    return conn.prepareStatement(insert(table, columns));
+  }
+
+  /*
+   * Upsert of the columns into the table, the first uniqueColumns of them
+   * being its unique key
+   */
+  public abstract Upsert prepareUpsert(Connection conn, String table,
+      String keyColumn, String[] columns, int uniqueColumns)
+      throws SQLException;
+
+  public String toString() {
+    return this.getName();
+  }
+
+  protected static String list(String[] columns, int from, int to,
+      String format, String separator) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = from; i < to; i++) {
+      if (i > from)
+        sb.append(separator);
+      sb.append(format.replace("%", columns[i]));
+    }
+    return sb.toString();
+  }
+
+  protected static String insert(String table, String[] columns) {
+    return "INSERT INTO " + table + " ("
+        + list(columns, 0, columns.length, "%", ", ") + ") values ("
+        + list(columns, 0, columns.length, "?", ", ") + ")";
+  }
+
+  /*
+   * Column i is parameter offset + i + 1 of a statement
+   */
+  protected static int[][] positions(int columns, int offset) {
+    int[][] positions = new int[columns][];
+    for (int i = 0; i < columns; i++)
+      positions[i] = new int[] { offset + i + 1 };
+    return positions;
+  }
+
+  protected static PreparedStatement prepareSelect(Connection conn,
+      String table, String keyColumn, String[] columns, int uniqueColumns)
+      throws SQLException {
+    return conn.prepareStatement("select " + keyColumn + " from " + table
+        + " where " + list(columns, 0, uniqueColumns, "% = ?", " and "));
+  }
+
+  /*
+   * Batched counter rows, values are set by column and bound at the
+   * statement's positions by addBatch()
+   */
+  public static class Increment {
+    protected PreparedStatement stmnt;
+    protected int[][] positions;
+    protected Object[] values;
+
+    protected Increment(PreparedStatement stmnt, int[][] positions) {
+      this.stmnt = stmnt;
+      this.positions = positions;
+      this.values = new Object[positions.length];
+    }
+
+    public void addBatch() throws SQLException {
+      for (int i = 0; i < this.values.length; i++) {
+        for (int p : this.positions[i])
+          this.stmnt.setObject(p, this.values[i]);
+      }
+      this.stmnt.addBatch();
+    }
+
+    public void close() throws SQLException {
+      this.stmnt.close();
+    }
+
+    public void executeBatch() throws SQLException {
+      this.stmnt.executeBatch();
+    }
+
+    public void setValue(int column, Object value) {
+      this.values[column - 1] = value;
+    }
+  }
+
+  /*
+   * Parameters are set by column, each statement gets them at its own
+   * positions. execute() tells if the row was inserted, getKey() returns
+   * its key either way (0 if not found).
+   */
+  public static abstract class Upsert {
+    protected PreparedStatement stmnt;
+    protected int[][] positions;
+    protected PreparedStatement select;
+    protected int uniqueColumns;
+    protected int key = 0;
+
+    protected Upsert(PreparedStatement stmnt, int[][] positions,
+        PreparedStatement select, int uniqueColumns) {
+      this.stmnt = stmnt;
+      this.positions = positions;
+      this.select = select;
+      this.uniqueColumns = uniqueColumns;
+    }
+
+    public void close() throws SQLException {
+      this.stmnt.close();
+      if (this.select != null)
+        this.select.close();
+    }
+
+    public boolean execute() throws SQLException {
+      this.key = 0;
+      if (this.insert())
+        return true;
+
+      if (this.key == 0 && this.select != null) {
+        ResultSet rs = this.select.executeQuery();
+        try {
+          if (rs.next())
+            this.key = rs.getInt(1);
+        } finally {
+          rs.close();
+        }
+      }
+      return false;
+    }
+
+    public int getKey() {
+      return this.key;
+    }
+
+    /*
+     * Sets key if it is known, returns false if the row already existed
+     */
+    protected abstract boolean insert() throws SQLException;
+
+    public void setDate(int column, Date value) throws SQLException {
+      for (int p : this.positions[column - 1])
+        this.stmnt.setDate(p, value);
+      if (column <= this.uniqueColumns && this.select != null)
+        this.select.setDate(column, value);
+    }
+
+    public void setInt(int column, int value) throws SQLException {
+      for (int p : this.positions[column - 1])
+        this.stmnt.setInt(p, value);
+      if (column <= this.uniqueColumns && this.select != null)
+        this.select.setInt(column, value);
+    }
+
+    public void setNull(int column, int sqlType) throws SQLException {
+      for (int p : this.positions[column - 1])
+        this.stmnt.setNull(p, sqlType);
+      if (column <= this.uniqueColumns && this.select != null)
+        this.select.setNull(column, sqlType);
+    }
+
+    public void setString(int column, String value) throws SQLException {
+      for (int p : this.positions[column - 1])
+        this.stmnt.setString(p, value);
+      if (column <= this.uniqueColumns && this.select != null)
+        this.select.setString(column, value);
+    }
+  }
+
+  /*
+   * LAST_INSERT_ID(id) makes the existing key the last insert id of the OK
+   * packet, also for an unchanged duplicate. Connector/J hands that out by
+   * getLastInsertID(), its generated keys only cover affected rows. Whether
+   * a row was inserted is told by the affected rows, which Connector/J only
+   * reports with useAffectedRows. Drivers without getLastInsertID() get the
+   * generated keys and a select for an unchanged duplicate.
+   */
+  private static class MySQL extends SqlDialect {
+    private final static String[] STATEMENT_CLASSES = {
+        "com.mysql.cj.jdbc.JdbcStatement", "com.mysql.jdbc.Statement" };
+
+    public String getName() {
+      return "mysql";
+    }
+
+    public Properties getConnectionProperties() {
+      Properties props = new Properties();
+      props.setProperty("useAffectedRows", "true");
+      return props;
+    }
+
+    protected boolean isUniqueViolation(SQLException e) {
+      return e.getErrorCode() == 1062;
+    }
+
+    public Increment prepareIncrement(Connection conn, String table,
+        String[] columns, int uniqueColumns) throws SQLException {
+      String counter = columns[columns.length - 1];
+      return new Increment(conn.prepareStatement(insert(table, columns)
+          + " ON DUPLICATE KEY UPDATE " + counter + " = " + counter
+          + " + VALUES(" + counter + ")"), positions(columns.length, 0));
+    }
+
+    /*
+     * INSERT IGNORE would also turn conversion errors into warnings
+     */
+    public PreparedStatement prepareInsertIgnore(Connection conn,
+        String table, String[] columns, int uniqueColumns) throws SQLException {
+      return conn.prepareStatement(insert(table, columns)
+          + " ON DUPLICATE KEY UPDATE " + columns[0] + " = " + columns[0]);
+    }
+
+    public Upsert prepareUpsert(Connection conn, String table,
+        String keyColumn, String[] columns, int uniqueColumns)
+        throws SQLException {
+      String sql = insert(table, columns) + " ON DUPLICATE KEY UPDATE "
+          + keyColumn + " = LAST_INSERT_ID(" + keyColumn + ")";
+      final PreparedStatement stmnt = conn.prepareStatement(sql);
+      for (String name : STATEMENT_CLASSES) {
+        try {
+          Class<?> type = Class.forName(name, false, stmnt.getClass()
+              .getClassLoader());
+          if (!stmnt.isWrapperFor(type))
+            continue;
+
+          final Object target = stmnt.unwrap(type);
+          final Method lastInsertId = type.getMethod("getLastInsertID");
+          return new Upsert(stmnt, positions(columns.length, 0), null,
+              uniqueColumns) {
+            protected boolean insert() throws SQLException {
+              int rows = stmnt.executeUpdate();
+              try {
+                this.key = ((Number) lastInsertId.invoke(target)).intValue();
+              } catch (Exception e) {
+                throw new SQLException("getLastInsertID() failed", e);
+              }
+              return rows == 1;
+            }
+          };
+        } catch (ClassNotFoundException e) {
+        } catch (NoSuchMethodException e) {}
+      }
+      stmnt.close();
+
+      final PreparedStatement keyed = conn.prepareStatement(sql,
+          Statement.RETURN_GENERATED_KEYS);
+      return new Upsert(keyed, positions(columns.length, 0), prepareSelect(
+          conn, table, keyColumn, columns, uniqueColumns), uniqueColumns) {
+        protected boolean insert() throws SQLException {
+          int rows = keyed.executeUpdate();
+          ResultSet rs = keyed.getGeneratedKeys();
+          try {
+            if (rs.next())
+              this.key = rs.getInt(1);
+          } finally {
+            rs.close();
+          }
+          return rows == 1;
+        }
+      };
+    }
+  }
+
+  /*
+   * DO NOTHING returns no row for an existing one, updating a column to
+   * its own value returns it in the same statement. xmax is 0 only for the
+   * row version this statement inserted.
+   */
+  private static class PostgreSQL extends SqlDialect {
+    public String getName() {
+      return "postgresql";
+    }
+
+    public Increment prepareIncrement(Connection conn, String table,
+        String[] columns, int uniqueColumns) throws SQLException {
+      String counter = columns[columns.length - 1];
+      return new Increment(conn.prepareStatement(insert(table, columns)
+          + " ON CONFLICT (" + list(columns, 0, uniqueColumns, "%", ", ")
+          + ") DO UPDATE SET " + counter + " = " + table + "." + counter
+          + " + EXCLUDED." + counter), positions(columns.length, 0));
+    }
+
+    /*
+     * A failed INSERT would abort the transaction
+     */
+    public PreparedStatement prepareInsertIgnore(Connection conn,
+        String table, String[] columns, int uniqueColumns) throws SQLException {
+      return conn.prepareStatement(insert(table, columns) + " ON CONFLICT ("
+          + list(columns, 0, uniqueColumns, "%", ", ") + ") DO NOTHING");
+    }
+
+    public Upsert prepareUpsert(Connection conn, String table,
+        String keyColumn, String[] columns, int uniqueColumns)
+        throws SQLException {
+      final PreparedStatement stmnt = conn.prepareStatement(insert(table,
+          columns)
+          + " ON CONFLICT (" + list(columns, 0, uniqueColumns, "%", ", ")
+          + ") DO UPDATE SET " + columns[0] + " = EXCLUDED." + columns[0]
+          + " RETURNING " + keyColumn + ", xmax = 0");
+
+      return new Upsert(stmnt, positions(columns.length, 0), null,
+          uniqueColumns) {
+        protected boolean insert() throws SQLException {
+          ResultSet rs = stmnt.executeQuery();
+          try {
+            rs.next();
+            this.key = rs.getInt(1);
+            return rs.getBoolean(2);
+          } finally {
+            rs.close();
+          }
+        }
+      };
+    }
+  }
+
+  /*
+   * Counters with MERGE, the unique columns are bound twice, in the match
+   * condition and in the inserted values. Upserts are the generic ones.
+   */
+  private static class H2 extends Generic {
+    public String getName() {
+      return "h2";
+    }
+
+    public Increment prepareIncrement(Connection conn, String table,
+        String[] columns, int uniqueColumns) throws SQLException {
+      String counter = columns[columns.length - 1];
+      PreparedStatement stmnt = conn.prepareStatement("MERGE INTO " + table
+          + " USING DUAL ON "
+          + list(columns, 0, uniqueColumns, table + ".% = ?", " AND ")
+          + " WHEN MATCHED THEN UPDATE SET " + counter + " = " + table + "."
+          + counter + " + ? WHEN NOT MATCHED THEN INSERT ("
+          + list(columns, 0, columns.length, "%", ", ") + ") VALUES ("
+          + list(columns, 0, columns.length, "?", ", ") + ")");
+
+      int[][] positions = positions(columns.length, uniqueColumns + 1);
+      for (int i = 0; i < uniqueColumns; i++)
+        positions[i] = new int[] { i + 1, positions[i][0] };
+      positions[columns.length - 1] = new int[] { uniqueColumns + 1,
+          positions[columns.length - 1][0] };
+      return new Increment(stmnt, positions);
+    }
+  }
+
+  private static class Generic extends SqlDialect {
+    public String getName() {
+      return "generic";
+    }
+
+    /*
+     * Rows another connection inserts between the UPDATE and the batch
+     * fail the batch
+     */
+    public Increment prepareIncrement(Connection conn, String table,
+        String[] columns, final int uniqueColumns) throws SQLException {
+      String counter = columns[columns.length - 1];
+      final PreparedStatement update = conn.prepareStatement("UPDATE "
+          + table + " SET " + counter + " = " + counter + " + ? WHERE "
+          + list(columns, 0, uniqueColumns, "% = ?", " AND "));
+
+      return new Increment(conn.prepareStatement(insert(table, columns)),
+          positions(columns.length, 0)) {
+        public void addBatch() throws SQLException {
+          update.setObject(1, this.values[this.values.length - 1]);
+          for (int i = 0; i < uniqueColumns; i++)
+            update.setObject(i + 2, this.values[i]);
+          if (update.executeUpdate() == 0)
+            super.addBatch();
+        }
+
+        public void close() throws SQLException {
+          super.close();
+          update.close();
+        }
+      };
+    }
+
+    public Upsert prepareUpsert(Connection conn, String table,
+        String keyColumn, String[] columns, int uniqueColumns)
+        throws SQLException {
+      final PreparedStatement stmnt = conn.prepareStatement(insert(table,
+          columns), Statement.RETURN_GENERATED_KEYS);
+
+      return new Upsert(stmnt, positions(columns.length, 0), prepareSelect(
+          conn, table, keyColumn, columns, uniqueColumns), uniqueColumns) {
+        protected boolean insert() throws SQLException {
+          try {
+            stmnt.executeUpdate();
+          } catch (SQLException e) {
+            if (!Generic.this.isDuplicateKey(e))
+              throw e;
+            return false;
+          }
+          ResultSet rs = stmnt.getGeneratedKeys();
+          try {
+            if (rs.next())
+              this.key = rs.getInt(1);
+          } finally {
+            rs.close();
+          }
+          return true;
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,248 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Date;
+
+/*
+ * Rows of one table in the format LOAD DATA reads by default: tab separated
+ * columns, one row per line, \N for NULL and tab, newline, backslash and
+ * NUL escaped with a backslash. Column types are 'i' int, 's' string,
+ * 'd' date and 'b' binary.
+ */
+public class StagingFile {
+  private final static int BUFFER_SIZE = 256 * 1024;
+
+  private String table;
+  private String columns;
+  private String types;
+  private File file;
+  private OutputStream out = null;
+  private long rows = 0;
+
+  public StagingFile(File dir, String table, String columns, String types) {
+    this.table = table;
+    this.columns = columns;
+    this.types = types;
+    this.file = new File(dir, table + ".tsv");
+  }
+
+  public synchronized void add(Object... values) throws IOException {
+    if (this.out == null)
+      this.out = new BufferedOutputStream(new FileOutputStream(this.file),
+          BUFFER_SIZE);
+
+    for (int i = 0; i < values.length; i++) {
+      if (i > 0)
+        this.out.write('\t');
+      this.write(values[i]);
+    }
+    this.out.write('\n');
+    this.rows++;
+  }
+
+  /*
+   * Moves the rows of a file made by fork() to the end of this one
+   */
+  public synchronized void append(StagingFile rows) throws IOException {
+    rows.close();
+    if (rows.rows > 0) {
+      if (this.out == null)
+        this.out = new BufferedOutputStream(new FileOutputStream(this.file),
+            BUFFER_SIZE);
+
+      InputStream in = new FileInputStream(rows.file);
+      try {
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) != -1)
+          this.out.write(buf, 0, n);
+      } finally {
+        in.close();
+      }
+      this.rows += rows.rows;
+    }
+    rows.discard();
+  }
+
+  public synchronized void close() throws IOException {
+    if (this.out != null)
+      this.out.close();
+    this.out = null;
+  }
+
+  public synchronized void discard() {
+    try {
+      this.close();
+    } catch (IOException e) {}
+    this.file.delete();
+    this.rows = 0;
+  }
+
+  /*
+   * A file of the same table next to this one, for rows that are only
+   * appended here once their transaction commits
+   */
+  public StagingFile fork(String name) {
+    StagingFile fork = new StagingFile(this.file.getParentFile(), this.table,
+        this.columns, this.types);
+    fork.file = new File(this.file.getParentFile(), this.table + "." + name
+        + ".tsv");
+    return fork;
+  }
+
+  public String getColumns() {
+    return this.columns;
+  }
+
+  public File getFile() {
+    return this.file;
+  }
+
+  public long getRows() {
+    return this.rows;
+  }
+
+  public String getTable() {
+    return this.table;
+  }
+
+  public String getTypes() {
+    return this.types;
+  }
+
+  public Reader open() throws IOException {
+    return new Reader(this);
+  }
+
+  private void write(Object value) throws IOException {
+    if (value == null) {
+      this.out.write('\\');
+      this.out.write('N');
+    } else if (value instanceof PartContent) {
+      InputStream in = ((PartContent) value).openStream();
+      try {
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) != -1)
+          this.escape(buf, n);
+      } finally {
+        in.close();
+      }
+    } else if (value instanceof byte[]) {
+      byte[] b = (byte[]) value;
+      this.escape(b, b.length);
+    } else {
+      byte[] b = value.toString().getBytes("UTF-8");
+      this.escape(b, b.length);
+    }
+  }
+
+  private void escape(byte[] b, int len) throws IOException {
+    for (int i = 0; i < len; i++) {
+      switch (b[i]) {
+      case 0:
+        this.out.write('\\');
+        this.out.write('0');
+        break;
+      case '\t':
+        this.out.write('\\');
+        this.out.write('t');
+        break;
+      case '\n':
+        this.out.write('\\');
+        this.out.write('n');
+        break;
+      case '\\':
+        this.out.write('\\');
+        this.out.write('\\');
+        break;
+      default:
+        this.out.write(b[i]);
+      }
+    }
+  }
+
+  /*
+   * Reads the rows back for databases without a bulk load statement
+   */
+  public static class Reader {
+    private InputStream in;
+    private String types;
+    private ByteArrayOutputStream field = new ByteArrayOutputStream();
+
+    private Reader(StagingFile staging) throws IOException {
+      this.types = staging.types;
+      this.in = new BufferedInputStream(new FileInputStream(staging.file),
+          BUFFER_SIZE);
+    }
+
+    public void close() throws IOException {
+      this.in.close();
+    }
+
+    public Object[] next() throws IOException {
+      Object[] row = new Object[this.types.length()];
+      int col = 0;
+      boolean isNull = false;
+      this.field.reset();
+
+      int c;
+      while ((c = this.in.read()) != -1) {
+        if (c == '\\') {
+          c = this.in.read();
+          if (c == 'N')
+            isNull = true;
+          else
+            this.field.write(c == '0' ? 0 : c == 't' ? '\t' : c == 'n' ? '\n'
+                : c);
+        } else if (c == '\t' || c == '\n') {
+          if (col < row.length)
+            row[col] = isNull ? null : this.convert(this.types.charAt(col));
+          col++;
+          isNull = false;
+          this.field.reset();
+          if (c == '\n')
+            return row;
+        } else
+          this.field.write(c);
+      }
+      return null;
+    }
+
+    private Object convert(char type) throws IOException {
+      switch (type) {
+      case 'i':
+        return Integer.valueOf(this.field.toString("US-ASCII"));
+      case 'd':
+        return Date.valueOf(this.field.toString("US-ASCII"));
+      case 'b':
+        return this.field.toByteArray();
+      default:
+        return this.field.toString("UTF-8");
+      }
+    }
+  }
+}
@@ -0,0 +1,238 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.io.FileReader;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Vector;
+
+/*
+ * Per day message counts by subscriber and link type (SubscriberDay) and by
+ * X-Mailer (MailerDay, '' for messages without one), so dashboards read
+ * small tables instead of grouping the archive. Committed messages are
+ * counted in memory and added to the tables every flushMessages messages
+ * and on close, on a connection of its own. Messages without a send date
+ * aren't counted.
+ *
+ * Messages per day are the sums of MailerDay by day.
+ */
+public class StatsRollup {
+  private final static int MAX_MAILER = 255;
+
+  private Connection conn;
+  private SqlDialect dialect;
+  private int flushMessages;
+  private int pending = 0;
+
+  private HashMap<String, Row> subscriberDays = new HashMap<String, Row>();
+  private HashMap<String, Row> mailerDays = new HashMap<String, Row>();
+
+  private static class Row {
+    int idSubscriber;
+    String type;
+    String mailer;
+    Date day;
+    int count;
+  }
+
+  public static void main(String argv[]) {
+    try {
+      if (argv.length != 1) {
+        System.err.println("Usage: StatsRollup <config file>");
+        System.exit(1);
+      }
+
+      Properties dbProps = new Properties();
+      FileReader r = new FileReader(argv[0]);
+      dbProps.load(r);
+      r.close();
+
+      MailDBPool pool = new MailDBPool(dbProps);
+      Connection conn = pool.createConnection();
+      try {
+        System.out.print("Rebuilding SubscriberDay and MailerDay... ");
+        new StatsRollup(conn, pool.getDialect(), 0).rebuild();
+        System.out.println("Done");
+      } finally {
+        conn.close();
+      }
+    } catch (Exception ex) {
+      ex.printStackTrace();
+    }
+    System.exit(0);
+  }
+
+  public StatsRollup(Connection conn, SqlDialect dialect, int flushMessages)
+      throws SQLException {
+    this.conn = conn;
+    this.dialect = dialect;
+    this.flushMessages = flushMessages;
+    this.conn.setAutoCommit(false);
+  }
+
+  /*
+   * Counts a committed top level message. Subscribers are counted once per
+   * message and type, like Envelope_Subscriber stores them.
+   */
+  public void add(EmailMessage email) throws SQLException {
+    if (email.senddate == null)
+      return;
+
+    synchronized (this) {
+      this.count(email.from, "From", email.senddate);
+      this.count(email.to, "To", email.senddate);
+      this.count(email.replyto, "Replyto", email.senddate);
+      this.count(email.cc, "CC", email.senddate);
+
+      String mailer = email.xmailer != null ? email.xmailer.trim() : "";
+      if (mailer.length() > MAX_MAILER)
+        mailer = mailer.substring(0, MAX_MAILER);
+      String key = mailer + '\t' + email.senddate;
+      Row row = this.mailerDays.get(key);
+      if (row == null) {
+        row = new Row();
+        row.mailer = mailer;
+        row.day = email.senddate;
+        this.mailerDays.put(key, row);
+      }
+      row.count++;
+
+      if (this.flushMessages <= 0 || ++this.pending < this.flushMessages)
+        return;
+    }
+    this.flush();
+  }
+
+  public synchronized void close() throws SQLException {
+    try {
+      this.flush();
+    } finally {
+      this.conn.close();
+    }
+  }
+
+  private void count(Vector<Integer> keys, String type, Date day) {
+    if (keys == null)
+      return;
+
+    HashSet<Integer> linked = new HashSet<Integer>();
+    for (Integer idSubscriber : keys) {
+      if (!linked.add(idSubscriber))
+        continue;
+
+      String key = idSubscriber + "\t" + type + '\t' + day;
+      Row row = this.subscriberDays.get(key);
+      if (row == null) {
+        row = new Row();
+        row.idSubscriber = idSubscriber;
+        row.type = type;
+        row.day = day;
+        this.subscriberDays.put(key, row);
+      }
+      row.count++;
+    }
+  }
+
+  /*
+   * Adds the counts accumulated since the last flush, in one batch per
+   * table. Rows another importer added in the meantime are added to.
+   */
+  public synchronized void flush() throws SQLException {
+    try {
+      SqlDialect.Increment increment = this.dialect.prepareIncrement(
+          this.conn, "SubscriberDay", new String[] { "idSubscriber", "type",
+              "day", "messageCount" }, 3);
+      try {
+        for (Row row : this.subscriberDays.values()) {
+          increment.setValue(1, row.idSubscriber);
+          increment.setValue(2, row.type);
+          increment.setValue(3, row.day);
+          increment.setValue(4, row.count);
+          increment.addBatch();
+        }
+        increment.executeBatch();
+      } finally {
+        increment.close();
+      }
+
+      increment = this.dialect.prepareIncrement(this.conn, "MailerDay",
+          new String[] { "xmailer", "day", "messageCount" }, 2);
+      try {
+        for (Row row : this.mailerDays.values()) {
+          increment.setValue(1, row.mailer);
+          increment.setValue(2, row.day);
+          increment.setValue(3, row.count);
+          increment.addBatch();
+        }
+        increment.executeBatch();
+      } finally {
+        increment.close();
+      }
+
+      this.conn.commit();
+      this.subscriberDays.clear();
+      this.mailerDays.clear();
+      this.pending = 0;
+    } catch (SQLException e) {
+      // the counts stay in memory for the next flush
+      this.conn.rollback();
+      throw e;
+    }
+  }
+
+  /*
+   * Recomputes both tables from the archive. Envelopes of attached
+   * messages aren't counted, like during the import: those marked
+   * BODY_REFERENCED and, stored before that mark, the ones another
+   * envelope's part references that have no parts of their own. The root
+   * part of a message references the message itself.
+   */
+  public synchronized void rebuild() throws SQLException {
+    Statement stmnt = this.conn.createStatement();
+    try {
+      String topLevel = "e.sendDate is not null and (e.bodyImported = "
+          + EmailMessage.BODY_NONE + " or e.bodyImported <> "
+          + EmailMessage.BODY_REFERENCED + " and (exists (select 1 from Envelope_Part own "
+          + "where own.idEnvelope = e.idEnvelope) or not exists (select 1 from Part p "
+          + "join Envelope_Part ep on ep.idPart = p.idPart "
+          + "where p.idReferencedEnvelope = e.idEnvelope and ep.idEnvelope <> e.idEnvelope))) ";
+      stmnt.executeUpdate("delete from SubscriberDay");
+      stmnt.executeUpdate("delete from MailerDay");
+      stmnt.executeUpdate("INSERT INTO SubscriberDay (idSubscriber, type, day, messageCount) "
+          + "select es.idSubscriber, es.type, e.sendDate, count(*) "
+          + "from Envelope e join Envelope_Subscriber es on es.idEnvelope = e.idEnvelope "
+          + "where " + topLevel
+          + "group by es.idSubscriber, es.type, e.sendDate");
+      stmnt.executeUpdate("INSERT INTO MailerDay (xmailer, day, messageCount) "
+          + "select coalesce(substring(trim(e.xmailer), 1, " + MAX_MAILER
+          + "), ''), e.sendDate, count(*) from Envelope e where " + topLevel
+          + "group by coalesce(substring(trim(e.xmailer), 1, " + MAX_MAILER
+          + "), ''), e.sendDate");
+      this.conn.commit();
+    } catch (SQLException e) {
+      this.conn.rollback();
+      throw e;
+    } finally {
+      stmnt.close();
+    }
+  }
+}
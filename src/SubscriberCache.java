@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+
+public class SubscriberCache extends LRUCache<String, Integer> {
+  private final static char SEPARATOR = '\u0001';
+  private final static String NO_NAME = "\u0000";
+
+  public static String key(String address, String name) {
+    return address + SEPARATOR + (name != null ? name : NO_NAME);
+  }
+
+  public SubscriberCache(int capacity) {
+    super(capacity);
+  }
+
+  public Integer get(String address, String name) {
+    return this.get(key(address, name));
+  }
+
+  public void putAll(Map<String, Integer> keys) {
+    for (Map.Entry<String, Integer> entry : keys.entrySet())
+      this.put(entry.getKey(), entry.getValue());
+  }
+
+  public int warm(Connection conn) throws SQLException {
+    if (this.getCapacity() <= 0)
+      return 0;
+
+    Statement stmnt = conn.createStatement();
+    stmnt.setMaxRows(this.getCapacity());
+    ResultSet rs = stmnt
+        .executeQuery("select idSubscriber, address, name from Subscriber order by idSubscriber desc");
+
+    int cnt = 0;
+    while (rs.next()) {
+      this.put(key(rs.getString(2), rs.getString(3)), rs.getInt(1));
+      cnt++;
+    }
+    rs.close();
+    stmnt.close();
+    return cnt;
+  }
+}
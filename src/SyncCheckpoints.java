@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/*
+ * UIDVALIDITY and highest imported UID per folder, kept in the
+ * SyncCheckpoint table on a connection of its own.
+ */
+public class SyncCheckpoints {
+  private Connection conn;
+  private PreparedStatement stmntSelect;
+  private PreparedStatement stmntUpdate;
+  private PreparedStatement stmntInsert;
+
+  public SyncCheckpoints(Connection conn) throws SQLException {
+    this.conn = conn;
+    this.conn.setAutoCommit(true);
+    this.stmntSelect = this.conn
+        .prepareStatement("select uidValidity, lastUid from SyncCheckpoint where folder = ?");
+    this.stmntUpdate = this.conn
+        .prepareStatement("UPDATE SyncCheckpoint SET uidValidity = ?, lastUid = ? WHERE folder = ?");
+    this.stmntInsert = this.conn
+        .prepareStatement("INSERT INTO SyncCheckpoint (folder, uidValidity, lastUid) "
+            + "values (?, ?, ?)");
+  }
+
+  public synchronized void close() throws SQLException {
+    this.conn.close();
+  }
+
+  /*
+   * Returns { uidValidity, lastUid } or null if the folder was never synced.
+   */
+  public synchronized long[] load(String folder) throws SQLException {
+    this.stmntSelect.setString(1, folder);
+    ResultSet rs = this.stmntSelect.executeQuery();
+    long[] cp = rs.next() ? new long[] { rs.getLong(1), rs.getLong(2) }
+        : null;
+    rs.close();
+    return cp;
+  }
+
+  public synchronized void save(String folder, long uidValidity, long lastUid)
+      throws SQLException {
+    this.stmntUpdate.setLong(1, uidValidity);
+    this.stmntUpdate.setLong(2, lastUid);
+    this.stmntUpdate.setString(3, folder);
+    if (this.stmntUpdate.executeUpdate() == 0) {
+      this.stmntInsert.setString(1, folder);
+      this.stmntInsert.setLong(2, uidValidity);
+      this.stmntInsert.setLong(3, lastUid);
+      this.stmntInsert.executeUpdate();
+    }
+  }
+}
@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.sql.SQLException;
+
+/*
+ * Advances the highest imported UID of an IMAP folder as its messages
+ * finish. Nothing at or below the saved UID is fetched again while
+ * UIDVALIDITY stays the same.
+ */
+public class UidCheckpoint implements ImportCheckpoint {
+  private SyncCheckpoints store;
+  private String folder;
+  private long uidValidity;
+  private long lastUid;
+  private Watermark watermark = new Watermark();
+  private int interval;
+  private int sinceSave = 0;
+
+  public UidCheckpoint(SyncCheckpoints store, String folder,
+      long uidValidity, long lastUid, int interval) {
+    this.store = store;
+    this.folder = folder;
+    this.uidValidity = uidValidity;
+    this.lastUid = lastUid;
+    this.interval = interval;
+  }
+
+  public void itemDone(ImportItem item) {
+    // a failed message stays pending, the import resumes at it
+    if (!item.failed)
+      this.watermark.done(item.offset);
+
+    synchronized (this) {
+      if (++this.sinceSave < this.interval)
+        return;
+      this.sinceSave = 0;
+    }
+    this.save();
+  }
+
+  public void itemQueued(ImportItem item) {
+    this.watermark.add(item.offset);
+  }
+
+  public void rangeDone() {
+    this.save();
+  }
+
+  private synchronized void save() {
+    long pending = this.watermark.getLowestPending();
+    long last = pending >= 0 ? pending - 1 : this.watermark.getHighest();
+    if (last <= this.lastUid)
+      return;
+
+    try {
+      this.store.save(this.folder, this.uidValidity, last);
+      this.lastUid = last;
+    } catch (SQLException e) {
+      System.err.println("Writing sync checkpoint failed: " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,50 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.util.TreeSet;
+
+/*
+ * Tracks keys (byte offsets, UIDs) of messages in flight. Everything below
+ * the lowest pending key is known to be finished, so it's safe to resume
+ * from there.
+ */
+public class Watermark {
+  private TreeSet<Long> pending = new TreeSet<Long>();
+  private long highest = -1;
+
+  public synchronized void add(long key) {
+    this.pending.add(key);
+    if (key > this.highest)
+      this.highest = key;
+  }
+
+  public synchronized void done(long key) {
+    this.pending.remove(key);
+  }
+
+  public synchronized long getHighest() {
+    return this.highest;
+  }
+
+  public synchronized long getLowestPending() {
+    return this.pending.isEmpty() ? -1 : this.pending.first();
+  }
+
+  public synchronized boolean hasPending() {
+    return !this.pending.isEmpty();
+  }
+}
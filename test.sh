@@ -0,0 +1,20 @@
+#!/bin/bash
+
+. `dirname $0`/settings.sh
+
+TESTDIR="$MDBDIR/test"
+TESTBIN="$TESTDIR/bin"
+CLASSPATH="$CLASSPATH:$MDBBIN:$TESTBIN:`ls $MDBDIR/bench/lib/*.jar 2> /dev/null | while read jar; do echo -n "$jar:"; done`"
+export CLASSPATH
+
+mkdir -p $MDBBIN $TESTBIN
+javac -d $MDBBIN $MDBSRC/*.java && javac -d $TESTBIN $TESTDIR/src/*.java
+[ $? != 0 ] && echo "failed" && exit 1
+
+java UidSyncTest || exit 1
+
+# the rollup check needs a database: ./test.sh bench/config.h2 with h2.jar
+# in bench/lib
+if [ -n "$1" ]; then
+  java RollupTest "$1"
+fi
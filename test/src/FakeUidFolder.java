@@ -0,0 +1,199 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.util.Properties;
+import java.util.Vector;
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Store;
+import javax.mail.UIDFolder;
+import javax.mail.URLName;
+import javax.mail.internet.MimeMessage;
+
+/*
+ * In-process stand-in for an IMAP folder: messages with UIDs and a
+ * UIDVALIDITY, numbered from 1 in UID order. Like IMAP, a UID range n:*
+ * returns the last message even if its UID is below n.
+ */
+public class FakeUidFolder extends Folder implements UIDFolder {
+  private String name;
+  private long uidValidity;
+  private boolean open = false;
+  private Vector<Message> messages = new Vector<Message>();
+  private Vector<Long> uids = new Vector<Long>();
+
+  private static class FakeStore extends Store {
+    FakeStore() {
+      super(Session.getInstance(new Properties()), null);
+    }
+
+    public Folder getDefaultFolder() {
+      return null;
+    }
+
+    public Folder getFolder(String name) {
+      return null;
+    }
+
+    public Folder getFolder(URLName url) {
+      return null;
+    }
+  }
+
+  private static class FakeMessage extends MimeMessage {
+    FakeMessage(Folder folder, int msgnum) {
+      super(folder, msgnum);
+    }
+  }
+
+  public FakeUidFolder(String name, long uidValidity) {
+    super(new FakeStore());
+    this.name = name;
+    this.uidValidity = uidValidity;
+  }
+
+  public void append(long... uids) {
+    for (long uid : uids) {
+      this.uids.add(uid);
+      this.messages.add(new FakeMessage(this, this.messages.size() + 1));
+    }
+  }
+
+  public void appendMessages(Message[] msgs) throws MessagingException {
+    throw new MessagingException("read only");
+  }
+
+  public void close(boolean expunge) {
+    this.open = false;
+  }
+
+  public boolean create(int type) {
+    return false;
+  }
+
+  public boolean delete(boolean recurse) {
+    return false;
+  }
+
+  public boolean exists() {
+    return true;
+  }
+
+  public Message[] expunge() throws MessagingException {
+    throw new MessagingException("read only");
+  }
+
+  public Folder getFolder(String name) {
+    return null;
+  }
+
+  public String getFullName() {
+    return this.name;
+  }
+
+  public Message getMessage(int msgnum) {
+    return this.messages.get(msgnum - 1);
+  }
+
+  public Message getMessageByUID(long uid) {
+    int i = this.uids.indexOf(uid);
+    return i >= 0 ? this.messages.get(i) : null;
+  }
+
+  public int getMessageCount() {
+    return this.messages.size();
+  }
+
+  public Message[] getMessagesByUID(long start, long end) {
+    Vector<Message> range = new Vector<Message>();
+    for (int i = 0; i < this.uids.size(); i++) {
+      long uid = this.uids.get(i);
+      if (uid >= start && (end == LASTUID || uid <= end))
+        range.add(this.messages.get(i));
+    }
+    if (range.isEmpty() && end == LASTUID && !this.messages.isEmpty())
+      range.add(this.messages.lastElement());
+    return range.toArray(new Message[range.size()]);
+  }
+
+  public Message[] getMessagesByUID(long[] uids) {
+    Message[] msgs = new Message[uids.length];
+    for (int i = 0; i < uids.length; i++)
+      msgs[i] = this.getMessageByUID(uids[i]);
+    return msgs;
+  }
+
+  public String getName() {
+    return this.name;
+  }
+
+  public Folder getParent() {
+    return null;
+  }
+
+  public Flags getPermanentFlags() {
+    return new Flags();
+  }
+
+  public char getSeparator() {
+    return '/';
+  }
+
+  public int getType() {
+    return HOLDS_MESSAGES;
+  }
+
+  public long getUID(Message m) {
+    return this.uids.get(m.getMessageNumber() - 1);
+  }
+
+  public long getUIDValidity() {
+    return this.uidValidity;
+  }
+
+  public boolean hasNewMessages() {
+    return false;
+  }
+
+  public boolean isOpen() {
+    return this.open;
+  }
+
+  public Folder[] list(String pattern) {
+    return new Folder[0];
+  }
+
+  public void open(int mode) {
+    this.open = true;
+  }
+
+  public boolean renameTo(Folder f) {
+    return false;
+  }
+
+  /*
+   * The server lost its UIDs, messages are numbered anew from uid
+   */
+  public void resetUIDs(long uidValidity, long uid) {
+    this.uidValidity = uidValidity;
+    for (int i = 0; i < this.uids.size(); i++)
+      this.uids.set(i, uid++);
+  }
+}
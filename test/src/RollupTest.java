@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Properties;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+/*
+ * StatsRollup.rebuild against the counts added while importing, on the
+ * database of the given config, e.g. bench/config.h2 with h2.jar in
+ * bench/lib. The schema in bench.schema is created first and the tables
+ * are truncated. The archive has a message with another one attached, the
+ * attached message arriving on its own later, a duplicate and a message
+ * without X-Mailer.
+ */
+public class RollupTest {
+  private static int failures = 0;
+
+  private Session session = Session.getInstance(new Properties(), null);
+  private MailImport importer = new MailImport(this.session);
+  private MailDBPool pool;
+  private MailDB db;
+
+  public static void main(String argv[]) {
+    try {
+      if (argv.length != 1) {
+        System.err.println("Usage: RollupTest <config file>");
+        System.exit(1);
+      }
+      new RollupTest().run(new File(argv[0]));
+    } catch (Exception ex) {
+      ex.printStackTrace();
+      failures++;
+    }
+    System.out.println(failures == 0 ? "passed" : failures + " failed");
+    System.exit(failures == 0 ? 0 : 1);
+  }
+
+  private static void check(boolean ok, String what) {
+    System.out.println((ok ? "ok     " : "FAILED ") + what);
+    if (!ok)
+      failures++;
+  }
+
+  private void run(File config) throws Exception {
+    Properties props = this.importer.loadConfig(config);
+    props.setProperty("db.truncateOnConnect", "true");
+    props.setProperty("db.bulkLoad", "false");
+    this.pool = new MailDBPool(props);
+
+    String schema = Config.getProperty(props, "bench.schema", null);
+    if (schema != null)
+      this.createSchema(new File(schema));
+
+    this.pool.open();
+    this.db = this.pool.lease();
+    StatsRollup rollups = new StatsRollup(this.pool.createConnection(),
+        this.pool.getDialect(), 0);
+    Connection conn = this.pool.createConnection();
+    try {
+      this.importer.setRollups(rollups);
+
+      String attached = this.message("<attached@example.com>",
+          "Attached <attached@example.org>", "Mutt", null);
+      this.write(this.message("<plain@example.com>",
+          "Plain <plain@example.org>", "Mutt", null));
+      this.write(this.message("<container@example.com>",
+          "Container <container@example.org>", "Outlook", attached));
+      this.write(attached);
+      this.write(this.message("<plain@example.com>",
+          "Plain <plain@example.org>", "Mutt", null));
+      this.write(this.message("<nomailer@example.com>",
+          "Plain <plain@example.org>", null, null));
+      rollups.flush();
+
+      String incremental = this.counts(conn);
+      rollups.rebuild();
+      String rebuilt = this.counts(conn);
+      check(incremental.contains("MailerDay Mutt 2010-01-01 2\n"),
+          "attached message counted once, duplicate not counted");
+      check(incremental.contains("MailerDay  2010-01-01 1\n"),
+          "message without X-Mailer counted under ''");
+      check(rebuilt.equals(incremental),
+          "rebuild agrees with the import counts");
+      if (!rebuilt.equals(incremental))
+        System.out.println("import:\n" + incremental + "rebuild:\n"
+            + rebuilt);
+    } finally {
+      conn.close();
+      rollups.close();
+      this.pool.release(this.db);
+      this.pool.close();
+    }
+  }
+
+  private String counts(Connection conn) throws Exception {
+    StringBuilder sb = new StringBuilder();
+    Statement stmnt = conn.createStatement();
+    ResultSet rs = stmnt
+        .executeQuery("select idSubscriber, type, day, messageCount from SubscriberDay "
+            + "order by idSubscriber, type, day");
+    while (rs.next())
+      sb.append("SubscriberDay ").append(rs.getInt(1)).append(' ').append(
+          rs.getString(2)).append(' ').append(rs.getDate(3)).append(' ')
+          .append(rs.getInt(4)).append('\n');
+    rs.close();
+
+    rs = stmnt
+        .executeQuery("select xmailer, day, messageCount from MailerDay order by xmailer, day");
+    while (rs.next())
+      sb.append("MailerDay ").append(rs.getString(1)).append(' ').append(
+          rs.getDate(2)).append(' ').append(rs.getInt(3)).append('\n');
+    rs.close();
+    stmnt.close();
+    return sb.toString();
+  }
+
+  private void createSchema(File schema) throws Exception {
+    StringBuilder sql = new StringBuilder();
+    BufferedReader reader = new BufferedReader(new FileReader(schema));
+    String line;
+    while ((line = reader.readLine()) != null) {
+      if (!line.trim().startsWith("--"))
+        sql.append(line).append('\n');
+    }
+    reader.close();
+
+    Connection conn = this.pool.createConnection();
+    Statement stmnt = conn.createStatement();
+    for (String s : sql.toString().split(";")) {
+      if (s.trim().length() > 0)
+        stmnt.execute(s);
+    }
+    stmnt.close();
+    conn.close();
+  }
+
+  private String message(String messageid, String from, String xmailer,
+      String attached) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("From: ").append(from).append('\n');
+    sb.append("To: Archive <archive@example.org>\n");
+    sb.append("Subject: ").append(messageid).append('\n');
+    sb.append("Message-ID: ").append(messageid).append('\n');
+    sb.append("Date: Fri, 1 Jan 2010 12:00:00 +0000\n");
+    if (xmailer != null)
+      sb.append("X-Mailer: ").append(xmailer).append('\n');
+    sb.append("MIME-Version: 1.0\n");
+    if (attached == null) {
+      sb.append("Content-Type: text/plain; charset=us-ascii\n\n");
+      sb.append("Body of ").append(messageid).append('\n');
+    } else {
+      sb.append("Content-Type: multipart/mixed; boundary=\"b\"\n\n");
+      sb.append("--b\nContent-Type: text/plain; charset=us-ascii\n\n");
+      sb.append("See attached\n");
+      sb.append("--b\nContent-Type: message/rfc822\n\n");
+      sb.append(attached);
+      sb.append("--b--\n");
+    }
+    return sb.toString();
+  }
+
+  /*
+   * Stores and commits the message like a pipeline writer
+   */
+  private void write(String raw) throws Exception {
+    MimeMessage m = new MimeMessage(this.session, new ByteArrayInputStream(
+        raw.getBytes("US-ASCII")));
+    ImportItem item = new ImportItem(null, 0, null);
+    item.email = this.importer.parseEnvelope(m, 0, false);
+    item.body = this.importer.buildPartTree(item.email, m);
+    this.importer.writeItem(this.db, item);
+    this.db.commit();
+    this.importer.itemCommitted(item);
+    item.dispose();
+  }
+}
@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright (C) 2009-2011 Amir Hassan <amir@viel-zu.org>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ ******************************************************************************/
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.HashMap;
+import javax.mail.Session;
+
+/*
+ * Incremental IMAP sync against FakeUidFolder: only UIDs above the
+ * checkpoint are imported, a failed message holds the checkpoint back and
+ * is imported again on resume, and a new UIDVALIDITY starts over.
+ * SyncCheckpoint rows are kept in memory behind a JDBC proxy.
+ */
+public class UidSyncTest {
+  private static int failures = 0;
+
+  private HashMap<String, long[]> rows = new HashMap<String, long[]>();
+  private MailImport importer = new MailImport((Session) null);
+  private FakeUidFolder folder = new FakeUidFolder("INBOX", 7);
+
+  public static void main(String argv[]) {
+    try {
+      new UidSyncTest().run();
+    } catch (Exception ex) {
+      ex.printStackTrace();
+      failures++;
+    }
+    System.out.println(failures == 0 ? "passed" : failures + " failed");
+    System.exit(failures == 0 ? 0 : 1);
+  }
+
+  private static void check(boolean ok, String what) {
+    System.out.println((ok ? "ok     " : "FAILED ") + what);
+    if (!ok)
+      failures++;
+  }
+
+  private void run() throws Exception {
+    this.importer.setSyncCheckpoints(new SyncCheckpoints(this.connection()));
+
+    this.folder.append(10, 20, 30);
+    ImportRange range = this.start();
+    check(range.start == 1 && range.end == 3, "first sync imports all");
+    this.finish(range, -1);
+    check(this.lastUid() == 30, "checkpoint at the highest UID");
+
+    check(!this.importer.startIncremental(this.folder, new ImportRange(
+        "INBOX", 1, 0), this.folder.getMessageCount()),
+        "nothing new, UID 31:* returning the last message is skipped");
+
+    this.folder.append(40, 50, 60);
+    range = this.start();
+    check(range.start == 4 && range.end == 6, "only UIDs above 30");
+    this.finish(range, 50);
+    check(this.lastUid() == 49, "failed UID 50 holds the checkpoint back");
+
+    range = this.start();
+    check(range.start == 5 && range.end == 6, "resume at the failed UID");
+    this.finish(range, -1);
+    check(this.lastUid() == 60, "checkpoint past the retried message");
+
+    this.folder.resetUIDs(8, 1);
+    range = this.start();
+    check(range.start == 1 && range.end == 6,
+        "new UIDVALIDITY imports the folder again");
+    check(this.rows.get("INBOX")[0] == 8, "new UIDVALIDITY saved");
+    this.finish(range, -1);
+    check(this.lastUid() == 6, "checkpoint in the new UID space");
+  }
+
+  private ImportRange start() throws Exception {
+    ImportRange range = new ImportRange("INBOX", 1, 0);
+    this.importer.startIncremental(this.folder, range, this.folder
+        .getMessageCount());
+    return range;
+  }
+
+  /*
+   * Queues and finishes the messages of the range like the pipeline does,
+   * the one with UID failedUid as failed
+   */
+  private void finish(ImportRange range, long failedUid) throws Exception {
+    for (int nr = range.start; nr <= range.end; nr++) {
+      ImportItem item = new ImportItem(range, nr - 1, this.folder
+          .getMessage(nr));
+      item.offset = this.folder.getUID(item.message);
+      range.itemQueued(item);
+      item.failed = item.offset == failedUid;
+      range.itemDone(item);
+    }
+    range.fetchDone();
+  }
+
+  private long lastUid() {
+    long[] row = this.rows.get("INBOX");
+    return row != null ? row[1] : -1;
+  }
+
+  /*
+   * Just enough of a Connection for SyncCheckpoints
+   */
+  private Connection connection() {
+    return (Connection) Proxy.newProxyInstance(this.getClass()
+        .getClassLoader(), new Class<?>[] { Connection.class },
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method m, Object[] args) {
+            if (m.getName().equals("prepareStatement"))
+              return UidSyncTest.this.statement((String) args[0]);
+            return null;
+          }
+        });
+  }
+
+  private PreparedStatement statement(final String sql) {
+    final Object[] params = new Object[4];
+    return (PreparedStatement) Proxy.newProxyInstance(this.getClass()
+        .getClassLoader(), new Class<?>[] { PreparedStatement.class },
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method m, Object[] args) {
+            String name = m.getName();
+            if (name.startsWith("set")) {
+              params[(Integer) args[0]] = args[1];
+              return null;
+            }
+            if (name.equals("executeQuery")) {
+              long[] row = UidSyncTest.this.rows.get(params[1]);
+              return UidSyncTest.this.resultSet(row);
+            }
+            if (name.equals("executeUpdate")) {
+              if (sql.startsWith("UPDATE")) {
+                if (!UidSyncTest.this.rows.containsKey(params[3]))
+                  return 0;
+                UidSyncTest.this.rows.put((String) params[3], new long[] {
+                    (Long) params[1], (Long) params[2] });
+              } else
+                UidSyncTest.this.rows.put((String) params[1], new long[] {
+                    (Long) params[2], (Long) params[3] });
+              return 1;
+            }
+            return null;
+          }
+        });
+  }
+
+  private ResultSet resultSet(final long[] row) {
+    return (ResultSet) Proxy.newProxyInstance(this.getClass()
+        .getClassLoader(), new Class<?>[] { ResultSet.class },
+        new InvocationHandler() {
+          private boolean before = true;
+
+          public Object invoke(Object proxy, Method m, Object[] args) {
+            if (m.getName().equals("next")) {
+              boolean next = this.before && row != null;
+              this.before = false;
+              return next;
+            }
+            if (m.getName().equals("getLong"))
+              return row[(Integer) args[0] - 1];
+            return null;
+          }
+        });
+  }
+}